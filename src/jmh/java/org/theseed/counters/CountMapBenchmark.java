@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package org.theseed.counters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theseed.io.SyntheticData;
+
+/**
+ * These benchmarks measure counting.  The keys are synthetic function names drawn with a skewed
+ * distribution, so that a few keys are very common and most are rare, as with real role counts.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CountMapBenchmark {
+
+    /** number of distinct keys */
+    @Param({ "10000" })
+    public int keyCount;
+    /** number of keys to count per operation */
+    @Param({ "100000" })
+    public int events;
+    /** keys to count, in order */
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> names = SyntheticData.generateNames(new File(SyntheticData.DATA_DIR, "products.tbl"), "product", this.keyCount);
+        Random rand = new Random(1842724469L);
+        this.keys = new String[this.events];
+        for (int i = 0; i < this.events; i++) {
+            // Squaring a uniform value skews the choice toward the front of the list.
+            double r = rand.nextDouble();
+            this.keys[i] = names.get((int) (r * r * names.size()));
+        }
+    }
+
+    @Benchmark
+    public void count(Blackhole bh) {
+        CountMap<String> counts = new CountMap<String>();
+        for (String key : this.keys)
+            counts.count(key);
+        bh.consume(counts);
+    }
+
+    @Benchmark
+    public void sortedCounts(Blackhole bh) {
+        CountMap<String> counts = new CountMap<String>();
+        for (String key : this.keys)
+            counts.count(key);
+        bh.consume(counts.sortedCounts());
+    }
+
+    @Benchmark
+    public void compactCount(Blackhole bh) {
+        CompactCountMap<String> counts = new CompactCountMap<String>();
+        for (String key : this.keys)
+            counts.count(key);
+        bh.consume(counts);
+    }
+
+    @Benchmark
+    public void compactSortedCounts(Blackhole bh) {
+        CompactCountMap<String> counts = new CompactCountMap<String>();
+        for (String key : this.keys)
+            counts.count(key);
+        bh.consume(counts.sortedCounts());
+    }
+
+    @Benchmark
+    public void topSortedCounts(Blackhole bh) {
+        TopCountMap<String> counts = new TopCountMap<String>(1000);
+        for (String key : this.keys)
+            counts.count(key);
+        bh.consume(counts.top(100));
+    }
+
+    @Benchmark
+    public void parallelMergeCount(Blackhole bh) {
+        CountMap<String> counts = Arrays.stream(this.keys).parallel().collect(CountMap<String>::new,
+                CountMap::count, CountMap::accumulate);
+        bh.consume(counts);
+    }
+
+    @Benchmark
+    public void parallelConcurrentCount(Blackhole bh) {
+        ConcurrentCountMap<String> counts = new ConcurrentCountMap<String>();
+        Arrays.stream(this.keys).parallel().forEach(x -> counts.count(x));
+        bh.consume(counts.snapshot());
+    }
+
+}
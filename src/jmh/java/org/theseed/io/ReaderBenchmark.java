@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * These benchmarks measure the throughput of the line reader, the tab-delimited field-input stream, and the
+ * columnar field-input stream on a scaled-up copy of the genome fixture file.  Each operation reads the whole file.
+ * The buffered-reader benchmark is a baseline for the line reader's byte-level splitting.  The two-column
+ * benchmarks show the effect of column projection and record filtering.  The seek benchmark looks up a few keys
+ * in a sorted copy using a sidecar index.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReaderBenchmark {
+
+    /** number of copies of the fixture data lines */
+    @Param({ "1000" })
+    public int copies;
+    /** scaled-up input file */
+    private File inFile;
+    /** columnar copy of the input file */
+    private File colFile;
+    /** copy of the input file sorted by genome ID */
+    private File sortedFile;
+    /** genome IDs to look up */
+    private static final String[] LOOKUPS = new String[] { "511145.12", "300852.9", "243274.5" };
+
+    @Setup
+    public void setup() throws IOException {
+        this.inFile = SyntheticData.scaleTabbed(new File(SyntheticData.DATA_DIR, "genomes10.tbl"), this.copies);
+        this.colFile = File.createTempFile("bench", ColumnarInputStream.EXTENSION);
+        this.colFile.deleteOnExit();
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            ColumnarInputStream.convert(inStream, this.colFile);
+        }
+        this.sortedFile = File.createTempFile("bench", ".tbl");
+        this.sortedFile.deleteOnExit();
+        TabIndex.sidecarFile(this.sortedFile).deleteOnExit();
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            new FieldSorter().sort(inStream, "genome_id", this.sortedFile);
+        }
+        TabIndex.forFile(this.sortedFile, "genome_id", 64);
+    }
+
+    @Benchmark
+    public void lineReader(Blackhole bh) throws IOException {
+        try (LineReader reader = new LineReader(this.inFile)) {
+            for (String line : reader)
+                bh.consume(line);
+        }
+    }
+
+    @Benchmark
+    public void bufferedReader(Blackhole bh) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(this.inFile.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+                bh.consume(line);
+        }
+    }
+
+    @Benchmark
+    public void tabbedInputStream(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            for (var record : inStream)
+                bh.consume(record);
+        }
+    }
+
+    @Benchmark
+    public void tabbedPrefetch(Blackhole bh) throws IOException {
+        try (FieldInputStream inStream = new TabbedInputStream(this.inFile).prefetch()) {
+            for (var record : inStream)
+                bh.consume(record);
+        }
+    }
+
+    @Benchmark
+    public void tabbedAllColumns(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            final int n = inStream.width();
+            for (var record : inStream) {
+                for (int i = 0; i < n; i++)
+                    bh.consume(record.getList(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void tabbedTwoColumns(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            this.readTwoColumns(inStream, bh);
+        }
+    }
+
+    @Benchmark
+    public void tabbedProjected(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            inStream.enableProjection();
+            this.readTwoColumns(inStream, bh);
+        }
+    }
+
+    @Benchmark
+    public void tabbedBatched(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            for (var batch = inStream.nextBatch(1000); ! batch.isEmpty(); batch = inStream.nextBatch(1000)) {
+                for (int i = 0; i < batch.size(); i++)
+                    bh.consume(batch.get(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void tabbedFiltered(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.inFile)) {
+            inStream.addFilter(new FieldFilter.Equal(inStream.findField("genus"), "Streptococcus"));
+            this.readTwoColumns(inStream, bh);
+        }
+    }
+
+    @Benchmark
+    public void indexedSeek(Blackhole bh) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(this.sortedFile)) {
+            inStream.useIndex("genome_id", 64);
+            for (String key : LOOKUPS)
+                bh.consume(inStream.seek(key));
+        }
+    }
+
+    /**
+     * Read the genome ID and name columns from every record of a stream.
+     *
+     * @param inStream	input stream to read
+     * @param bh		blackhole for consuming the values
+     *
+     * @throws IOException
+     */
+    private void readTwoColumns(FieldInputStream inStream, Blackhole bh) throws IOException {
+        final int idCol = inStream.findField("genome_id");
+        final int nameCol = inStream.findField("genome.genome_name");
+        for (var record : inStream) {
+            bh.consume(record.get(idCol));
+            bh.consume(record.get(nameCol));
+        }
+    }
+
+    @Benchmark
+    public void columnarAllColumns(Blackhole bh) throws IOException {
+        try (ColumnarInputStream inStream = new ColumnarInputStream(this.colFile)) {
+            final int n = inStream.width();
+            for (var record : inStream) {
+                for (int i = 0; i < n; i++)
+                    bh.consume(record.getList(i));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * This class generates synthetic benchmark data by scaling up the test fixtures in the "data" directory.
+ * Tab-delimited files are scaled by repeating the data lines, JSON list files by repeating the records, and
+ * name lists by recombining the words of the fixture names.  All randomness is seeded, so the same
+ * parameters always produce the same data.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SyntheticData {
+
+    /** fixture directory */
+    public static final File DATA_DIR = new File("data");
+    /** random seed for name generation */
+    private static final long SEED = 1842724469L;
+
+    /**
+     * Create a scaled-up copy of a tab-delimited file with headers.  The header is copied once and the
+     * data lines are repeated.
+     *
+     * @param source	source tab-delimited file
+     * @param copies	number of copies of the data lines to write
+     *
+     * @return a temporary file containing the scaled data (deleted on exit)
+     *
+     * @throws IOException
+     */
+    public static File scaleTabbed(File source, int copies) throws IOException {
+        List<String> lines = Files.readAllLines(source.toPath(), StandardCharsets.UTF_8);
+        File retVal = createTemp(source);
+        try (PrintWriter writer = new PrintWriter(retVal, StandardCharsets.UTF_8)) {
+            writer.println(lines.get(0));
+            final int n = lines.size();
+            for (int i = 0; i < copies; i++) {
+                for (int j = 1; j < n; j++)
+                    writer.println(lines.get(j));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Create a scaled-up copy of a JSON list file.  The records are repeated inside a single list.
+     *
+     * @param source	source JSON list file
+     * @param copies	number of copies of the records to write
+     *
+     * @return a temporary file containing the scaled data (deleted on exit)
+     *
+     * @throws IOException
+     */
+    public static File scaleJson(File source, int copies) throws IOException {
+        String text = Files.readString(source.toPath(), StandardCharsets.UTF_8);
+        // Extract the records between the outer brackets.
+        String body = StringUtils.substringBeforeLast(StringUtils.substringAfter(text, "["), "]").strip();
+        File retVal = createTemp(source);
+        try (PrintWriter writer = new PrintWriter(retVal, StandardCharsets.UTF_8)) {
+            writer.println("[");
+            for (int i = 0; i < copies; i++) {
+                if (i > 0)
+                    writer.println(",");
+                writer.print(body);
+            }
+            writer.println();
+            writer.println("]");
+        }
+        return retVal;
+    }
+
+    /**
+     * Read all the lines of a file into memory.
+     *
+     * @param source	file to read
+     *
+     * @return a list of the lines in the file
+     *
+     * @throws IOException
+     */
+    public static List<String> readLines(File source) throws IOException {
+        return Files.readAllLines(source.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Generate a list of synthetic names from the words in a column of a fixture file.  Each name is formed
+     * by combining two to six words chosen at random.  Some names are repeated, so that lookups find a mix of
+     * new and existing names.
+     *
+     * @param source	source tab-delimited file
+     * @param colName	name of the column containing the names
+     * @param count		number of names to generate
+     *
+     * @return a list of synthetic names
+     *
+     * @throws IOException
+     */
+    public static List<String> generateNames(File source, String colName, int count) throws IOException {
+        // Get all the words from the source names.
+        List<String> words = new ArrayList<String>();
+        try (TabbedInputStream inStream = new TabbedInputStream(source)) {
+            int colIdx = inStream.findField(colName);
+            for (var record : inStream) {
+                for (String word : StringUtils.split(record.get(colIdx)))
+                    words.add(word);
+            }
+        }
+        // Build the names.
+        Random rand = new Random(SEED);
+        List<String> retVal = new ArrayList<String>(count);
+        StringBuilder buffer = new StringBuilder(80);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && rand.nextInt(4) == 0) {
+                // Repeat an earlier name.
+                retVal.add(retVal.get(rand.nextInt(i)));
+            } else {
+                buffer.setLength(0);
+                final int n = rand.nextInt(5) + 2;
+                for (int j = 0; j < n; j++) {
+                    if (j > 0)
+                        buffer.append(' ');
+                    buffer.append(words.get(rand.nextInt(words.size())));
+                }
+                retVal.add(buffer.toString());
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a temporary file with the same extension as the source file, to be deleted on exit
+     *
+     * @param source	source file whose extension should be used
+     *
+     * @throws IOException
+     */
+    private static File createTemp(File source) throws IOException {
+        String name = source.getName();
+        String ext = "." + StringUtils.substringAfterLast(name, ".");
+        File retVal = File.createTempFile("bench", ext);
+        retVal.deleteOnExit();
+        return retVal;
+    }
+
+}
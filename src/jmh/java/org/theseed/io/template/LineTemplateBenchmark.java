@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package org.theseed.io.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.io.FieldInputStream;
+import org.theseed.io.SyntheticData;
+import org.theseed.io.template.output.TemplateHashWriter;
+
+/**
+ * These benchmarks measure template application on records held in memory.  One template is the
+ * genome-description template from the unit tests, which exercises conditionals, lists and groups.  Another
+ * is the gene-product template.  The last has nested conditionals with multiple condition expressions, to measure
+ * the cost of IF evaluation.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LineTemplateBenchmark {
+
+    /** genome description template */
+    private static final String GENOME_TEMPLATE = "The genome with identifier {{genome_id}} is called {{genome_name}} and has {{genome_length}} base pairs. " +
+            "Its NCBI accession number is {{assembly_accession}} and it has {{contigs}} contigs with {{patric_cds}} known protein-coding regions. " +
+            "{{$if:host_name}}Its organism is found in the species {{$list:host_name:and:, }}. {{$fi}}{{$if:disease}}The organism is known to cause {{$list:disease}}. {{$fi}}" +
+            "{{$group:and}}It belongs to" +
+                "{{$clause:superkingdom}}the domain {{superkingdom}}" +
+                "{{$clause:species}}the species {{species}}" +
+                "{{$clause:genus}}the genus {{genus}}{{$end}}";
+    /** gene product template */
+    private static final String PRODUCT_TEMPLATE = "{{$if:type:fid}}{{$product:product:type}}{{$fi}}";
+    /** template with nested conditionals */
+    private static final String NESTED_TEMPLATE = "Genome {{genome_id}}" +
+            "{{$if:host_name:eq(superkingdom,Bacteria)}} is a bacterium with hosts {{$list:host_name:and:, }}" +
+                "{{$if:disease}} that causes {{$list:disease}}{{$if:genus}} in the genus {{genus}}{{$fi}}{{$fi}}" +
+            "{{$else}}{{$if:disease}} causes {{$list:disease}}{{$else}} is not interesting{{$fi}}{{$fi}}.";
+
+    /** number of copies of the fixture records */
+    @Param({ "100" })
+    public int copies;
+    /** compiled genome template */
+    private LineTemplate genomeTemplate;
+    /** genome records */
+    private List<FieldInputStream.Record> genomeRecords;
+    /** compiled product template */
+    private LineTemplate productTemplate;
+    /** product records */
+    private List<FieldInputStream.Record> productRecords;
+    /** compiled nested-conditional template */
+    private LineTemplate nestedTemplate;
+
+    @Setup
+    public void setup() throws IOException, ParseFailureException {
+        TemplateHashWriter globals = new TemplateHashWriter();
+        File genomeFile = SyntheticData.scaleTabbed(new File(SyntheticData.DATA_DIR, "genomes10.tbl"), this.copies);
+        this.genomeRecords = new ArrayList<FieldInputStream.Record>();
+        try (FieldInputStream inStream = FieldInputStream.create(genomeFile)) {
+            this.genomeTemplate = new LineTemplate(inStream, GENOME_TEMPLATE, globals);
+            inStream.enableProjection();
+            for (var record : inStream)
+                this.genomeRecords.add(record);
+        }
+        File productFile = SyntheticData.scaleTabbed(new File(SyntheticData.DATA_DIR, "products.tbl"), this.copies);
+        this.productRecords = new ArrayList<FieldInputStream.Record>();
+        try (FieldInputStream inStream = FieldInputStream.create(productFile)) {
+            this.productTemplate = new LineTemplate(inStream, PRODUCT_TEMPLATE, globals);
+            inStream.enableProjection();
+            for (var record : inStream)
+                this.productRecords.add(record);
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(genomeFile)) {
+            this.nestedTemplate = new LineTemplate(inStream, NESTED_TEMPLATE, globals);
+        }
+    }
+
+    @Benchmark
+    public void genomeTemplate(Blackhole bh) {
+        for (var record : this.genomeRecords)
+            bh.consume(this.genomeTemplate.apply(record));
+    }
+
+    @Benchmark
+    public void productTemplate(Blackhole bh) {
+        for (var record : this.productRecords)
+            bh.consume(this.productTemplate.apply(record));
+    }
+
+    @Benchmark
+    public void nestedTemplate(Blackhole bh) {
+        for (var record : this.genomeRecords)
+            bh.consume(this.nestedTemplate.apply(record));
+    }
+
+}
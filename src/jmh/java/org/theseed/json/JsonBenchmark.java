@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package org.theseed.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theseed.io.SyntheticData;
+
+/**
+ * These benchmarks measure the JSON tokenizer on in-memory lines and the JSON field-input stream on
+ * a scaled-up copy of the feature fixture file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JsonBenchmark {
+
+    /** number of copies of the fixture records */
+    @Param({ "1000" })
+    public int copies;
+    /** scaled-up input file */
+    private File inFile;
+    /** lines of the scaled-up input file */
+    private List<String> lines;
+
+    @Setup
+    public void setup() throws IOException {
+        this.inFile = SyntheticData.scaleJson(new File(SyntheticData.DATA_DIR, "genome_feature.json"), this.copies);
+        this.lines = SyntheticData.readLines(this.inFile);
+    }
+
+    @Benchmark
+    public void tokenizer(Blackhole bh) throws IOException {
+        int lineNum = 0;
+        for (String line : this.lines) {
+            lineNum++;
+            for (String token : new JsonTokenizer(line, lineNum))
+                bh.consume(token);
+        }
+    }
+
+    @Benchmark
+    public void jsonListInputStream(Blackhole bh) throws IOException {
+        try (JsonListInputStream inStream = new JsonListInputStream(this.inFile)) {
+            inStream.findField("patric_id");
+            inStream.findField("product");
+            inStream.findField("segments");
+            for (var record : inStream)
+                bh.consume(record);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package org.theseed.magic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theseed.io.SyntheticData;
+import org.theseed.proteins.FunctionMap;
+
+/**
+ * These benchmarks measure magic-map name lookups and the condensing of names into magic-word prefixes.
+ * The names are synthesized from the words of the fixture product names.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MagicMapBenchmark {
+
+    /** number of names to generate */
+    @Param({ "10000" })
+    public int count;
+    /** list of names */
+    private List<String> names;
+    /** function map containing the names */
+    private FunctionMap funMap;
+
+    @Setup
+    public void setup() throws IOException {
+        this.names = SyntheticData.generateNames(new File(SyntheticData.DATA_DIR, "products.tbl"), "product", this.count);
+        this.funMap = new FunctionMap();
+        this.funMap.findOrInsertAll(this.names);
+    }
+
+    @Benchmark
+    public void getByName(Blackhole bh) {
+        for (String name : this.names)
+            bh.consume(this.funMap.getByName(name));
+    }
+
+    @Benchmark
+    public void condense(Blackhole bh) {
+        for (String name : this.names)
+            bh.consume(MagicMap.condense(name));
+    }
+
+    @Benchmark
+    public void condenseGeneral(Blackhole bh) {
+        for (String name : this.names)
+            bh.consume(MagicMap.condenseGeneral(name));
+    }
+
+    @Benchmark
+    public void findOrInsert(Blackhole bh) {
+        FunctionMap newMap = new FunctionMap();
+        for (String name : this.names)
+            bh.consume(newMap.findOrInsert(name));
+    }
+
+    @Benchmark
+    public void findOrInsertAll(Blackhole bh) {
+        FunctionMap newMap = new FunctionMap();
+        bh.consume(newMap.findOrInsertAll(this.names));
+    }
+
+}
@@ -0,0 +1,516 @@
+/**
+ *
+ */
+package org.theseed.counters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * This is a memory-efficient version of {@link CountMap}.  Instead of a hash map of counter objects, it uses
+ * an open-addressing hash table of keys with a parallel array of integer counts, so there is no per-key
+ * object overhead.  The counter objects returned by methods such as {@link #sortedCounts()} and
+ * {@link #getBestEntry()} are read-only snapshots built on demand; changing the map does not change them.
+ *
+ * As with the standard count map, keys that are unequal must have unequal string representations for the
+ * sort to be stable.  NULL keys are not allowed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CompactCountMap<K> {
+
+    // FIELDS
+    /** hash table of keys (NULL for an empty slot) */
+    private Object[] keys;
+    /** parallel array of counts */
+    private int[] counts;
+    /** number of keys in the table */
+    private int size;
+    /** mask for converting a hash code to a slot index */
+    private int mask;
+    /** number of keys that triggers a resize */
+    private int threshold;
+    /** default initial capacity */
+    private static final int DEFAULT_CAPACITY = 16;
+    /** maximum load factor */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    /**
+     * This is a read-only snapshot of a single key's count.
+     */
+    public static class Count<K> implements Comparable<Count<K>> {
+
+        /** key counted */
+        private final K key;
+        /** count for the key */
+        private final int num;
+
+        /**
+         * Create a snapshot of a count.
+         *
+         * @param key	key being counted
+         * @param num	count for the key
+         */
+        protected Count(K key, int num) {
+            this.key = key;
+            this.num = num;
+        }
+
+        /**
+         * @return the key counted by this counter.
+         */
+        public K getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return the value counted for this key
+         */
+        public int getCount() {
+            return this.num;
+        }
+
+        /**
+         * The sort order is highest count to lowest count.  If counts are equal but the keys
+         * are not, we sort by the string representation.
+         */
+        @Override
+        public int compareTo(Count<K> o) {
+            return compare(this.key, this.num, o.key, o.num);
+        }
+
+        /**
+         * The string representation includes the key and the count.
+         */
+        @Override
+        public String toString() {
+            String retVal;
+            switch (this.num) {
+            case 0:
+                retVal = this.key.toString() + " (not found)";
+                break;
+            case 1:
+                retVal = this.key.toString() + " (1 occurrence)";
+                break;
+            default:
+                retVal = String.format("%s (%d occurrences,)", this.key.toString(),
+                        this.num);
+            }
+            return retVal;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((key == null) ? 0 : key.hashCode());
+            result = prime * result + num;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Count<?> other = (Count<?>) obj;
+            if (key == null) {
+                if (other.key != null)
+                    return false;
+            } else if (!key.equals(other.key))
+                return false;
+            if (num != other.num)
+                return false;
+            return true;
+        }
+
+    }
+
+    /**
+     * Create a blank counting map.
+     */
+    public CompactCountMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a blank counting map with room for a specified number of keys.
+     *
+     * @param expected	number of keys expected
+     */
+    public CompactCountMap(int expected) {
+        this.allocate(tableSizeFor(expected));
+        this.size = 0;
+    }
+
+    /**
+     * @return the table size needed to hold the specified number of keys
+     *
+     * @param expected	number of keys to hold
+     */
+    private static int tableSizeFor(int expected) {
+        int needed = (int) Math.ceil(Math.max(expected, 1) / LOAD_FACTOR);
+        int retVal = DEFAULT_CAPACITY;
+        while (retVal < needed)
+            retVal <<= 1;
+        return retVal;
+    }
+
+    /**
+     * Allocate new, empty tables of the specified size.
+     *
+     * @param tableSize		new table size (must be a power of 2)
+     */
+    private void allocate(int tableSize) {
+        this.keys = new Object[tableSize];
+        this.counts = new int[tableSize];
+        this.mask = tableSize - 1;
+        this.threshold = (int) (tableSize * LOAD_FACTOR);
+    }
+
+    /**
+     * @return the home slot for a key
+     *
+     * @param key	key of interest
+     */
+    private int home(Object key) {
+        int h = key.hashCode();
+        // Spread the high bits so that keys with poor low-order hashes still distribute.
+        h ^= (h >>> 16);
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    /**
+     * @return the slot containing the specified key, or -1 if the key is not in the map
+     *
+     * @param key	key to find
+     */
+    private int find(Object key) {
+        int retVal = -1;
+        if (key != null) {
+            int slot = this.home(key);
+            Object found = this.keys[slot];
+            while (found != null && retVal < 0) {
+                if (found.equals(key))
+                    retVal = slot;
+                else {
+                    slot = (slot + 1) & this.mask;
+                    found = this.keys[slot];
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the slot for the specified key, adding the key with a zero count if it is not already present
+     *
+     * @param key	key to find or insert
+     */
+    private int findOrInsert(K key) {
+        if (key == null)
+            throw new IllegalArgumentException("Null keys are not allowed in a compact count map.");
+        int slot = this.home(key);
+        Object found = this.keys[slot];
+        while (found != null && ! found.equals(key)) {
+            slot = (slot + 1) & this.mask;
+            found = this.keys[slot];
+        }
+        if (found == null) {
+            // Here we have a new key.  If the table is full, we grow it and recompute the slot.
+            if (this.size >= this.threshold) {
+                this.rehash(this.keys.length << 1);
+                slot = this.home(key);
+                while (this.keys[slot] != null)
+                    slot = (slot + 1) & this.mask;
+            }
+            this.keys[slot] = key;
+            this.counts[slot] = 0;
+            this.size++;
+        }
+        return slot;
+    }
+
+    /**
+     * Copy all the keys and counts into a new table of the specified size.
+     *
+     * @param tableSize		new table size (must be a power of 2)
+     */
+    private void rehash(int tableSize) {
+        Object[] oldKeys = this.keys;
+        int[] oldCounts = this.counts;
+        this.allocate(tableSize);
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            if (key != null) {
+                int slot = this.home(key);
+                while (this.keys[slot] != null)
+                    slot = (slot + 1) & this.mask;
+                this.keys[slot] = key;
+                this.counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * @return the count for a given key (which is 0 if the key is unknown)
+     *
+     * @param key	key for the counter of interest
+     */
+    public int getCount(K key) {
+        int slot = this.find(key);
+        return (slot < 0 ? 0 : this.counts[slot]);
+    }
+
+    /**
+     * @return TRUE if the specified key has been counted, else FALSE
+     *
+     * @param key	key of interest
+     */
+    public boolean containsKey(K key) {
+        return this.find(key) >= 0;
+    }
+
+    /**
+     * @return a snapshot of the counter for the specified key, or NULL if the key has not been counted
+     *
+     * @param key	key of interest
+     */
+    public Count<K> findCounter(K key) {
+        Count<K> retVal = null;
+        int slot = this.find(key);
+        if (slot >= 0)
+            retVal = this.view(slot);
+        return retVal;
+    }
+
+    /** Increment the count for a key and return the new result.
+     *
+     * @param key	key of interest
+     *
+     * @return the new count value.
+     */
+    public int count(K key) {
+        return this.count(key, 1);
+    }
+
+    /** Increment the count for a key and return the new result.
+     *
+     * @param key	key of interest
+     * @param num	number to add to the count
+     *
+     * @return the new count value.
+     */
+    public int count(K key, int num) {
+        int slot = this.findOrInsert(key);
+        this.counts[slot] += num;
+        return this.counts[slot];
+    }
+
+    /**
+     * Set the count to a specific value.
+     *
+     * @param key		key whose count is to be set
+     * @param newValue	value of the new count
+     */
+    public void setCount(K key, int newValue) {
+        int slot = this.findOrInsert(key);
+        this.counts[slot] = newValue;
+    }
+
+    /**
+     * @return the total of all the counts
+     */
+    public int getTotal() {
+        int retVal = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != null)
+                retVal += this.counts[i];
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sum of all the counts in this map
+     */
+    public int sum() {
+        return this.getTotal();
+    }
+
+    /**
+     * @return the number of keys in this map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Erase all the counts in this map without deleting any keys.
+     */
+    public void clear() {
+        Arrays.fill(this.counts, 0);
+    }
+
+    /**
+     * Erase all keys and counts from this map.
+     */
+    public void deleteAll() {
+        Arrays.fill(this.keys, null);
+        Arrays.fill(this.counts, 0);
+        this.size = 0;
+    }
+
+    /**
+     * Remove a count from the map.
+     *
+     * @param key	key of the count
+     */
+    public void remove(K key) {
+        int slot = this.find(key);
+        if (slot >= 0) {
+            // Shift back any following entries in the same probe run so they can still be found.
+            int hole = slot;
+            int next = (hole + 1) & this.mask;
+            while (this.keys[next] != null) {
+                int nextHome = this.home(this.keys[next]);
+                // The entry can move to the hole if its home is not cyclically in (hole, next].
+                if (((next - nextHome) & this.mask) >= ((next - hole) & this.mask)) {
+                    this.keys[hole] = this.keys[next];
+                    this.counts[hole] = this.counts[next];
+                    hole = next;
+                }
+                next = (next + 1) & this.mask;
+            }
+            this.keys[hole] = null;
+            this.counts[hole] = 0;
+            this.size--;
+        }
+    }
+
+    /**
+     * Pass each key and its count to a consumer.  No counter objects are created.
+     *
+     * @param action	consumer to receive the keys and counts
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<? super K> action) {
+        for (int i = 0; i < this.keys.length; i++) {
+            Object key = this.keys[i];
+            if (key != null)
+                action.accept((K) key, this.counts[i]);
+        }
+    }
+
+    /**
+     * @return	a sorted collection of all the keys in this object
+     */
+    public SortedSet<K> keys() {
+        TreeSet<K> retVal = new TreeSet<K>();
+        this.forEach((k, n) -> retVal.add(k));
+        return retVal;
+    }
+
+    /**
+     * @return an unordered list of snapshots of all the counts
+     */
+    public List<Count<K>> counts() {
+        List<Count<K>> retVal = new ArrayList<Count<K>>(this.size);
+        this.forEach((k, n) -> retVal.add(new Count<K>(k, n)));
+        return retVal;
+    }
+
+    /**
+     * @return a list of snapshots of all the counts in this object, sorted from highest to lowest
+     */
+    public List<Count<K>> sortedCounts() {
+        List<Count<K>> retVal = this.counts();
+        retVal.sort(null);
+        return retVal;
+    }
+
+    /**
+     * @return a set of all the keys with a count of 1
+     */
+    public Set<K> getSingletons() {
+        Set<K> retVal = new HashSet<K>();
+        this.forEach((k, n) -> {
+            if (n == 1)
+                retVal.add(k);
+        });
+        return retVal;
+    }
+
+    /**
+     * Accumulate all the counts from another map into this map.
+     *
+     * @param otherMap		other map whose counts are to be added
+     */
+    public void accumulate(CompactCountMap<K> otherMap) {
+        otherMap.forEach((k, n) -> this.count(k, n));
+    }
+
+    /**
+     * Accumulate all the counts from a standard count map into this map.
+     *
+     * @param otherMap		other map whose counts are to be added
+     */
+    public void accumulate(CountMap<K> otherMap) {
+        for (CountMap<K>.Count counter : otherMap.counts())
+            this.count(counter.getKey(), counter.getCount());
+    }
+
+    /**
+     * @return a snapshot of the counter with the highest count, or NULL if there are no counts
+     */
+    @SuppressWarnings("unchecked")
+    public Count<K> getBestEntry() {
+        int best = -1;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != null) {
+                if (best < 0 || compare((K) this.keys[i], this.counts[i], (K) this.keys[best], this.counts[best]) < 0)
+                    best = i;
+            }
+        }
+        return (best < 0 ? null : this.view(best));
+    }
+
+    /**
+     * @return a snapshot of the counter in the specified slot
+     *
+     * @param slot	slot containing the key of interest
+     */
+    @SuppressWarnings("unchecked")
+    private Count<K> view(int slot) {
+        return new Count<K>((K) this.keys[slot], this.counts[slot]);
+    }
+
+    /**
+     * Compare two key/count pairs.  Higher counts sort first, and equal counts sort by the key's string
+     * representation.
+     *
+     * @param key1		first key
+     * @param num1		first count
+     * @param key2		second key
+     * @param num2		second count
+     *
+     * @return a negative number if the first pair sorts first, positive if it sorts second, and 0 if they are equal
+     */
+    private static int compare(Object key1, int num1, Object key2, int num2) {
+        int retVal = Integer.compare(num2, num1);
+        if (retVal == 0)
+            retVal = key1.toString().compareTo(key2.toString());
+        return retVal;
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package org.theseed.counters;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This is a thread-safe counting map.  Many threads can count into it at once, so a parallel stream can share
+ * a single map instead of counting into per-thread maps and merging them.
+ *
+ * Each key's count is kept in a striped adder, so a key that many threads count at the same time does not
+ * become a point of contention.  Counting takes the shared side of a read-write lock, and taking a snapshot
+ * takes the exclusive side, so a snapshot always reflects a point in time between two count operations.  To keep
+ * the counting threads from contending for a single lock, the lock is striped by thread:  a counting thread
+ * takes the read lock of one stripe, and a snapshot takes the write locks of all the stripes.  The snapshot is a
+ * standard {@link CountMap}, which is used for sorting and finding the best entry.
+ *
+ * Counts can only increase.  Negative increments are rejected.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ConcurrentCountMap<K> {
+
+    // FIELDS
+    /** map of keys to counters */
+    private final ConcurrentHashMap<K, LongAdder> map;
+    /** total of all counts */
+    private final LongAdder total;
+    /** striped locks; counting takes a read lock, and snapshots take all the write locks */
+    private final ReentrantReadWriteLock[] locks;
+    /** number of lock stripes (must be a power of 2) */
+    private static final int STRIPES = 16;
+
+    /**
+     * Create a blank concurrent counting map.
+     */
+    public ConcurrentCountMap() {
+        this.map = new ConcurrentHashMap<K, LongAdder>();
+        this.total = new LongAdder();
+        this.locks = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            this.locks[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Increment the count for a key.
+     *
+     * @param key	key of interest
+     */
+    public void count(K key) {
+        this.count(key, 1);
+    }
+
+    /**
+     * Add a number to the count for a key.
+     *
+     * @param key	key of interest
+     * @param num	number to add to the count (must not be negative)
+     *
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void count(K key, int num) {
+        if (num < 0)
+            throw new IllegalArgumentException("Concurrent count map cannot count negative values.");
+        ReentrantReadWriteLock.ReadLock lock = this.locks[stripe()].readLock();
+        lock.lock();
+        try {
+            LongAdder counter = this.map.get(key);
+            if (counter == null)
+                counter = this.map.computeIfAbsent(key, x -> new LongAdder());
+            counter.add(num);
+            this.total.add(num);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the index of the lock stripe for the current thread
+     */
+    private static int stripe() {
+        int h = System.identityHashCode(Thread.currentThread());
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Take the write locks of all the stripes, stopping all counting.
+     */
+    private void lockAll() {
+        for (ReentrantReadWriteLock lock : this.locks)
+            lock.writeLock().lock();
+    }
+
+    /**
+     * Release the write locks of all the stripes, in reverse order.
+     */
+    private void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--)
+            this.locks[i].writeLock().unlock();
+    }
+
+    /**
+     * Accumulate all the counts from a standard count map into this map.
+     *
+     * @param otherMap		other map whose counts are to be added (must not contain negative counts)
+     *
+     * @throws IllegalArgumentException if the other map contains a negative count
+     */
+    public void accumulate(CountMap<K> otherMap) {
+        for (CountMap<K>.Count counter : otherMap.counts())
+            this.count(counter.getKey(), counter.getCount());
+    }
+
+    /**
+     * @return the current count for a given key (which is 0 if the key is unknown)
+     *
+     * @param key	key for the counter of interest
+     */
+    public long getCount(K key) {
+        LongAdder counter = this.map.get(key);
+        return (counter == null ? 0 : counter.sum());
+    }
+
+    /**
+     * @return the current total of all the counts
+     */
+    public long getTotal() {
+        return this.total.sum();
+    }
+
+    /**
+     * @return the number of keys in this map
+     */
+    public int size() {
+        return this.map.size();
+    }
+
+    /**
+     * @return a view of the set of keys in this map
+     */
+    public Set<K> keySet() {
+        return this.map.keySet();
+    }
+
+    /**
+     * Take a consistent snapshot of this map.  Counting is paused while the snapshot is taken.
+     *
+     * @return a standard count map containing the current counts
+     *
+     * @throws ArithmeticException if a count is too big for a standard count map
+     */
+    public CountMap<K> snapshot() {
+        CountMap<K> retVal = new CountMap<K>();
+        this.lockAll();
+        try {
+            for (var entry : this.map.entrySet())
+                retVal.setCount(entry.getKey(), Math.toIntExact(entry.getValue().sum()));
+        } finally {
+            this.unlockAll();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a snapshot of all the counts in this map, sorted from highest to lowest
+     */
+    public List<CountMap<K>.Count> sortedCounts() {
+        return this.snapshot().sortedCounts();
+    }
+
+    /**
+     * @return the counter entry with the highest count in a snapshot, or NULL if there are no counts
+     */
+    public CountMap<K>.Count getBestEntry() {
+        return this.snapshot().getBestEntry();
+    }
+
+    /**
+     * Erase all keys and counts from this map.  Counting is paused while the map is erased.
+     */
+    public void deleteAll() {
+        this.lockAll();
+        try {
+            this.map.clear();
+            this.total.reset();
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+}
@@ -19,6 +19,8 @@ import java.util.TreeSet;
  *
  * This class will fail if the string representations of two unequal objects are the same.
  *
+ * Each key uses a separate counter object.  For very large key sets, {@link CompactCountMap} uses much less memory.
+ *
  * @author Bruce Parrello
  *
  */
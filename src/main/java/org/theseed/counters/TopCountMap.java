@@ -0,0 +1,531 @@
+/**
+ *
+ */
+package org.theseed.counters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.theseed.io.LineReader;
+
+/**
+ * This is a bounded counting map for finding the most common keys in a stream with too many distinct keys to count
+ * exactly.  It uses the Space-Saving algorithm:  at most a fixed number of keys are tracked, and when a new key arrives
+ * and the map is full, the new key replaces the key with the lowest count, inheriting that count as its error.
+ *
+ * If N is the total of all counts and M the capacity, then
+ * <ul>
+ * <li>the count reported for a key is never less than its true count, and never more than the true count plus the
+ * key's error;</li>
+ * <li>the error is never more than the lowest count in the map, which is at most N / M; and</li>
+ * <li>every key whose true count is more than N / M is guaranteed to be in the map.</li>
+ * </ul>
+ *
+ * So, for example, to find the top 100 keys reliably, the capacity should be several times 100.  Two maps can be merged
+ * with {@link #accumulate(TopCountMap)}, which preserves the same bounds for the combined total, so maps built by different
+ * threads or on different machines (see {@link #save(File)} and {@link #load(File, Function)}) can be combined.
+ *
+ * The counter objects returned are read-only snapshots.  The map is not thread-safe.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TopCountMap<K> {
+
+    // FIELDS
+    /** maximum number of keys to track */
+    private final int capacity;
+    /** map of keys to tracked entries */
+    private final Map<K, Entry<K>> map;
+    /** min-heap of tracked entries, ordered by count */
+    private final Entry<?>[] heap;
+    /** number of entries in the heap */
+    private int size;
+    /** total of all counts */
+    private long total;
+    /** marker at the start of a saved map file */
+    private static final String FILE_MARKER = "#topcounts";
+
+    /**
+     * This is a tracked key in the heap.
+     */
+    private static class Entry<K> {
+
+        /** key being counted */
+        private K key;
+        /** estimated count */
+        private int num;
+        /** maximum overestimate in the count */
+        private int error;
+        /** position in the heap */
+        private int pos;
+
+        /**
+         * Create a new tracked entry.
+         *
+         * @param key		key being counted
+         * @param num		estimated count
+         * @param error		maximum overestimate
+         */
+        protected Entry(K key, int num, int error) {
+            this.key = key;
+            this.num = num;
+            this.error = error;
+        }
+
+    }
+
+    /**
+     * This is a read-only snapshot of a single key's estimated count.
+     */
+    public static class Count<K> implements Comparable<Count<K>> {
+
+        /** key counted */
+        private final K key;
+        /** estimated count for the key */
+        private final int num;
+        /** maximum overestimate in the count */
+        private final int error;
+
+        /**
+         * Create a snapshot of a count.
+         *
+         * @param key		key being counted
+         * @param num		estimated count for the key
+         * @param error		maximum overestimate in the count
+         */
+        protected Count(K key, int num, int error) {
+            this.key = key;
+            this.num = num;
+            this.error = error;
+        }
+
+        /**
+         * @return the key counted by this counter.
+         */
+        public K getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return the estimated count for this key (never less than the true count)
+         */
+        public int getCount() {
+            return this.num;
+        }
+
+        /**
+         * @return the maximum amount by which the count exceeds the true count
+         */
+        public int getError() {
+            return this.error;
+        }
+
+        /**
+         * @return the guaranteed minimum for the true count
+         */
+        public int getGuaranteed() {
+            return this.num - this.error;
+        }
+
+        /**
+         * The sort order is highest count to lowest count.  If counts are equal but the keys
+         * are not, we sort by the string representation.
+         */
+        @Override
+        public int compareTo(Count<K> o) {
+            int retVal = Integer.compare(o.num, this.num);
+            if (retVal == 0)
+                retVal = this.key.toString().compareTo(o.key.toString());
+            return retVal;
+        }
+
+        /**
+         * The string representation includes the key, the count, and the error.
+         */
+        @Override
+        public String toString() {
+            return String.format("%s (%d occurrences, error %d)", this.key.toString(), this.num, this.error);
+        }
+
+    }
+
+    /**
+     * Create a blank top-K counting map.
+     *
+     * @param capacity		maximum number of keys to track
+     */
+    public TopCountMap(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Top-count map capacity must be positive.");
+        this.capacity = capacity;
+        this.map = new HashMap<K, Entry<K>>(capacity * 4 / 3 + 1);
+        this.heap = new Entry<?>[capacity];
+        this.size = 0;
+        this.total = 0;
+    }
+
+    /**
+     * Increment the count for a key.
+     *
+     * @param key	key of interest
+     *
+     * @return the new estimated count
+     */
+    public int count(K key) {
+        return this.count(key, 1);
+    }
+
+    /**
+     * Add a number to the count for a key.
+     *
+     * @param key	key of interest
+     * @param num	number to add (must not be negative)
+     *
+     * @return the new estimated count
+     */
+    public int count(K key, int num) {
+        if (num < 0)
+            throw new IllegalArgumentException("Top-count map cannot count negative values.");
+        this.total += num;
+        return this.add(key, num, 0);
+    }
+
+    /**
+     * Add a count and error to a key.  If the key is new and the map is full, the key with the lowest count
+     * is replaced, and the new key inherits its count as additional error.
+     *
+     * @param key		key of interest
+     * @param num		number to add to the count
+     * @param error		number to add to the error
+     *
+     * @return the new estimated count
+     */
+    private int add(K key, int num, int error) {
+        Entry<K> entry = this.map.get(key);
+        if (entry != null) {
+            entry.num += num;
+            entry.error += error;
+            this.siftDown(entry.pos);
+        } else if (this.size < this.capacity) {
+            entry = new Entry<K>(key, num, error);
+            entry.pos = this.size;
+            this.heap[this.size] = entry;
+            this.size++;
+            this.map.put(key, entry);
+            this.siftUp(entry.pos);
+        } else {
+            // Replace the minimum entry.  It is reused to avoid creating a new object.
+            entry = this.entryAt(0);
+            this.map.remove(entry.key);
+            entry.key = key;
+            entry.error = entry.num + error;
+            entry.num += num;
+            this.map.put(key, entry);
+            this.siftDown(0);
+        }
+        return entry.num;
+    }
+
+    /**
+     * @return the entry at the specified heap position
+     *
+     * @param pos	heap position of interest
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<K> entryAt(int pos) {
+        return (Entry<K>) this.heap[pos];
+    }
+
+    /**
+     * Move an entry toward the root of the heap until its parent is not bigger.
+     *
+     * @param pos	position of the entry to move
+     */
+    private void siftUp(int pos) {
+        Entry<K> entry = this.entryAt(pos);
+        while (pos > 0) {
+            int parent = (pos - 1) >> 1;
+            Entry<K> other = this.entryAt(parent);
+            if (other.num <= entry.num)
+                break;
+            this.heap[pos] = other;
+            other.pos = pos;
+            pos = parent;
+        }
+        this.heap[pos] = entry;
+        entry.pos = pos;
+    }
+
+    /**
+     * Move an entry toward the leaves of the heap until neither child is smaller.
+     *
+     * @param pos	position of the entry to move
+     */
+    private void siftDown(int pos) {
+        Entry<K> entry = this.entryAt(pos);
+        final int half = this.size >> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            Entry<K> other = this.entryAt(child);
+            int right = child + 1;
+            if (right < this.size && this.entryAt(right).num < other.num) {
+                child = right;
+                other = this.entryAt(child);
+            }
+            if (entry.num <= other.num)
+                break;
+            this.heap[pos] = other;
+            other.pos = pos;
+            pos = child;
+        }
+        this.heap[pos] = entry;
+        entry.pos = pos;
+    }
+
+    /**
+     * @return the estimated count for a key (0 if the key is not tracked)
+     *
+     * @param key	key of interest
+     */
+    public int getCount(K key) {
+        Entry<K> entry = this.map.get(key);
+        return (entry == null ? 0 : entry.num);
+    }
+
+    /**
+     * @return the count snapshot for a key, or NULL if the key is not tracked
+     *
+     * @param key	key of interest
+     */
+    public Count<K> findCounter(K key) {
+        Entry<K> entry = this.map.get(key);
+        return (entry == null ? null : new Count<K>(entry.key, entry.num, entry.error));
+    }
+
+    /**
+     * @return TRUE if the key is being tracked
+     *
+     * @param key	key of interest
+     */
+    public boolean containsKey(K key) {
+        return this.map.containsKey(key);
+    }
+
+    /**
+     * @return the lowest count in the map, which is the maximum error for any key (0 if the map is not full)
+     */
+    public int getMinCount() {
+        return (this.size < this.capacity ? 0 : this.entryAt(0).num);
+    }
+
+    /**
+     * @return the total of all counts, including counts for keys no longer tracked
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+    /**
+     * @return the number of keys being tracked
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the maximum number of keys that can be tracked
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the set of keys being tracked
+     */
+    public Set<K> keys() {
+        return new HashSet<K>(this.map.keySet());
+    }
+
+    /**
+     * @return an unordered list of count snapshots for all the keys being tracked
+     */
+    public List<Count<K>> counts() {
+        List<Count<K>> retVal = new ArrayList<Count<K>>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            Entry<K> entry = this.entryAt(i);
+            retVal.add(new Count<K>(entry.key, entry.num, entry.error));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a list of count snapshots for all the keys being tracked, sorted from highest to lowest count
+     */
+    public List<Count<K>> sortedCounts() {
+        List<Count<K>> retVal = this.counts();
+        Collections.sort(retVal);
+        return retVal;
+    }
+
+    /**
+     * Return the counts for the K highest keys.
+     *
+     * @param k		number of keys desired
+     *
+     * @return a list of count snapshots for the top keys, sorted from highest to lowest count
+     */
+    public List<Count<K>> top(int k) {
+        List<Count<K>> retVal = this.sortedCounts();
+        if (retVal.size() > k)
+            retVal = new ArrayList<Count<K>>(retVal.subList(0, k));
+        return retVal;
+    }
+
+    /**
+     * @return the count snapshot with the highest count, or NULL if the map is empty
+     */
+    public Count<K> getBestEntry() {
+        Count<K> retVal = null;
+        for (int i = 0; i < this.size; i++) {
+            Entry<K> entry = this.entryAt(i);
+            Count<K> counter = new Count<K>(entry.key, entry.num, entry.error);
+            if (retVal == null || counter.compareTo(retVal) < 0)
+                retVal = counter;
+        }
+        return retVal;
+    }
+
+    /**
+     * Merge another top-count map into this one.  A key missing from a full map may have a true count as high as
+     * that map's lowest count, so the lowest count is added to both the count and the error of such keys.  The
+     * highest merged counts are then kept.
+     *
+     * @param other		other map to merge into this one
+     */
+    public void accumulate(TopCountMap<K> other) {
+        final int myMin = this.getMinCount();
+        final int otherMin = other.getMinCount();
+        // Compute the merged counts for every key in either map.
+        List<Entry<K>> merged = new ArrayList<Entry<K>>(this.size + other.size);
+        for (int i = 0; i < this.size; i++) {
+            Entry<K> entry = this.entryAt(i);
+            Entry<K> otherEntry = other.map.get(entry.key);
+            if (otherEntry == null)
+                merged.add(new Entry<K>(entry.key, entry.num + otherMin, entry.error + otherMin));
+            else
+                merged.add(new Entry<K>(entry.key, entry.num + otherEntry.num, entry.error + otherEntry.error));
+        }
+        for (int i = 0; i < other.size; i++) {
+            Entry<K> otherEntry = other.entryAt(i);
+            if (! this.map.containsKey(otherEntry.key))
+                merged.add(new Entry<K>(otherEntry.key, otherEntry.num + myMin, otherEntry.error + myMin));
+        }
+        // Keep the highest counts.
+        merged.sort((a, b) -> Integer.compare(b.num, a.num));
+        this.clear();
+        final int n = Math.min(merged.size(), this.capacity);
+        for (int i = 0; i < n; i++)
+            this.add(merged.get(i).key, merged.get(i).num, merged.get(i).error);
+        this.total += other.total;
+    }
+
+    /**
+     * Accumulate all the counts from a standard count map into this map.
+     *
+     * @param otherMap		standard count map whose counts are to be added
+     */
+    public void accumulate(CountMap<K> otherMap) {
+        for (CountMap<K>.Count counter : otherMap.counts())
+            this.count(counter.getKey(), counter.getCount());
+    }
+
+    /**
+     * Erase all keys and counts from this map, but keep the total.
+     */
+    private void clear() {
+        this.map.clear();
+        for (int i = 0; i < this.size; i++)
+            this.heap[i] = null;
+        this.size = 0;
+    }
+
+    /**
+     * Erase all keys and counts from this map.
+     */
+    public void deleteAll() {
+        this.clear();
+        this.total = 0;
+    }
+
+    /**
+     * Save this map to a tab-delimited file, so it can be merged with maps from other processes.  The first
+     * line is a marker containing the capacity and the total.  It is followed by a column header, and then a
+     * line with the key, count, and error for each tracked key.  A key containing a tab or a line break cannot be
+     * saved.
+     *
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    public void save(File outFile) throws IOException {
+        List<Count<K>> counts = this.sortedCounts();
+        for (Count<K> counter : counts) {
+            String key = counter.getKey().toString();
+            if (StringUtils.containsAny(key, '\t', '\n', '\r'))
+                throw new IOException("Cannot save key \"" + StringUtils.replaceEach(key, new String[] { "\t", "\n", "\r" },
+                        new String[] { "\\t", "\\n", "\\r" }) + "\" because it contains a tab or line break.");
+        }
+        try (PrintWriter writer = new PrintWriter(outFile)) {
+            writer.format("%s\t%d\t%d%n", FILE_MARKER, this.capacity, this.total);
+            writer.println("key\tcount\terror");
+            for (Count<K> counter : counts)
+                writer.format("%s\t%d\t%d%n", counter.getKey().toString(), counter.getCount(), counter.getError());
+        }
+    }
+
+    /**
+     * Load a map saved by {@link #save(File)}.
+     *
+     * @param inFile	input file
+     * @param parser	function for converting key strings to keys
+     *
+     * @return the map read from the file
+     *
+     * @throws IOException
+     */
+    public static <K> TopCountMap<K> load(File inFile, Function<String, K> parser) throws IOException {
+        TopCountMap<K> retVal;
+        try (LineReader reader = new LineReader(inFile)) {
+            String[] meta = (reader.hasNext() ? StringUtils.split(reader.next(), '\t') : null);
+            if (meta == null || meta.length != 3 || ! meta[0].equals(FILE_MARKER) || ! reader.hasNext())
+                throw new IOException("File " + inFile + " is not a saved top-count map.");
+            // Skip the column header.
+            reader.next();
+            try {
+                retVal = new TopCountMap<K>(Integer.parseInt(meta[1]));
+                retVal.total = Long.parseLong(meta[2]);
+                for (String line : reader) {
+                    String[] fields = StringUtils.splitPreserveAllTokens(line, '\t');
+                    if (fields.length != 3)
+                        throw new IOException("Invalid line in top-count file " + inFile + ": " + line);
+                    retVal.add(parser.apply(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number in top-count file " + inFile + ": " + e.getMessage());
+            }
+        }
+        return retVal;
+    }
+
+}
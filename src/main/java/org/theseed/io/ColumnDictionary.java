@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object is an interning dictionary for the values of a single column in a {@link FieldInputStream}.  It maps
+ * each distinct raw column string to a single shared value list, so that records with the same value share one
+ * copy of the strings and the list.  The strings are also canonicalized with {@link String#intern()} when they are
+ * first added, so a value is the same object as an equal string constant, and equality tests against constants
+ * succeed on the identity check.  Because the dictionary has a maximum size, the JVM string pool only grows by a
+ * bounded amount per column.
+ *
+ * The dictionary has a maximum size.  If the column turns out to have more distinct values than that, the
+ * dictionary is discarded and interning is turned off for the column.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ColumnDictionary {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(ColumnDictionary.class);
+    /** maximum number of distinct values */
+    private final int maxSize;
+    /** map of raw strings to shared value lists, or NULL if the dictionary has overflowed */
+    private Map<String, List<String>> values;
+    /** default maximum number of distinct values */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Create an empty column dictionary.
+     *
+     * @param maxSize		maximum number of distinct values to hold
+     */
+    public ColumnDictionary(int maxSize) {
+        this.maxSize = maxSize;
+        this.values = new HashMap<String, List<String>>();
+    }
+
+    /**
+     * Get the shared value list for a raw column string.
+     *
+     * @param raw			raw column string
+     * @param builder		function for converting the raw string to a value list
+     *
+     * @return the shared value list, or NULL if the dictionary has overflowed
+     */
+    public List<String> intern(String raw, Function<String, List<String>> builder) {
+        List<String> retVal = null;
+        if (this.values != null) {
+            retVal = this.values.get(raw);
+            if (retVal == null) {
+                if (this.values.size() >= this.maxSize) {
+                    log.debug("Column dictionary overflowed at {} values; interning disabled.", this.maxSize);
+                    this.values = null;
+                } else {
+                    retVal = canonical(builder.apply(raw));
+                    this.values.put(raw, retVal);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return an unmodifiable copy of a value list with each string replaced by its canonical copy
+     *
+     * @param list		value list to canonicalize
+     */
+    private static List<String> canonical(List<String> list) {
+        String[] retVal = new String[list.size()];
+        for (int i = 0; i < retVal.length; i++)
+            retVal[i] = list.get(i).intern();
+        return List.of(retVal);
+    }
+
+    /**
+     * @return TRUE if this dictionary is still interning values
+     */
+    public boolean isActive() {
+        return (this.values != null);
+    }
+
+    /**
+     * @return the number of distinct values interned
+     */
+    public int size() {
+        return (this.values == null ? 0 : this.values.size());
+    }
+
+}
@@ -0,0 +1,688 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * This is the field-input stream handler for a columnar binary file.  Such a file is created from any other field-input
+ * stream by {@link #convert(FieldInputStream, File, String...)}, and is much faster to read, because no parsing is
+ * required.  Each column is stored separately, so columns the client never reads are never loaded.
+ *
+ * The file begins with a header containing the magic number, the version, the column count, the row count, the
+ * field names, and a directory giving the position and length of each column section.  Each column section
+ * contains a dictionary of the distinct strings in the column followed by the row data.  The row data is an
+ * array of offsets into an array of dictionary IDs, so that a row can contain a list of strings.
+ *
+ * A column section is memory-mapped the first time a record value from that column is requested, and dictionary
+ * strings are decoded as they are needed.  A mapped buffer is limited to 2 gigabytes, so large sections are mapped in
+ * chunks.  Decoded strings are kept in a bounded direct-mapped cache, so a column with
+ * a small dictionary decodes each string only once, while a column with millions of distinct values does not pin them
+ * all in memory.  The records returned decode their values on demand, so a record only remains valid while the
+ * stream is open.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ColumnarInputStream extends FieldInputStream {
+
+    // FIELDS
+    /** file channel for the input file */
+    private final FileChannel channel;
+    /** number of rows in the file */
+    private final int rows;
+    /** position of each column section */
+    private final long[] colPositions;
+    /** length of each column section */
+    private final long[] colLengths;
+    /** column readers, loaded on demand */
+    private final Column[] columns;
+    /** index of the next row to return */
+    private int nextRow;
+    /** input file name, for error messages */
+    private final String fileName;
+    /** log-2 of the size of a mapped chunk of a column section */
+    private final int chunkBits;
+    /** filename extension for columnar files */
+    public static final String EXTENSION = ".fcol";
+    /** magic number at the start of the file ("FCOL") */
+    private static final int MAGIC = 0x46434F4C;
+    /** current format version */
+    private static final int VERSION = 1;
+    /** maximum number of decoded strings cached for each column (must be a power of 2) */
+    private static final int MAX_CACHE_SIZE = 16384;
+    /** default log-2 of the size of a mapped chunk of a column section */
+    private static final int DEFAULT_CHUNK_BITS = 30;
+
+    /**
+     * This object is a decoded dictionary string in a column cache.  The ID and value are kept in one immutable
+     * object, so that a slot can never pair a value with the wrong ID.
+     */
+    private static class CachedString {
+
+        /** dictionary ID */
+        private final int id;
+        /** decoded string */
+        private final String value;
+
+        /**
+         * Create a cache entry.
+         *
+         * @param id		dictionary ID
+         * @param value		decoded string
+         */
+        protected CachedString(int id, String value) {
+            this.id = id;
+            this.value = value;
+        }
+
+    }
+
+    /**
+     * This object is a column section mapped in fixed-size chunks.  Each chunk after the first starts at a multiple
+     * of the chunk size, and each chunk is mapped a few bytes past its end, so that an integer that crosses a chunk
+     * boundary can be read from a single chunk.
+     */
+    private static class Section {
+
+        /** mapped chunks */
+        private final ByteBuffer[] chunks;
+        /** log-2 of the chunk size */
+        private final int chunkBits;
+        /** mask for computing a position within a chunk */
+        private final long chunkMask;
+
+        /**
+         * Map a column section.
+         *
+         * @param channel		channel for the columnar file
+         * @param pos			position of the section in the file
+         * @param len			length of the section
+         * @param chunkBits		log-2 of the chunk size
+         *
+         * @throws IOException
+         */
+        protected Section(FileChannel channel, long pos, long len, int chunkBits) throws IOException {
+            final long chunkSize = 1L << chunkBits;
+            this.chunkBits = chunkBits;
+            this.chunkMask = chunkSize - 1;
+            final int n = (int) ((len + chunkSize - 1) >>> chunkBits);
+            this.chunks = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                final long start = i * chunkSize;
+                this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos + start,
+                        Math.min(len - start, chunkSize + Integer.BYTES));
+            }
+        }
+
+        /**
+         * @return the integer at the specified position in the section
+         *
+         * @param pos	position of the integer
+         */
+        protected int getInt(long pos) {
+            return this.chunks[(int) (pos >>> this.chunkBits)].getInt((int) (pos & this.chunkMask));
+        }
+
+        /**
+         * Copy bytes from the section into an array.
+         *
+         * @param pos		position of the first byte
+         * @param bytes		array to fill
+         */
+        protected void get(long pos, byte[] bytes) {
+            int done = 0;
+            while (done < bytes.length) {
+                final int offset = (int) (pos & this.chunkMask);
+                final int n = (int) Math.min(bytes.length - done, this.chunkMask + 1 - offset);
+                this.chunks[(int) (pos >>> this.chunkBits)].get(offset, bytes, done, n);
+                done += n;
+                pos += n;
+            }
+        }
+
+    }
+
+    /**
+     * This object reads the data for a single column from a mapped section.
+     */
+    private static class Column {
+
+        /** number of strings in the dictionary */
+        private final int dictSize;
+        /** position of the dictionary offsets in the section */
+        private final long dictOffsetPos;
+        /** position of the string data in the section */
+        private final long blobPos;
+        /** position of the row offsets in the section */
+        private final long rowOffsetPos;
+        /** position of the dictionary IDs in the section */
+        private final long idPos;
+        /** mapped column section */
+        private final Section buffer;
+        /** cache of decoded dictionary strings, indexed by dictionary ID modulo the cache size */
+        private final CachedString[] strings;
+        /** mask for computing a cache slot from a dictionary ID */
+        private final int cacheMask;
+
+        /**
+         * Set up to read a column section.
+         *
+         * @param buffer	mapped column section
+         * @param rows		number of rows in the file
+         */
+        protected Column(Section buffer, int rows) {
+            this.buffer = buffer;
+            this.dictSize = buffer.getInt(0);
+            this.dictOffsetPos = Integer.BYTES;
+            this.blobPos = this.dictOffsetPos + (this.dictSize + 1L) * Integer.BYTES;
+            int blobLen = buffer.getInt(this.dictOffsetPos + (long) this.dictSize * Integer.BYTES);
+            this.rowOffsetPos = this.blobPos + blobLen;
+            this.idPos = this.rowOffsetPos + (rows + 1L) * Integer.BYTES;
+            // If the dictionary fits in the cache, every ID gets its own slot.
+            int cacheSize = (this.dictSize <= 1 ? 1 : Math.min(Integer.highestOneBit(this.dictSize - 1) << 1, MAX_CACHE_SIZE));
+            this.cacheMask = cacheSize - 1;
+            this.strings = new CachedString[cacheSize];
+        }
+
+        /**
+         * @return the dictionary string with the specified ID
+         *
+         * @param id	ID of the desired string
+         */
+        private String getString(int id) {
+            String retVal;
+            final int slot = id & this.cacheMask;
+            CachedString cached = this.strings[slot];
+            if (cached != null && cached.id == id)
+                retVal = cached.value;
+            else {
+                int start = this.buffer.getInt(this.dictOffsetPos + (long) id * Integer.BYTES);
+                int end = this.buffer.getInt(this.dictOffsetPos + (id + 1L) * Integer.BYTES);
+                byte[] bytes = new byte[end - start];
+                this.buffer.get(this.blobPos + start, bytes);
+                retVal = new String(bytes, StandardCharsets.UTF_8);
+                this.strings[slot] = new CachedString(id, retVal);
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the value of this column in the specified row
+         *
+         * @param row	index of the desired row
+         */
+        protected List<String> getValue(int row) {
+            List<String> retVal;
+            int start = this.buffer.getInt(this.rowOffsetPos + (long) row * Integer.BYTES);
+            int end = this.buffer.getInt(this.rowOffsetPos + (row + 1L) * Integer.BYTES);
+            final int n = end - start;
+            switch (n) {
+            case 0:
+                retVal = Attribute.EMPTY_LIST;
+                break;
+            case 1:
+                retVal = List.of(this.getString(this.buffer.getInt(this.idPos + (long) start * Integer.BYTES)));
+                break;
+            default:
+                String[] values = new String[n];
+                for (int i = 0; i < n; i++)
+                    values[i] = this.getString(this.buffer.getInt(this.idPos + ((long) start + i) * Integer.BYTES));
+                retVal = Arrays.asList(values);
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * This is a list of the field values in a single row.  The values are decoded when requested.  A row
+     * object can be pointed at a new row when a batch reuses its record.
+     */
+    private class Row extends AbstractList<List<String>> {
+
+        /** index of this row */
+        private int row;
+
+        /**
+         * Create the field list for a row.
+         *
+         * @param row	index of the row
+         */
+        protected Row(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public List<String> get(int index) {
+            return ColumnarInputStream.this.getColumn(index).getValue(this.row);
+        }
+
+        @Override
+        public int size() {
+            return ColumnarInputStream.this.columns.length;
+        }
+
+    }
+
+    /**
+     * This object accumulates the data for a single column during conversion.  The dictionary is kept in memory,
+     * but the row offsets and dictionary IDs are written to temporary files as the rows are added, and copied into
+     * the columnar file at the end.
+     */
+    private static class ColumnBuilder {
+
+        /** map of strings to dictionary IDs */
+        private final Map<String, Integer> dictMap;
+        /** dictionary strings, in ID order, as UTF-8 */
+        private final List<byte[]> dictionary;
+        /** total length of the dictionary strings */
+        private long blobLen;
+        /** temporary file for the row offsets */
+        private final File rowFile;
+        /** temporary file for the dictionary IDs */
+        private final File idFile;
+        /** output stream for the row offsets */
+        private DataOutputStream rowStream;
+        /** output stream for the dictionary IDs */
+        private DataOutputStream idStream;
+        /** number of rows stored */
+        private int rows;
+        /** number of IDs stored */
+        private int idCount;
+
+        /**
+         * Create an empty column builder.
+         *
+         * @param tempDir	directory for the temporary files
+         *
+         * @throws IOException
+         */
+        protected ColumnBuilder(File tempDir) throws IOException {
+            this.dictMap = new HashMap<String, Integer>();
+            this.dictionary = new ArrayList<byte[]>();
+            this.blobLen = 0;
+            this.rowFile = File.createTempFile("rows", ".tmp", tempDir);
+            this.idFile = File.createTempFile("ids", ".tmp", tempDir);
+            this.rowStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.rowFile)));
+            this.idStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.idFile)));
+            this.rows = 0;
+            this.idCount = 0;
+        }
+
+        /**
+         * Add a row value to this column.
+         *
+         * @param value		list of strings in the column for the row
+         *
+         * @throws IOException
+         */
+        protected void add(List<String> value) throws IOException {
+            if (this.idCount > Integer.MAX_VALUE - value.size())
+                throw new IOException("Too many values in column for columnar file.");
+            this.rowStream.writeInt(this.idCount);
+            this.rows++;
+            for (String string : value) {
+                Integer id = this.dictMap.get(string);
+                if (id == null) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    if (this.blobLen + bytes.length > Integer.MAX_VALUE)
+                        throw new IOException("Column dictionary too large for columnar file.");
+                    id = this.dictionary.size();
+                    this.dictMap.put(string, id);
+                    this.dictionary.add(bytes);
+                    this.blobLen += bytes.length;
+                }
+                this.idStream.writeInt(id);
+                this.idCount++;
+            }
+        }
+
+        /**
+         * Finish the temporary files.
+         *
+         * @throws IOException
+         */
+        protected void finish() throws IOException {
+            this.rowStream.writeInt(this.idCount);
+            this.rowStream.close();
+            this.rowStream = null;
+            this.idStream.close();
+            this.idStream = null;
+        }
+
+        /**
+         * @return the length of the column section in bytes
+         */
+        protected long length() {
+            final int dictSize = this.dictionary.size();
+            return Integer.BYTES * (1 + dictSize + 1 + this.rows + 1 + (long) this.idCount) + this.blobLen;
+        }
+
+        /**
+         * Write this column section to an output stream.  The builder must be finished first.
+         *
+         * @param outStream		output stream for the columnar file
+         *
+         * @throws IOException
+         */
+        protected void write(DataOutputStream outStream) throws IOException {
+            final int dictSize = this.dictionary.size();
+            outStream.writeInt(dictSize);
+            int offset = 0;
+            for (byte[] bytes : this.dictionary) {
+                outStream.writeInt(offset);
+                offset += bytes.length;
+            }
+            outStream.writeInt(offset);
+            for (byte[] bytes : this.dictionary)
+                outStream.write(bytes);
+            Files.copy(this.rowFile.toPath(), outStream);
+            Files.copy(this.idFile.toPath(), outStream);
+        }
+
+        /**
+         * Close and delete the temporary files.
+         */
+        protected void delete() {
+            try {
+                if (this.rowStream != null)
+                    this.rowStream.close();
+                if (this.idStream != null)
+                    this.idStream.close();
+            } catch (IOException e) {
+                // The files are being discarded, so errors do not matter.
+            }
+            this.rowFile.delete();
+            this.idFile.delete();
+        }
+
+    }
+
+    /**
+     * Open a columnar binary file for input.
+     *
+     * @param inputFile		columnar file to read
+     *
+     * @throws IOException
+     */
+    public ColumnarInputStream(File inputFile) throws IOException {
+        this(inputFile, DEFAULT_CHUNK_BITS);
+    }
+
+    /**
+     * Open a columnar binary file for input, specifying the size of the mapped chunks.  This is used to test
+     * reading values that cross chunk boundaries.
+     *
+     * @param inputFile		columnar file to read
+     * @param chunkBits		log-2 of the chunk size, which must be between 3 and 30
+     *
+     * @throws IOException
+     */
+    protected ColumnarInputStream(File inputFile, int chunkBits) throws IOException {
+        super();
+        if (chunkBits < 3 || chunkBits > DEFAULT_CHUNK_BITS)
+            throw new IllegalArgumentException("Invalid chunk size 2^" + chunkBits + " for columnar file.");
+        this.chunkBits = chunkBits;
+        this.fileName = inputFile.toString();
+        this.channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+        try {
+            // Read the fixed part of the header.
+            ByteBuffer fixed = this.read(0, 4 * Integer.BYTES);
+            if (fixed.getInt() != MAGIC)
+                throw new IOException("File " + this.fileName + " is not a columnar field-input file.");
+            int version = fixed.getInt();
+            if (version != VERSION)
+                throw new IOException("File " + this.fileName + " has unsupported columnar version " + version + ".");
+            final int cols = fixed.getInt();
+            this.rows = fixed.getInt();
+            // Read the field names.
+            long pos = 4 * Integer.BYTES;
+            for (int i = 0; i < cols; i++) {
+                int len = this.read(pos, Integer.BYTES).getInt();
+                pos += Integer.BYTES;
+                ByteBuffer nameBuffer = this.read(pos, len);
+                pos += len;
+                this.addFieldName(StandardCharsets.UTF_8.decode(nameBuffer).toString());
+            }
+            // Read the column directory.
+            ByteBuffer directory = this.read(pos, cols * 2 * Long.BYTES);
+            this.colPositions = new long[cols];
+            this.colLengths = new long[cols];
+            for (int i = 0; i < cols; i++) {
+                this.colPositions[i] = directory.getLong();
+                this.colLengths[i] = directory.getLong();
+            }
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.columns = new Column[this.colPositions.length];
+        this.nextRow = 0;
+    }
+
+    /**
+     * Read a section of the file into a buffer.
+     *
+     * @param pos	position in the file
+     * @param len	number of bytes to read
+     *
+     * @return a buffer containing the bytes read, positioned at the start
+     *
+     * @throws IOException
+     */
+    private ByteBuffer read(long pos, int len) throws IOException {
+        ByteBuffer retVal = ByteBuffer.allocate(len);
+        while (retVal.hasRemaining()) {
+            int n = this.channel.read(retVal, pos + retVal.position());
+            if (n < 0)
+                throw new IOException("Unexpected end of file in " + this.fileName + ".");
+        }
+        retVal.flip();
+        return retVal;
+    }
+
+    /**
+     * @return the reader for the specified column, mapping it if necessary
+     *
+     * @param colIdx	index of the desired column
+     */
+    private Column getColumn(int colIdx) {
+        if (colIdx < 0 || colIdx >= this.columns.length)
+            throw new IllegalArgumentException("Invalid column index " + Integer.toString(colIdx) + " used for field-input stream.");
+        Column retVal = this.columns[colIdx];
+        if (retVal == null) {
+            try {
+                Section buffer = new Section(this.channel, this.colPositions[colIdx], this.colLengths[colIdx],
+                        this.chunkBits);
+                retVal = new Column(buffer, this.rows);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.columns[colIdx] = retVal;
+        }
+        return retVal;
+    }
+
+    @Override
+    protected boolean hasNextRecord() {
+        return this.nextRow < this.rows;
+    }
+
+    @Override
+    protected Record nextRecord() {
+        if (this.nextRow >= this.rows)
+            throw new NoSuchElementException("Attempt to read past end of " + this.fileName + ".");
+        Record retVal = this.new Record(new Row(this.nextRow));
+        this.nextRow++;
+        return retVal;
+    }
+
+    @Override
+    protected Record nextRecord(Record spare) {
+        Record retVal;
+        if (spare == null)
+            retVal = this.nextRecord();
+        else {
+            if (this.nextRow >= this.rows)
+                throw new NoSuchElementException("Attempt to read past end of " + this.fileName + ".");
+            ((Row) spare.getFields()).row = this.nextRow;
+            this.nextRow++;
+            retVal = spare;
+        }
+        return retVal;
+    }
+
+    @Override
+    protected Record copyRecord(Record record) {
+        // The copy still decodes its values on demand, so it is only usable while the stream is open.
+        return this.new Record(new Row(((Row) record.getFields()).row));
+    }
+
+    @Override
+    public int getLineNumber() {
+        return this.nextRow;
+    }
+
+    @Override
+    public int findField(String fieldName) throws IOException {
+        int retVal = this.findColumn(fieldName);
+        if (retVal < 0)
+            throw new IOException("No column named \"" + fieldName + "\" found in input stream.");
+        return retVal;
+    }
+
+    /**
+     * @return the number of records in this file
+     */
+    public int size() {
+        return this.rows;
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Convert a field-input stream to a columnar binary file.  If no field names are specified, all the fields
+     * currently known to the input stream are converted.  For a tab-delimited file, this is all the columns, but
+     * a JSON file only knows the fields it has been asked for, so the desired field names should be specified.
+     *
+     * The input stream should be positioned at the start, and will be read to the end.  The row data for each
+     * column is written to temporary files in the output directory during the read, so only the column dictionaries
+     * are held in memory.
+     *
+     * @param inStream		input stream to convert
+     * @param outFile		output columnar file
+     * @param fieldNames	names of the fields to convert
+     *
+     * @return the number of records converted
+     *
+     * @throws IOException
+     */
+    public static int convert(FieldInputStream inStream, File outFile, String... fieldNames) throws IOException {
+        // Get the names and indexes of the columns to convert.
+        List<String> names;
+        int[] cols;
+        if (fieldNames.length == 0) {
+            names = new ArrayList<String>(inStream.getFieldNames());
+            cols = new int[names.size()];
+            for (int i = 0; i < cols.length; i++)
+                cols[i] = i;
+        } else {
+            names = new ArrayList<String>(fieldNames.length);
+            cols = new int[fieldNames.length];
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = inStream.findField(fieldNames[i]);
+                names.add(fieldNames[i]);
+            }
+        }
+        File tempDir = outFile.getAbsoluteFile().getParentFile();
+        ColumnBuilder[] builders = new ColumnBuilder[cols.length];
+        int retVal = 0;
+        try {
+            // Read the records into the column builders.
+            for (int i = 0; i < cols.length; i++)
+                builders[i] = new ColumnBuilder(tempDir);
+            for (FieldInputStream.Record record : inStream) {
+                for (int i = 0; i < cols.length; i++)
+                    builders[i].add(record.getList(cols[i]));
+                retVal++;
+            }
+            for (ColumnBuilder builder : builders)
+                builder.finish();
+            write(outFile, names, builders, retVal);
+        } finally {
+            for (ColumnBuilder builder : builders) {
+                if (builder != null)
+                    builder.delete();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Write a columnar binary file from finished column builders.
+     *
+     * @param outFile		output columnar file
+     * @param names			names of the columns
+     * @param builders		finished column builders, in column order
+     * @param rows			number of rows
+     *
+     * @throws IOException
+     */
+    private static void write(File outFile, List<String> names, ColumnBuilder[] builders, int rows) throws IOException {
+        // Compute the header length.
+        List<byte[]> nameBytes = new ArrayList<byte[]>(names.size());
+        long pos = 4 * Integer.BYTES;
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            nameBytes.add(bytes);
+            pos += Integer.BYTES + bytes.length;
+        }
+        pos += builders.length * 2 * Long.BYTES;
+        // Write the file.
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)))) {
+            outStream.writeInt(MAGIC);
+            outStream.writeInt(VERSION);
+            outStream.writeInt(builders.length);
+            outStream.writeInt(rows);
+            for (byte[] bytes : nameBytes) {
+                outStream.writeInt(bytes.length);
+                outStream.write(bytes);
+            }
+            for (ColumnBuilder builder : builders) {
+                long len = builder.length();
+                outStream.writeLong(pos);
+                outStream.writeLong(len);
+                pos += len;
+            }
+            for (ColumnBuilder builder : builders)
+                builder.write(outStream);
+        }
+    }
+
+}
@@ -0,0 +1,371 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object lazily enumerates the entries of a directory that pass a filter.  The entries come from a directory
+ * stream, so processing can begin before the whole directory has been read, and the list of entries is never held
+ * in memory.
+ *
+ * Optionally, an index file can be specified.  When a full scan finishes, the names of the entries found are
+ * written to the index file, which is stamped with the directory's modification time from before the scan.  If the
+ * index file is at least as new as the directory on a later scan, the names are read from the index without scanning
+ * the directory or re-checking the filter.  Adding, deleting, or renaming an entry updates the directory's
+ * modification time, which invalidates the index.
+ *
+ * Many file systems only keep modification times to the second, so a change made in the same second the scan
+ * started would not move the directory time past the index stamp.  If the directory time is that close to the start
+ * of the scan, the index is stamped one granule early, so the next scan does not trust it.  An index kept inside the
+ * directory is itself a change to the directory; it is checked against the directory time from before the index was
+ * touched, and cannot see a change made by someone else in the same second the index is written.
+ *
+ * The iterator holds an open directory stream (or index reader) and, during a scan, an open temporary index file.
+ * These are released when the iteration runs out of entries.  A caller that may stop early should close the
+ * iterator, or use {@link #stream()} in a try-with-resources block.  Closing an unfinished scan discards the
+ * temporary index.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DirectoryScanner implements Iterable<File> {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(DirectoryScanner.class);
+    /** directory to scan */
+    private final File dir;
+    /** filter for entries to return */
+    private final FileFilter filter;
+    /** index file, or NULL if there is none */
+    private final File indexFile;
+    /** granularity of file modification times, in milliseconds */
+    private static final long TIME_GRANULARITY = 1000;
+
+    /**
+     * This interface describes an iterator through the directory entries that can be closed early.
+     */
+    public interface Iter extends Iterator<File>, AutoCloseable {
+
+        /**
+         * Release the resources held by this iterator.  This is safe to call more than once.
+         */
+        @Override
+        public void close();
+
+    }
+
+    /**
+     * This iterator returns the entries listed in a valid index file.
+     */
+    private class IndexIter implements Iter {
+
+        /** reader for the index file */
+        private BufferedReader reader;
+        /** next entry name, or NULL at end of file */
+        private String nextName;
+
+        /**
+         * Open the index file.
+         *
+         * @throws IOException
+         */
+        protected IndexIter() throws IOException {
+            this.reader = Files.newBufferedReader(DirectoryScanner.this.indexFile.toPath(), StandardCharsets.UTF_8);
+            try {
+                this.advance();
+            } catch (RuntimeException e) {
+                this.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Read the next entry name, closing the file at the end.
+         */
+        private void advance() {
+            try {
+                this.nextName = this.reader.readLine();
+                if (this.nextName == null)
+                    this.close();
+            } catch (IOException e) {
+                this.close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (this.nextName != null);
+        }
+
+        @Override
+        public File next() {
+            if (this.nextName == null)
+                throw new NoSuchElementException("Attempt to read past end of directory index.");
+            File retVal = new File(DirectoryScanner.this.dir, this.nextName);
+            this.advance();
+            return retVal;
+        }
+
+        @Override
+        public void close() {
+            this.nextName = null;
+            if (this.reader != null) {
+                try {
+                    this.reader.close();
+                } catch (IOException e) {
+                    log.warn("Error closing directory index {}: {}", DirectoryScanner.this.indexFile, e.toString());
+                }
+                this.reader = null;
+            }
+        }
+
+    }
+
+    /**
+     * This iterator scans the directory, and writes the index file if one was specified.
+     */
+    private class ScanIter implements Iter {
+
+        /** directory stream being scanned, or NULL if it has been closed */
+        private DirectoryStream<Path> dirStream;
+        /** iterator through the directory stream */
+        private Iterator<Path> iter;
+        /** next entry to return, or NULL if we are at the end */
+        private File nextFile;
+        /** temporary file for the new index, or NULL if there is none */
+        private Path tempFile;
+        /** writer for the new index, or NULL if there is none */
+        private PrintWriter indexWriter;
+        /** modification time of the directory before the scan */
+        private long scanTime;
+        /** TRUE if the directory was modified too close to the start of the scan to trust the index */
+        private boolean recent;
+
+        /**
+         * Open the index output and the directory stream.
+         *
+         * @throws IOException
+         */
+        protected ScanIter() throws IOException {
+            final File indexFile = DirectoryScanner.this.indexFile;
+            final File dir = DirectoryScanner.this.dir;
+            try {
+                // An index inside the directory is checked against the time before we create its temporary file.
+                long quietTime = dir.lastModified();
+                if (indexFile != null) {
+                    // The temporary file goes in the index's directory, so the final move can be atomic.
+                    Path indexDir = indexFile.getAbsoluteFile().getParentFile().toPath();
+                    this.tempFile = Files.createTempFile(indexDir, indexFile.getName(), ".tmp");
+                    this.indexWriter = new PrintWriter(Files.newBufferedWriter(this.tempFile, StandardCharsets.UTF_8));
+                }
+                // Creating the temporary file may have touched the directory, so we get the time afterward.
+                this.scanTime = dir.lastModified();
+                long startTime = System.currentTimeMillis();
+                if (indexFile == null || ! DirectoryScanner.this.isIndexInDir())
+                    quietTime = this.scanTime;
+                this.recent = (startTime - quietTime < TIME_GRANULARITY);
+                this.dirStream = Files.newDirectoryStream(DirectoryScanner.this.dir.toPath());
+                this.iter = this.dirStream.iterator();
+                this.advance();
+            } catch (IOException | RuntimeException e) {
+                this.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Find the next entry that passes the filter.  At the end, close the stream and install the index.
+         */
+        private void advance() {
+            this.nextFile = null;
+            try {
+                while (this.nextFile == null && this.iter.hasNext()) {
+                    File file = this.iter.next().toFile();
+                    if (DirectoryScanner.this.filter.accept(file))
+                        this.nextFile = file;
+                }
+                if (this.nextFile == null)
+                    this.finish();
+                else if (this.indexWriter != null)
+                    this.indexWriter.println(this.nextFile.getName());
+            } catch (IOException e) {
+                this.close();
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                this.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Close the directory stream and install the new index.
+         *
+         * @throws IOException
+         */
+        private void finish() throws IOException {
+            this.dirStream.close();
+            this.dirStream = null;
+            if (this.indexWriter != null) {
+                final File dir = DirectoryScanner.this.dir;
+                final File indexFile = DirectoryScanner.this.indexFile;
+                this.indexWriter.close();
+                boolean failed = this.indexWriter.checkError();
+                this.indexWriter = null;
+                if (failed)
+                    throw new IOException("Error writing directory index " + this.tempFile + ".");
+                boolean unchanged = (dir.lastModified() == this.scanTime);
+                Files.move(this.tempFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                this.tempFile = null;
+                // The index gets the directory time from before the scan, so that any change made during or after
+                // the scan invalidates it.  If the index is inside the directory, the move itself updated the
+                // directory time; in that case, if nothing else changed during the scan, we use the new time.  If the
+                // directory was modified within a time granule of the scan start, a later change in that granule would
+                // be invisible, so we stamp the index one granule early to force a rescan next time.
+                long stamp = this.scanTime;
+                if (this.recent)
+                    stamp = this.scanTime - TIME_GRANULARITY;
+                else if (unchanged && DirectoryScanner.this.isIndexInDir())
+                    stamp = dir.lastModified();
+                indexFile.setLastModified(stamp);
+                log.info("Directory index {} updated.", indexFile);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (this.nextFile != null);
+        }
+
+        @Override
+        public File next() {
+            if (this.nextFile == null)
+                throw new NoSuchElementException("Attempt to read past end of directory.");
+            File retVal = this.nextFile;
+            this.advance();
+            return retVal;
+        }
+
+        @Override
+        public void close() {
+            this.nextFile = null;
+            if (this.dirStream != null) {
+                try {
+                    this.dirStream.close();
+                } catch (IOException e) {
+                    log.warn("Error closing directory stream for {}: {}", DirectoryScanner.this.dir, e.toString());
+                }
+                this.dirStream = null;
+            }
+            if (this.indexWriter != null) {
+                this.indexWriter.close();
+                this.indexWriter = null;
+            }
+            if (this.tempFile != null) {
+                try {
+                    Files.deleteIfExists(this.tempFile);
+                } catch (IOException e) {
+                    log.warn("Could not delete temporary index {}: {}", this.tempFile, e.toString());
+                }
+                this.tempFile = null;
+            }
+        }
+
+    }
+
+    /**
+     * Create a lazy scanner for a directory.
+     *
+     * @param dir			directory to scan
+     * @param filter		filter for the entries to return
+     * @param indexFile		index file for caching the entry names, or NULL to always scan
+     */
+    public DirectoryScanner(File dir, FileFilter filter, File indexFile) {
+        this.dir = dir;
+        this.filter = filter;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @return TRUE if there is an index file at least as new as the directory
+     */
+    public boolean isIndexValid() {
+        return (this.indexFile != null && this.indexFile.isFile()
+                && this.indexFile.lastModified() >= this.dir.lastModified());
+    }
+
+    /**
+     * @return TRUE if the index file is inside the directory being scanned
+     */
+    private boolean isIndexInDir() {
+        return this.indexFile.getAbsoluteFile().getParentFile().equals(this.dir.getAbsoluteFile());
+    }
+
+    /**
+     * @return the directory being scanned
+     */
+    public File getDir() {
+        return this.dir;
+    }
+
+    @Override
+    public Iter iterator() {
+        Iter retVal;
+        try {
+            if (this.isIndexValid())
+                retVal = this.new IndexIter();
+            else
+                retVal = this.new ScanIter();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a stream through the directory entries; closing the stream releases the underlying iterator
+     */
+    public Stream<File> stream() {
+        Iter iter = this.iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, Spliterator.NONNULL), false)
+                .onClose(iter::close);
+    }
+
+    /**
+     * @return the number of entries (this requires reading the entire index or directory)
+     */
+    public int size() {
+        int retVal = 0;
+        try (Iter iter = this.iterator()) {
+            while (iter.hasNext()) {
+                iter.next();
+                retVal++;
+            }
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * This object is a predicate on a single column of a {@link FieldInputStream}.  Filters are added to the stream
+ * using {@link FieldInputStream#addFilter(FieldFilter)}, and records that fail any filter are skipped during
+ * iteration.  Where the stream supports it, the filter is applied to the raw column text before the record is
+ * built.
+ *
+ * A column containing a list passes if any of its elements pass.  An empty column is tested as an empty string.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class FieldFilter {
+
+    // FIELDS
+    /** index of the column to test */
+    private final int colIdx;
+
+    /**
+     * This filter accepts a column equal to a specified value.
+     */
+    public static class Equal extends FieldFilter {
+
+        /** value to match */
+        private final String value;
+
+        /**
+         * Construct an equality filter.
+         *
+         * @param colIdx	index of the column to test
+         * @param value		value to match
+         */
+        public Equal(int colIdx, String value) {
+            super(colIdx);
+            this.value = value;
+        }
+
+        @Override
+        protected boolean test(String value) {
+            return this.value.equals(value);
+        }
+
+    }
+
+    /**
+     * This filter accepts a column whose value is in a specified set.
+     */
+    public static class In extends FieldFilter {
+
+        /** set of values to match */
+        private final Set<String> values;
+
+        /**
+         * Construct a set-membership filter.
+         *
+         * @param colIdx	index of the column to test
+         * @param values	collection of values to match
+         */
+        public In(int colIdx, Collection<String> values) {
+            super(colIdx);
+            this.values = new HashSet<String>(values);
+        }
+
+        @Override
+        protected boolean test(String value) {
+            return this.values.contains(value);
+        }
+
+    }
+
+    /**
+     * This filter accepts a column whose numeric value is in a specified range.  Values that are not numbers
+     * fail the filter.
+     */
+    public static class Range extends FieldFilter {
+
+        /** minimum acceptable value */
+        private final double min;
+        /** maximum acceptable value */
+        private final double max;
+
+        /**
+         * Construct a numeric range filter.
+         *
+         * @param colIdx	index of the column to test
+         * @param min		minimum acceptable value (inclusive)
+         * @param max		maximum acceptable value (inclusive)
+         */
+        public Range(int colIdx, double min, double max) {
+            super(colIdx);
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        protected boolean test(String value) {
+            boolean retVal = false;
+            if (! value.isEmpty()) {
+                try {
+                    double num = Double.parseDouble(value);
+                    retVal = (num >= this.min && num <= this.max);
+                } catch (NumberFormatException e) {
+                    retVal = false;
+                }
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Construct a filter for a column.
+     *
+     * @param colIdx	index of the column to test, normally computed by {@link FieldInputStream#findField(String)}
+     */
+    public FieldFilter(int colIdx) {
+        this.colIdx = colIdx;
+    }
+
+    /**
+     * @return TRUE if a single column value passes this filter
+     *
+     * @param value		value to test (never NULL)
+     */
+    protected abstract boolean test(String value);
+
+    /**
+     * @return TRUE if a parsed column passes this filter
+     *
+     * @param values	list of values in the column
+     */
+    public boolean matches(List<String> values) {
+        boolean retVal;
+        if (values.isEmpty())
+            retVal = this.test("");
+        else {
+            retVal = false;
+            for (int i = 0; i < values.size() && ! retVal; i++)
+                retVal = this.test(values.get(i));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the raw text of a column passes this filter
+     *
+     * @param raw		raw column text, possibly containing delimited list elements
+     */
+    public boolean matchesRaw(String raw) {
+        boolean retVal;
+        if (StringUtils.isBlank(raw))
+            retVal = this.test("");
+        else if (! StringUtils.containsAny(raw, Attribute.DELIM))
+            retVal = this.test(raw);
+        else
+            retVal = this.matches(List.of(StringUtils.split(raw, Attribute.DELIM)));
+        return retVal;
+    }
+
+    /**
+     * @return the index of the column tested
+     */
+    public int getColumn() {
+        return this.colIdx;
+    }
+
+}
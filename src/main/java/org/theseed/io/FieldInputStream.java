@@ -9,9 +9,13 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.OptionalInt;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.StringUtils;
@@ -19,7 +23,7 @@ import org.apache.commons.lang3.Strings;
 import org.theseed.json.JsonListInputStream;
 
 /**
- * This is the base class for field-oriented input streams.  These could be tab-delimited or JSON.
+ * This is the base class for field-oriented input streams.  These could be tab-delimited, JSON, or columnar binary.
  * Each field is either stored as a string or a list of strings (so not all JSON files are legal).
  *
  * Unlike a standard TabbedLineReader (which is otherwise very similar), fields in this stream can only be
@@ -27,6 +31,23 @@ import org.theseed.json.JsonListInputStream;
  * fields.  For JSON files, field names are added as they are requested.  Once iteration through the file
  * starts, new fields cannot be added.
  *
+ * The stream remembers which columns have been requested through {@link #findField(String)}.  If projection is
+ * enabled (see {@link #enableProjection()}), then once iteration starts the stream is free to skip parsing the other
+ * columns, which come back empty.  Projection should only be enabled if every column index used by the client
+ * came from findField.
+ *
+ * Filters can be added using {@link #addFilter(FieldFilter)}.  Records that fail a filter are skipped during
+ * iteration, and the number skipped is available from {@link #getSkipCount()}.  Where possible, the filters are
+ * applied to the raw input before the record is built.  Subclasses read records by implementing
+ * {@link #hasNextRecord()} and {@link #nextRecord()}; the iteration methods apply the filters on top of them.
+ *
+ * Low-cardinality columns can be interned using {@link #enableInterning(int)}, so that records with the same
+ * value in the column share a single copy of it.
+ *
+ * Records can also be read in batches using {@link #nextBatch(int)}.  The batch object and, where the subclass
+ * supports it through {@link #nextRecord(Record)}, the records in it are reused, so its contents are only valid
+ * until the next call.
+ *
  * @author Bruce Parrello
  *
  */
@@ -43,6 +64,20 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
     private boolean fieldsLocked;
     /** ordinal number of current line */
     private int lineNumber;
+    /** set of column indexes requested through findField */
+    private BitSet requestedCols;
+    /** TRUE if unrequested columns can be skipped once iteration starts */
+    private boolean projecting;
+    /** list of filters a record must pass */
+    private List<FieldFilter> filters;
+    /** number of records skipped by the filters */
+    private long skipCount;
+    /** next record that passed the filters, or NULL if none is buffered */
+    private Record pending;
+    /** reusable record batch, or NULL if batching has not been used */
+    private Batch batch;
+    /** interning dictionaries for each column, or NULL if no columns are interned */
+    private ColumnDictionary[] dictionaries;
 
     /**
      * Enumeration for types of field-input stream files.
@@ -73,6 +108,19 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
             public FieldInputStream open(File inFile) throws IOException {
                 return new JsonListInputStream(inFile);
             }
+        },
+
+        /** columnar binary file */
+        COLUMNAR {
+            @Override
+            public boolean matches(File inFile) {
+                return checkExtensions(inFile, ColumnarInputStream.EXTENSION);
+            }
+
+            @Override
+            public FieldInputStream open(File inFile) throws IOException {
+                return new ColumnarInputStream(inFile);
+            }
         };
 
         /**
@@ -108,16 +156,39 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
          */
         public Record(String[] fieldStrings) {
             this.fields = new ArrayList<>(fieldStrings.length);
-            for (String field : fieldStrings) {
+            this.load(fieldStrings);
+        }
+
+        /**
+         * Replace the fields of this record with new strings, reusing its field list.  This is only possible
+         * for a record built from strings.
+         *
+         * @param fieldStrings	array of strings to put in the fields
+         */
+        protected void load(String[] fieldStrings) {
+            this.fields.clear();
+            for (int i = 0; i < fieldStrings.length; i++) {
+                String field = fieldStrings[i];
                 if (StringUtils.isBlank(field))
                     this.fields.add(Attribute.EMPTY_LIST);
                 else {
-                    List<String> value = Arrays.asList(StringUtils.split(field, Attribute.DELIM));
+                    List<String> value = FieldInputStream.this.intern(i, field, SPLITTER);
+                    if (value == null)
+                        value = Arrays.asList(StringUtils.split(field, Attribute.DELIM));
                     this.fields.add(value);
                 }
             }
         }
 
+        /**
+         * Construct a record from a prepared list of fields.  The list may compute its values on demand.
+         *
+         * @param fields	list of field values
+         */
+        protected Record(List<List<String>> fields) {
+            this.fields = fields;
+        }
+
         /**
          * Construct an empty record with space for a specified number of fields.
          *
@@ -153,6 +224,30 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
                 this.fields.set(idx, list);
         }
 
+        /**
+         * Store a string in the field with the specified index.
+         *
+         * @param idx		index of the field
+         * @param string	string to store
+         */
+        public void setField(int idx, String string) {
+            if (! StringUtils.isBlank(string)) {
+                List<String> value = FieldInputStream.this.intern(idx, string, SINGLETON);
+                this.fields.set(idx, (value == null ? List.of(string) : value));
+            }
+        }
+
+        /**
+         * Store a string list in the field with the specified index.
+         *
+         * @param idx		index of the field
+         * @param list		string list to store
+         */
+        public void setField(int idx, List<String> list) {
+            if (list != null)
+                this.fields.set(idx, list);
+        }
+
         /**
          * @return the field at the specified column index as a string
          *
@@ -174,7 +269,14 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
         private String getString(int colIdx) {
             if (colIdx < 0 || colIdx >= fields.size())
                 throw new IllegalArgumentException("Invalid column index " + Integer.toString(colIdx) + " used for field-input stream.");
-            return StringUtils.join(this.fields.get(colIdx), Attribute.DELIM);
+            List<String> values = this.fields.get(colIdx);
+            String retVal;
+            // A singleton is returned directly, which preserves interned strings.
+            if (values.size() == 1)
+                retVal = values.get(0);
+            else
+                retVal = StringUtils.join(values, Attribute.DELIM);
+            return retVal;
         }
 
         /**
@@ -244,8 +346,121 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
             this.fields.add(Attribute.EMPTY_LIST);
         }
 
+        /**
+         * @return the list of fields for this record
+         */
+        protected List<List<String>> getFields() {
+            return this.fields;
+        }
+
+        /**
+         * @return a copy of this record that does not share storage with it
+         */
+        public Record copy() {
+            return FieldInputStream.this.copyRecord(this);
+        }
+
     }
 
+    /**
+     * This object is a batch of records returned by {@link FieldInputStream#nextBatch(int)}.  The same batch object
+     * is refilled on each call, and the records left over from the previous call are offered back to the stream
+     * for reuse, so a batch and its records are only valid until the next call.  Use {@link #copy()} to keep the
+     * records longer, for example to hand them to a worker thread.
+     */
+    public static class Batch implements Iterable<Record> {
+
+        /** array of records in the batch */
+        private Record[] records;
+        /** number of records in the batch */
+        private int size;
+
+        /**
+         * Create an empty batch.
+         *
+         * @param capacity		expected maximum number of records
+         */
+        protected Batch(int capacity) {
+            this.records = new Record[Math.max(capacity, 1)];
+            this.size = 0;
+        }
+
+        /**
+         * Empty the batch and insure it can hold the specified number of records.  The old records are kept
+         * so they can be reused.
+         *
+         * @param capacity		maximum number of records expected
+         */
+        protected void reset(int capacity) {
+            if (capacity > this.records.length)
+                this.records = Arrays.copyOf(this.records, capacity);
+            this.size = 0;
+        }
+
+        /**
+         * @return the record left over from an earlier fill in the next open slot, or NULL if there is none
+         */
+        protected Record spare() {
+            return (this.size < this.records.length ? this.records[this.size] : null);
+        }
+
+        /**
+         * Add a record to the batch.
+         *
+         * @param record	record to add
+         */
+        protected void add(Record record) {
+            this.records[this.size] = record;
+            this.size++;
+        }
+
+        /**
+         * @return the number of records in the batch
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * @return TRUE if the batch is empty, which indicates end-of-file
+         */
+        public boolean isEmpty() {
+            return (this.size == 0);
+        }
+
+        /**
+         * @return the record at the specified position in the batch
+         *
+         * @param idx		index of the desired record
+         */
+        public Record get(int idx) {
+            if (idx < 0 || idx >= this.size)
+                throw new IndexOutOfBoundsException("Invalid index " + idx + " for batch of size " + this.size + ".");
+            return this.records[idx];
+        }
+
+        /**
+         * @return a list of the records in this batch that remains valid after the batch is refilled
+         */
+        public List<Record> copy() {
+            List<Record> retVal = new ArrayList<Record>(this.size);
+            for (int i = 0; i < this.size; i++)
+                retVal.add(this.records[i].copy());
+            return retVal;
+        }
+
+        @Override
+        public Iterator<Record> iterator() {
+            return Arrays.asList(this.records).subList(0, this.size).iterator();
+        }
+
+    }
+
+    /** function to convert a raw field string to a value list by splitting it */
+    private static final Function<String, List<String>> SPLITTER = x -> List.of(StringUtils.split(x, Attribute.DELIM));
+    /** function to convert a raw field string to a singleton value list */
+    private static final Function<String, List<String>> SINGLETON = x -> List.of(x);
+
     /**
      * This method opens a field-input stream, using the filename extension to determine the file
      * type.
@@ -292,6 +507,21 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
         this.setup();
     }
 
+    /**
+     * Create a field input stream that does not read lines.  The subclass must override {@link #close()}.
+     */
+    protected FieldInputStream() {
+        this.reader = null;
+        this.lineIter = Collections.emptyIterator();
+        this.fieldNames = new ArrayList<>();
+        this.fieldsLocked = false;
+        this.lineNumber = 0;
+        this.requestedCols = new BitSet();
+        this.projecting = false;
+        this.filters = new ArrayList<>();
+        this.skipCount = 0;
+    }
+
     /**
      * Initialize the reading process for this stream.
      */
@@ -303,6 +533,12 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
         this.fieldsLocked = false;
         // Denote that we have not read any lines.
         this.lineNumber = 0;
+        // Denote no columns have been requested and we are not projecting.
+        this.requestedCols = new BitSet();
+        this.projecting = false;
+        // Denote there are no filters.
+        this.filters = new ArrayList<>();
+        this.skipCount = 0;
     }
 
     /**
@@ -343,16 +579,232 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
         return this;
     }
 
+    /**
+     * @return TRUE if there is another record in the file, without regard to the filters
+     */
+    protected abstract boolean hasNextRecord();
+
+    /**
+     * Read the next record in the file.  If the subclass applies the filters to the raw input (see
+     * {@link #filtersRawInput()}), it can return NULL for a record that fails them.
+     *
+     * @return the next record in the file, or NULL if it was rejected by the filters
+     */
+    protected abstract Record nextRecord();
+
+    /**
+     * Read the next record, reusing the storage of a record from an earlier batch if possible.  The default is to
+     * ignore the spare record and call {@link #nextRecord()}.  A subclass that overrides this method must also
+     * override {@link #copyRecord(Record)} if the default copy is not suitable for the records it builds.
+     *
+     * @param spare		record from this stream that is no longer in use, or NULL if there is none
+     *
+     * @return the next record (which may be the spare), or NULL if it is known to fail the filters
+     */
+    protected Record nextRecord(Record spare) {
+        return this.nextRecord();
+    }
+
+    /**
+     * @return a copy of a record from this stream that does not share storage with it
+     *
+     * @param record	record to copy
+     */
+    protected Record copyRecord(Record record) {
+        return this.new Record(new ArrayList<>(record.getFields()));
+    }
+
+    /**
+     * @return TRUE if {@link #nextRecord()} applies the filters itself, else FALSE
+     */
+    protected boolean filtersRawInput() {
+        return false;
+    }
+
+    /**
+     * Insure the next record that passes the filters is buffered, if there is one.
+     */
+    private void fillPending() {
+        final boolean raw = this.filtersRawInput();
+        while (this.pending == null && this.hasNextRecord()) {
+            Record record = this.nextRecord();
+            if (record == null || ! raw && ! this.passes(record))
+                this.skipCount++;
+            else
+                this.pending = record;
+        }
+    }
+
     @Override
-    public boolean hasNext() {
-        return this.hasNextLine();
+    public final boolean hasNext() {
+        boolean retVal;
+        if (this.pending == null && this.filters.isEmpty())
+            retVal = this.hasNextRecord();
+        else {
+            this.fillPending();
+            retVal = (this.pending != null);
+        }
+        return retVal;
+    }
+
+    @Override
+    public final Record next() {
+        Record retVal;
+        if (this.pending == null && this.filters.isEmpty())
+            retVal = this.nextRecord();
+        else {
+            this.fillPending();
+            if (this.pending == null)
+                throw new NoSuchElementException("Attempt to read past end of field-input stream.");
+            retVal = this.pending;
+            this.pending = null;
+        }
+        return retVal;
+    }
+
+    /**
+     * Read the next batch of records.  The batch returned and the records in it are reused by the next call, so
+     * they are only valid until then.  Like {@link #iterator()}, this locks the field names.
+     *
+     * @param maxRecords	maximum number of records to return
+     *
+     * @return a batch containing the next records, which will be empty at end-of-file
+     */
+    public Batch nextBatch(int maxRecords) {
+        this.fieldsLocked = true;
+        if (this.batch == null)
+            this.batch = new Batch(maxRecords);
+        else
+            this.batch.reset(maxRecords);
+        // A record buffered by hasNext() has already passed the filters.
+        if (this.pending != null && maxRecords > 0) {
+            this.batch.add(this.pending);
+            this.pending = null;
+        }
+        final boolean check = ! this.filters.isEmpty() && ! this.filtersRawInput();
+        while (this.batch.size() < maxRecords && this.hasNextRecord()) {
+            Record record = this.nextRecord(this.batch.spare());
+            if (record == null || check && ! this.passes(record))
+                this.skipCount++;
+            else
+                this.batch.add(record);
+        }
+        return this.batch;
+    }
+
+    /**
+     * Intern the values of a column using a dictionary of the default maximum size.
+     *
+     * @param colIdx	index of the column to intern
+     */
+    public void enableInterning(int colIdx) {
+        this.enableInterning(colIdx, ColumnDictionary.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Intern the values of a column, so that records with the same value share a single copy.  If the column has
+     * more distinct values than the maximum size, interning is turned off for it.
+     *
+     * @param colIdx	index of the column to intern
+     * @param maxSize	maximum number of distinct values to intern
+     */
+    public void enableInterning(int colIdx, int maxSize) {
+        if (this.dictionaries == null)
+            this.dictionaries = new ColumnDictionary[colIdx + 1];
+        else if (this.dictionaries.length <= colIdx)
+            this.dictionaries = Arrays.copyOf(this.dictionaries, colIdx + 1);
+        if (this.dictionaries[colIdx] == null)
+            this.dictionaries[colIdx] = new ColumnDictionary(maxSize);
+    }
+
+    /**
+     * @return the interning dictionary for a column, or NULL if the column is not interned
+     *
+     * @param colIdx	index of the column of interest
+     */
+    public ColumnDictionary getDictionary(int colIdx) {
+        ColumnDictionary retVal = null;
+        if (this.dictionaries != null && colIdx < this.dictionaries.length)
+            retVal = this.dictionaries[colIdx];
+        return retVal;
+    }
+
+    /**
+     * Get the shared value list for a column string, if the column is interned.
+     *
+     * @param colIdx	index of the column
+     * @param raw		raw column string
+     * @param builder	function for converting the raw string to a value list
+     *
+     * @return the shared value list, or NULL if the column is not being interned
+     */
+    private List<String> intern(int colIdx, String raw, Function<String, List<String>> builder) {
+        List<String> retVal = null;
+        ColumnDictionary dict = this.getDictionary(colIdx);
+        if (dict != null)
+            retVal = dict.intern(raw, builder);
+        return retVal;
+    }
+
+    /**
+     * Read the input lines on a background thread, so that reading overlaps with parsing.  This has no effect on
+     * a stream that does not read lines.
+     *
+     * @return this object, for chaining
+     */
+    public FieldInputStream prefetch() {
+        if (this.reader != null)
+            this.reader.prefetch();
+        return this;
+    }
+
+    /**
+     * Add a filter to this stream.  Only records that pass all the filters will be returned.
+     *
+     * @param filter	filter to add
+     *
+     * @return this object, for chaining
+     */
+    public FieldInputStream addFilter(FieldFilter filter) {
+        this.filters.add(filter);
+        return this;
+    }
+
+    /**
+     * @return the list of filters for this stream
+     */
+    protected List<FieldFilter> getFilters() {
+        return this.filters;
+    }
+
+    /**
+     * @return TRUE if a parsed record passes all the filters
+     *
+     * @param record	record to test
+     */
+    protected boolean passes(Record record) {
+        boolean retVal = true;
+        final int n = this.filters.size();
+        for (int i = 0; i < n && retVal; i++) {
+            FieldFilter filter = this.filters.get(i);
+            retVal = filter.matches(record.getList(filter.getColumn()));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of records skipped because they failed a filter
+     */
+    public long getSkipCount() {
+        return this.skipCount;
     }
 
     @Override
     public void close() {
         // Close the underlying line reader.  Note we convert any IO exception to unchecked.
         try {
-            this.reader.close();
+            if (this.reader != null)
+                this.reader.close();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -365,6 +817,13 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
         return this.fieldNames;
     }
 
+    /**
+     * @return an unmodifiable view of the names of the fields currently known to this stream
+     */
+    public List<String> getKnownFields() {
+        return Collections.unmodifiableList(this.fieldNames);
+    }
+
     /**
      * Add a new name to the field-name list and return its index.  We convert
      * the name to lower-case to speed up field-name searches.
@@ -404,6 +863,8 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
             OptionalInt idx = IntStream.range(0, this.fieldNames.size())
                     .filter(i -> isName(name, this.fieldNames.get(i))).findFirst();
             retVal = idx.orElse(-1);
+            if (retVal >= 0)
+                this.requestedCols.set(retVal);
         }
         return retVal;
     }
@@ -419,6 +880,21 @@ public abstract class FieldInputStream implements AutoCloseable, Iterable<FieldI
         return name.equals(fieldName) || Strings.CS.endsWith(fieldName, "." + lcName);
     }
 
+    /**
+     * Allow this stream to skip parsing columns that were not requested through {@link #findField(String)}.
+     * This takes effect when iteration starts.
+     */
+    public void enableProjection() {
+        this.projecting = true;
+    }
+
+    /**
+     * @return the set of requested column indexes if unrequested columns can be skipped, else NULL
+     */
+    protected BitSet getProjection() {
+        return (this.projecting && this.fieldsLocked ? this.requestedCols : null);
+    }
+
     /**
      * @return TRUE if field names can no longer be added
      */
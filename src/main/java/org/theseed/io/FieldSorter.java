@@ -0,0 +1,310 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object sorts the records of a {@link FieldInputStream} by the value of a key column, using an external
+ * merge sort.  The records are read in chunks of a fixed maximum size.  Each chunk is sorted in memory and spilled
+ * to a temporary file, and then the spill files are merged into a tab-delimited output file that can be read with
+ * a {@link TabbedInputStream}.  Only one chunk is held in memory at a time, and at most a fixed number of spill
+ * files are open during a merge, so memory use is bounded regardless of the input size.
+ *
+ * Keys are compared as strings.  List-valued fields are written with the standard list delimiter.  The sorted file
+ * is suitable as input for a {@link MergeJoin}.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FieldSorter {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(FieldSorter.class);
+    /** maximum number of records to hold in memory */
+    private int chunkSize;
+    /** maximum number of spill files to merge at once */
+    private int fanIn;
+    /** directory for spill files, or NULL to use the system default */
+    private File tempDir;
+    /** default maximum chunk size */
+    public static final int DEFAULT_CHUNK_SIZE = 100000;
+    /** default maximum merge fan-in */
+    public static final int DEFAULT_FAN_IN = 64;
+
+    /**
+     * This is a single line of output, along with its sort key.
+     */
+    private static class Line {
+
+        /** sort key */
+        private final String key;
+        /** output line */
+        private final String line;
+
+        /**
+         * Create a line.
+         *
+         * @param key		sort key
+         * @param line		output line
+         */
+        protected Line(String key, String line) {
+            this.key = key;
+            this.line = line;
+        }
+
+    }
+
+    /** comparator for sorting lines by key */
+    private static final Comparator<Line> BY_KEY = Comparator.comparing((Line x) -> x.key);
+
+    /**
+     * This is a spill file being merged.  It holds the current line and the reader for the rest.
+     */
+    private static class Spill {
+
+        /** reader for the spill file */
+        private final LineReader reader;
+        /** current line */
+        private Line current;
+        /** index of the key column */
+        private final int keyIdx;
+
+        /**
+         * Open a spill file and position on its first data line.
+         *
+         * @param spillFile		spill file to open
+         * @param keyIdx		index of the key column
+         *
+         * @throws IOException
+         */
+        protected Spill(File spillFile, int keyIdx) throws IOException {
+            this.reader = new LineReader(spillFile);
+            this.keyIdx = keyIdx;
+            // Skip the header.
+            if (this.reader.hasNext())
+                this.reader.next();
+            this.advance();
+        }
+
+        /**
+         * Move to the next line.  At the end, the current line is NULL.
+         */
+        protected void advance() {
+            if (! this.reader.hasNext())
+                this.current = null;
+            else {
+                String line = this.reader.next();
+                this.current = new Line(TabbedInputStream.rawField(line, this.keyIdx), line);
+            }
+        }
+
+    }
+
+    /**
+     * Create a sorter with the default limits.
+     */
+    public FieldSorter() {
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.fanIn = DEFAULT_FAN_IN;
+        this.tempDir = null;
+    }
+
+    /**
+     * Specify the maximum number of records to hold in memory.
+     *
+     * @param chunkSize 	the chunk size to set
+     *
+     * @return this object, for chaining
+     */
+    public FieldSorter setChunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Sort chunk size must be positive.");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Specify the maximum number of spill files to merge at once.
+     *
+     * @param fanIn 		the fan-in to set
+     *
+     * @return this object, for chaining
+     */
+    public FieldSorter setFanIn(int fanIn) {
+        if (fanIn < 2)
+            throw new IllegalArgumentException("Sort fan-in must be at least 2.");
+        this.fanIn = fanIn;
+        return this;
+    }
+
+    /**
+     * Specify the directory for the spill files.
+     *
+     * @param tempDir 		the directory to use, or NULL for the system default
+     *
+     * @return this object, for chaining
+     */
+    public FieldSorter setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+        return this;
+    }
+
+    /**
+     * Sort a field-input stream by a key column.  All the fields known to the stream are written to the output.
+     * For a JSON stream, this means the fields must be requested before the sort.
+     *
+     * @param inStream		input stream to sort
+     * @param keyName		name of the key column
+     * @param outFile		output file for the sorted records
+     *
+     * @return the number of records sorted
+     *
+     * @throws IOException
+     */
+    public int sort(FieldInputStream inStream, String keyName, File outFile) throws IOException {
+        final int keyIdx = inStream.findField(keyName);
+        final String header = String.join("\t", inStream.getFieldNames());
+        List<File> spills = new ArrayList<File>();
+        int retVal = 0;
+        try {
+            List<Line> chunk = new ArrayList<Line>();
+            StringBuilder buffer = new StringBuilder(100);
+            for (var record : inStream) {
+                // Form the output line.
+                final int n = inStream.width();
+                buffer.setLength(0);
+                for (int i = 0; i < n; i++) {
+                    if (i > 0)
+                        buffer.append('\t');
+                    buffer.append(record.get(i));
+                }
+                chunk.add(new Line(record.get(keyIdx), buffer.toString()));
+                retVal++;
+                if (chunk.size() >= this.chunkSize) {
+                    spills.add(this.spill(chunk, header));
+                    chunk.clear();
+                }
+            }
+            if (spills.isEmpty()) {
+                // Here the whole file fit in memory.
+                chunk.sort(BY_KEY);
+                write(chunk, header, outFile);
+            } else {
+                if (! chunk.isEmpty())
+                    spills.add(this.spill(chunk, header));
+                chunk = null;
+                log.info("{} records spilled to {} files for sort.", retVal, spills.size());
+                // Merge down to a single pass.
+                while (spills.size() > this.fanIn) {
+                    List<File> merged = new ArrayList<File>();
+                    for (int i = 0; i < spills.size(); i += this.fanIn) {
+                        List<File> group = spills.subList(i, Math.min(i + this.fanIn, spills.size()));
+                        File mergeFile = this.createSpillFile();
+                        merged.add(mergeFile);
+                        merge(group, keyIdx, header, mergeFile);
+                        group.forEach(x -> x.delete());
+                    }
+                    spills = merged;
+                }
+                merge(spills, keyIdx, header, outFile);
+            }
+        } finally {
+            spills.forEach(x -> x.delete());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a new, empty spill file
+     *
+     * @throws IOException
+     */
+    private File createSpillFile() throws IOException {
+        File retVal = File.createTempFile("sort", ".tbl", this.tempDir);
+        retVal.deleteOnExit();
+        return retVal;
+    }
+
+    /**
+     * Sort a chunk of lines and write it to a spill file.
+     *
+     * @param chunk		list of lines to spill
+     * @param header	header line for the file
+     *
+     * @return the spill file created
+     *
+     * @throws IOException
+     */
+    private File spill(List<Line> chunk, String header) throws IOException {
+        File retVal = this.createSpillFile();
+        chunk.sort(BY_KEY);
+        write(chunk, header, retVal);
+        return retVal;
+    }
+
+    /**
+     * Write a list of lines to a tab-delimited file.
+     *
+     * @param lines		list of lines to write
+     * @param header	header line for the file
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    private static void write(List<Line> lines, String header, File outFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(outFile, StandardCharsets.UTF_8)) {
+            writer.println(header);
+            for (Line line : lines)
+                writer.println(line.line);
+        }
+    }
+
+    /**
+     * Merge a set of sorted spill files into a single sorted file.
+     *
+     * @param spillFiles	list of spill files to merge
+     * @param keyIdx		index of the key column
+     * @param header		header line for the output file
+     * @param outFile		output file
+     *
+     * @throws IOException
+     */
+    private static void merge(List<File> spillFiles, int keyIdx, String header, File outFile) throws IOException {
+        PriorityQueue<Spill> queue = new PriorityQueue<Spill>(spillFiles.size(),
+                Comparator.comparing((Spill x) -> x.current.key));
+        List<Spill> spills = new ArrayList<Spill>(spillFiles.size());
+        try (PrintWriter writer = new PrintWriter(outFile, StandardCharsets.UTF_8)) {
+            for (File spillFile : spillFiles) {
+                Spill spill = new Spill(spillFile, keyIdx);
+                spills.add(spill);
+                if (spill.current != null)
+                    queue.add(spill);
+            }
+            writer.println(header);
+            while (! queue.isEmpty()) {
+                Spill spill = queue.poll();
+                writer.println(spill.current.line);
+                spill.advance();
+                if (spill.current != null)
+                    queue.add(spill);
+            }
+        } finally {
+            for (Spill spill : spills)
+                spill.reader.close();
+        }
+    }
+
+}
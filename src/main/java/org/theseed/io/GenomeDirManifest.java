@@ -0,0 +1,364 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This object tracks the state of the genome directories in a {@link MasterGenomeDir}, so that a job can process
+ * only the genomes that are new or have changed since its last run.  For each genome, the manifest records the
+ * latest modification time and total size of the key JSON files, a fingerprint of their names, and a SHA-256 hash
+ * of their contents.
+ *
+ * A genome is considered unchanged if the time, size, and names match, and changed if the size or names do not match.
+ * If only the time is different, the content hash is computed and compared, so a genome whose files were rewritten
+ * without changes is still recognized as unchanged.
+ *
+ * The manifest is safe to use from multiple threads.  It is saved as a tab-delimited file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class GenomeDirManifest {
+
+    // FIELDS
+    /** map of genome IDs to entries */
+    private final Map<String, Entry> entries;
+    /** names of the key files in each genome directory, or NULL to use all JSON files */
+    private final Set<String> keyFiles;
+    /** buffer size for hashing */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * This is the recorded state of a single genome directory.
+     */
+    public static class Entry {
+
+        /** latest modification time of the key files */
+        private long mtime;
+        /** total size of the key files */
+        private long size;
+        /** fingerprint of the key file names */
+        private String names;
+        /** content hash of the key files, or NULL if it has not been computed */
+        private String hash;
+
+        /**
+         * Create a new manifest entry.
+         *
+         * @param mtime		latest modification time of the key files
+         * @param size		total size of the key files
+         * @param names		fingerprint of the key file names
+         * @param hash		content hash of the key files, or NULL if it is not known
+         */
+        protected Entry(long mtime, long size, String names, String hash) {
+            this.mtime = mtime;
+            this.size = size;
+            this.names = names;
+            this.hash = hash;
+        }
+
+        /**
+         * @return the latest modification time of the key files
+         */
+        public long getMtime() {
+            return this.mtime;
+        }
+
+        /**
+         * @return the total size of the key files
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return the fingerprint of the key file names
+         */
+        public String getNames() {
+            return this.names;
+        }
+
+        /**
+         * @return the content hash of the key files
+         */
+        public String getHash() {
+            return this.hash;
+        }
+
+        /**
+         * @return TRUE if the time, size, and file names of this entry match another entry
+         *
+         * @param other		other entry to compare
+         */
+        public boolean sameStats(Entry other) {
+            return (this.mtime == other.mtime && this.size == other.size && this.names.equals(other.names));
+        }
+
+    }
+
+    /**
+     * Create an empty manifest that checks all the JSON files in each genome directory.
+     */
+    public GenomeDirManifest() {
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.keyFiles = null;
+    }
+
+    /**
+     * Create an empty manifest that checks specific files in each genome directory.
+     *
+     * @param keyFiles		names of the files to check
+     */
+    public GenomeDirManifest(Collection<String> keyFiles) {
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.keyFiles = new HashSet<String>(keyFiles);
+    }
+
+    /**
+     * Load a manifest that checks all the JSON files in each genome directory.
+     *
+     * @param inFile		file containing the saved manifest
+     *
+     * @return the manifest read
+     *
+     * @throws IOException
+     */
+    public static GenomeDirManifest load(File inFile) throws IOException {
+        GenomeDirManifest retVal = new GenomeDirManifest();
+        retVal.read(inFile);
+        return retVal;
+    }
+
+    /**
+     * Load a manifest that checks specific files in each genome directory.
+     *
+     * @param inFile		file containing the saved manifest
+     * @param keyFiles		names of the files to check
+     *
+     * @return the manifest read
+     *
+     * @throws IOException
+     */
+    public static GenomeDirManifest load(File inFile, Collection<String> keyFiles) throws IOException {
+        GenomeDirManifest retVal = new GenomeDirManifest(keyFiles);
+        retVal.read(inFile);
+        return retVal;
+    }
+
+    /**
+     * Read the entries from a saved manifest file.
+     *
+     * @param inFile		file containing the saved manifest
+     *
+     * @throws IOException
+     */
+    private void read(File inFile) throws IOException {
+        try (TabbedInputStream inStream = new TabbedInputStream(inFile)) {
+            int idCol = inStream.findField("genome_id");
+            int timeCol = inStream.findField("mtime");
+            int sizeCol = inStream.findField("size");
+            int namesCol = inStream.findField("names");
+            int hashCol = inStream.findField("hash");
+            for (var record : inStream) {
+                Entry entry = new Entry(Long.parseLong(record.get(timeCol)), Long.parseLong(record.get(sizeCol)),
+                        record.get(namesCol), record.get(hashCol));
+                this.entries.put(record.get(idCol), entry);
+            }
+        }
+    }
+
+    /**
+     * Save this manifest to a file.
+     *
+     * @param outFile		output file
+     *
+     * @throws IOException
+     */
+    public void save(File outFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(outFile)) {
+            writer.println("genome_id\tmtime\tsize\tnames\thash");
+            for (var mapEntry : new TreeMap<String, Entry>(this.entries).entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writer.format("%s\t%d\t%d\t%s\t%s%n", mapEntry.getKey(), entry.mtime, entry.size, entry.names,
+                        entry.hash);
+            }
+        }
+    }
+
+    /**
+     * @return the key files in a genome directory, sorted by name
+     *
+     * @param genomeDir		genome directory of interest
+     */
+    private File[] getKeyFiles(File genomeDir) {
+        File[] retVal;
+        if (this.keyFiles == null)
+            retVal = genomeDir.listFiles((File f) -> f.getName().endsWith(".json") && f.isFile());
+        else
+            retVal = genomeDir.listFiles((File f) -> this.keyFiles.contains(f.getName()) && f.isFile());
+        if (retVal == null)
+            retVal = new File[0];
+        Arrays.sort(retVal);
+        return retVal;
+    }
+
+    /**
+     * Compute the time, size, and name fingerprint of the key files in a genome directory.  The fingerprint
+     * is taken from a hash of the sorted file names, so that adding, removing, or renaming a file counts as a change
+     * even when the time and size are the same.
+     *
+     * @param keys		array of key files
+     *
+     * @return an entry with the time, size, and names, but no content hash
+     */
+    private static Entry stats(File[] keys) {
+        long mtime = 0;
+        long size = 0;
+        MessageDigest digest = newDigest();
+        for (File key : keys) {
+            mtime = Math.max(mtime, key.lastModified());
+            size += key.length();
+            digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        String names = HexFormat.of().formatHex(digest.digest(), 0, 8);
+        return new Entry(mtime, size, names, null);
+    }
+
+    /**
+     * @return a new SHA-256 message digest
+     */
+    private static MessageDigest newDigest() {
+        MessageDigest retVal;
+        try {
+            retVal = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // This should never happen, since every JVM must support SHA-256.
+            throw new IllegalStateException(e);
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the content hash of the key files in a genome directory.  The file names are included, so the
+     * hash also distinguishes which file holds which content.
+     *
+     * @param keys		array of key files
+     *
+     * @return the hash, as a hex string
+     *
+     * @throws IOException
+     */
+    private static String hash(File[] keys) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (File key : keys) {
+            digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            try (InputStream inStream = Files.newInputStream(key.toPath())) {
+                for (int n = inStream.read(buffer); n >= 0; n = inStream.read(buffer))
+                    digest.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Determine whether a genome directory is new or has changed since it was last recorded.  If only the times
+     * have changed, the recorded times are updated.
+     *
+     * @param genomeDir		genome directory to check
+     *
+     * @return TRUE if the genome is new or changed
+     *
+     * @throws IOException
+     */
+    public boolean isChanged(File genomeDir) throws IOException {
+        boolean retVal;
+        Entry old = this.entries.get(genomeDir.getName());
+        if (old == null)
+            retVal = true;
+        else {
+            File[] keys = this.getKeyFiles(genomeDir);
+            Entry current = stats(keys);
+            if (current.sameStats(old))
+                retVal = false;
+            else if (current.size != old.size || ! current.names.equals(old.names))
+                retVal = true;
+            else {
+                // The sizes and names match, but the times don't.  Check the content.
+                current.hash = hash(keys);
+                retVal = ! current.hash.equals(old.hash);
+                if (! retVal)
+                    this.entries.put(genomeDir.getName(), current);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Record the current state of a genome directory.  This should be called after the genome has been
+     * processed successfully.
+     *
+     * @param genomeDir		genome directory to record
+     *
+     * @throws IOException
+     */
+    public void update(File genomeDir) throws IOException {
+        File[] keys = this.getKeyFiles(genomeDir);
+        Entry entry = stats(keys);
+        entry.hash = hash(keys);
+        this.entries.put(genomeDir.getName(), entry);
+    }
+
+    /**
+     * @return the recorded entry for a genome, or NULL if the genome is not in the manifest
+     *
+     * @param genomeId		ID of the genome of interest
+     */
+    public Entry get(String genomeId) {
+        return this.entries.get(genomeId);
+    }
+
+    /**
+     * Remove a genome from the manifest.
+     *
+     * @param genomeId		ID of the genome to remove
+     */
+    public void remove(String genomeId) {
+        this.entries.remove(genomeId);
+    }
+
+    /**
+     * @return the set of genome IDs in the manifest
+     */
+    public Set<String> getGenomeIds() {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    /**
+     * @return the number of genomes in the manifest
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.File;
+
+/**
+ * This interface describes a task to be performed on each genome directory in a {@link MasterGenomeDir}.
+ * The task may be called from many threads at once.  A task that might run for a long time should check
+ * for interruption, since that is how timeouts are enforced.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@FunctionalInterface
+public interface IGenomeDirTask {
+
+    /**
+     * Process a single genome directory.
+     *
+     * @param genomeDir		genome directory to process
+     *
+     * @throws Exception	if the genome cannot be processed; the error is recorded and the run continues
+     */
+    public void process(File genomeDir) throws Exception;
+
+}
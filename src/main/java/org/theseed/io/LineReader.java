@@ -4,39 +4,439 @@
 package org.theseed.io;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This is a simple, iterable line reader than can be directly created from a file or a stream.
  *
+ * The character set can be specified explicitly; the default is UTF-8.  A leading UTF-8 byte-order mark is
+ * removed.  For UTF-8, US-ASCII, and ISO-8859-1 input, lines are split at the byte level, and a line that is pure
+ * ASCII is converted to a string without going through the character decoder.  Other character sets are decoded
+ * by a standard reader.
+ *
+ * Optionally, the reader can prefetch lines on a background thread (see {@link #prefetch(int, int)}), so that
+ * reading the file overlaps with processing the lines.
+ *
  * @author Bruce Parrello
  *
  */
 public class LineReader implements Iterable<String>, Iterator<String>, AutoCloseable {
 
-    /** underlying buffered reader */
-    private BufferedReader reader;
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(LineReader.class);
+    /** underlying line source */
+    private LineSource reader;
     /** TRUE if end-of-file has been read */
     private boolean eof;
     /** next line to produce */
     private String nextLine;
     /** file name for error messages */
     private String fileName;
+    /** byte-order mark character */
+    private static final char BOM = '\uFEFF';
+    /** byte-order mark in UTF-8 */
+    private static final byte[] UTF8_BOM = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+    /** size of the byte buffer */
+    private static final int BUFFER_SIZE = 65536;
+    /** default number of lines per prefetch batch */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    /** default number of prefetch batches to queue */
+    public static final int DEFAULT_PREFETCH_DEPTH = 8;
+    /** number of milliseconds to wait for the prefetch thread to stop when the reader is closed */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /**
+     * This interface describes the source of lines for the reader.
+     */
+    private interface LineSource extends Closeable {
+
+        /**
+         * @return the next line, without its terminator, or NULL at end-of-file
+         *
+         * @throws IOException
+         */
+        public String readLine() throws IOException;
+
+    }
+
+    /**
+     * This line source uses a standard buffered reader.  It is used for character sets that are not ASCII-compatible.
+     */
+    private static class ReaderSource implements LineSource {
+
+        /** underlying input stream */
+        private final InputStream stream;
+        /** underlying buffered reader */
+        private final BufferedReader reader;
+        /** TRUE if we have not read the first line yet */
+        private boolean first;
+
+        /**
+         * Create a line source from a stream.
+         *
+         * @param stream	input stream to read
+         * @param charset	character set of the input
+         */
+        protected ReaderSource(InputStream stream, Charset charset) {
+            this.stream = stream;
+            this.reader = new BufferedReader(new InputStreamReader(stream, charset));
+            this.first = true;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            String retVal = this.reader.readLine();
+            if (this.first) {
+                // Strip a byte-order mark from the first line.
+                if (retVal != null && ! retVal.isEmpty() && retVal.charAt(0) == BOM)
+                    retVal = retVal.substring(1);
+                this.first = false;
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The buffered reader locks out close while a read is in progress, so we close the stream first to
+            // end any read on another thread.
+            this.stream.close();
+            this.reader.close();
+        }
+
+    }
+
+    /**
+     * This line source splits lines at the byte level.  It can only be used for ASCII-compatible character sets.
+     * Like a buffered reader, it recognizes a line feed, a carriage return, or both together as a line terminator.
+     */
+    private static class ByteSource implements LineSource {
+
+        /** underlying input stream */
+        private final InputStream stream;
+        /** character set for non-ASCII lines */
+        private final Charset charset;
+        /** input buffer */
+        private final byte[] buffer;
+        /** position of the next unread byte in the buffer */
+        private int pos;
+        /** number of valid bytes in the buffer */
+        private int limit;
+        /** accumulator for lines that cross a buffer boundary */
+        private byte[] lineBuf;
+        /** TRUE if the previous line ended with a carriage return */
+        private boolean skipLF;
+        /** TRUE if we still need to check for a UTF-8 byte-order mark */
+        private boolean checkBom;
+
+        /**
+         * Create a line source from a stream.
+         *
+         * @param stream	input stream to read
+         * @param charset	character set of the input
+         *
+         * @throws IOException
+         */
+        protected ByteSource(InputStream stream, Charset charset) throws IOException {
+            this.stream = stream;
+            this.charset = charset;
+            this.buffer = new byte[BUFFER_SIZE];
+            this.lineBuf = new byte[256];
+            this.pos = 0;
+            this.limit = 0;
+            this.skipLF = false;
+            // Only UTF-8 has a byte-order mark.  We check for it on the first read, so that opening an
+            // interactive stream or a pipe does not block.
+            this.checkBom = charset.equals(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Skip a UTF-8 byte-order mark at the start of the input.  We stop reading as soon as the bytes seen
+         * cannot be a mark, so a short first line on an interactive stream is not held up.
+         *
+         * @throws IOException
+         */
+        private void skipBom() throws IOException {
+            int n = 0;
+            while (this.limit < UTF8_BOM.length && n >= 0 && this.matchesBom()) {
+                n = this.stream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+                if (n > 0)
+                    this.limit += n;
+            }
+            if (this.limit >= UTF8_BOM.length && this.matchesBom())
+                this.pos = UTF8_BOM.length;
+            this.checkBom = false;
+        }
+
+        /**
+         * @return TRUE if the bytes in the buffer so far are consistent with a UTF-8 byte-order mark
+         */
+        private boolean matchesBom() {
+            boolean retVal = true;
+            final int n = Math.min(this.limit, UTF8_BOM.length);
+            for (int i = 0; i < n && retVal; i++)
+                retVal = (this.buffer[i] == UTF8_BOM[i]);
+            return retVal;
+        }
+
+        /**
+         * Refill the buffer.
+         *
+         * @return TRUE if data was read, FALSE at end-of-file
+         *
+         * @throws IOException
+         */
+        private boolean fill() throws IOException {
+            int n = 0;
+            while (n == 0)
+                n = this.stream.read(this.buffer);
+            boolean retVal = (n > 0);
+            this.pos = 0;
+            this.limit = (retVal ? n : 0);
+            return retVal;
+        }
+
+        /**
+         * @return a string for a sequence of bytes
+         *
+         * @param bytes		array containing the bytes
+         * @param len		number of bytes
+         * @param off		offset of the first byte
+         * @param ascii		TRUE if all the bytes are ASCII characters
+         */
+        private String makeString(byte[] bytes, int off, int len, boolean ascii) {
+            // An ASCII line can be copied directly into a compact Latin-1 string.
+            return new String(bytes, off, len, (ascii ? StandardCharsets.ISO_8859_1 : this.charset));
+        }
+
+        /**
+         * Add bytes from the buffer to the line accumulator.
+         *
+         * @param lineLen	number of bytes already in the accumulator
+         * @param start		position of the first byte to add
+         * @param end		position after the last byte to add
+         *
+         * @return the new accumulator length
+         */
+        private int accumulate(int lineLen, int start, int end) {
+            final int n = end - start;
+            if (lineLen + n > this.lineBuf.length)
+                this.lineBuf = Arrays.copyOf(this.lineBuf, Math.max(lineLen + n, this.lineBuf.length * 2));
+            System.arraycopy(this.buffer, start, this.lineBuf, lineLen, n);
+            return lineLen + n;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            if (this.checkBom)
+                this.skipBom();
+            String retVal = null;
+            int lineLen = 0;
+            int bits = 0;
+            boolean any = false;
+            boolean done = false;
+            while (! done) {
+                if (this.pos >= this.limit && ! this.fill()) {
+                    // End-of-file.  Return the residual line, if any.
+                    if (any)
+                        retVal = this.makeString(this.lineBuf, 0, lineLen, (bits & 0x80) == 0);
+                    done = true;
+                } else {
+                    if (this.skipLF) {
+                        // Skip the line feed of a CR-LF pair.
+                        if (this.buffer[this.pos] == '\n')
+                            this.pos++;
+                        this.skipLF = false;
+                    }
+                    final int start = this.pos;
+                    final int limit = this.limit;
+                    final byte[] buffer = this.buffer;
+                    int i = start;
+                    byte b = 0;
+                    while (i < limit && (b = buffer[i]) != '\n' && b != '\r') {
+                        bits |= b;
+                        i++;
+                    }
+                    if (i > start || i < limit)
+                        any = true;
+                    if (i >= limit) {
+                        // The line continues into the next buffer.
+                        lineLen = this.accumulate(lineLen, start, i);
+                        this.pos = limit;
+                    } else {
+                        if (lineLen == 0)
+                            retVal = this.makeString(buffer, start, i - start, (bits & 0x80) == 0);
+                        else {
+                            lineLen = this.accumulate(lineLen, start, i);
+                            retVal = this.makeString(this.lineBuf, 0, lineLen, (bits & 0x80) == 0);
+                        }
+                        this.skipLF = (b == '\r');
+                        this.pos = i + 1;
+                        done = true;
+                    }
+                }
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.close();
+        }
+
+    }
+
+    /**
+     * This line source reads batches of lines from another source on a background thread.  The batches are passed
+     * through a bounded queue, so the background thread waits when the consumer falls behind.  The queue contains
+     * line arrays, exceptions to be re-thrown, and a special empty array that indicates end-of-file.
+     */
+    private static class PrefetchSource implements LineSource, Runnable {
+
+        /** underlying line source */
+        private final LineSource source;
+        /** number of lines per batch */
+        private final int batchSize;
+        /** queue of batches */
+        private final BlockingQueue<Object> queue;
+        /** background reading thread */
+        private final Thread thread;
+        /** TRUE if the source is being closed */
+        private volatile boolean closed;
+        /** current batch of lines, or NULL if end-of-file has been reached */
+        private String[] batch;
+        /** position of the next line in the current batch */
+        private int batchPos;
+        /** end-of-file marker */
+        private static final String[] END = new String[0];
+
+        /**
+         * Start prefetching from a line source.
+         *
+         * @param source		underlying line source
+         * @param batchSize		number of lines per batch
+         * @param depth			maximum number of batches to queue
+         * @param name			name of the input, for the thread name
+         */
+        protected PrefetchSource(LineSource source, int batchSize, int depth, String name) {
+            this.source = source;
+            this.batchSize = batchSize;
+            this.queue = new ArrayBlockingQueue<Object>(depth);
+            this.closed = false;
+            this.batch = new String[0];
+            this.batchPos = 0;
+            this.thread = new Thread(this, "prefetch " + name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean eof = false;
+                while (! eof && ! this.closed) {
+                    String[] lines = new String[this.batchSize];
+                    int n = 0;
+                    String line = "";
+                    while (n < this.batchSize && (line = this.source.readLine()) != null) {
+                        lines[n] = line;
+                        n++;
+                    }
+                    if (n > 0)
+                        this.queue.put(n < this.batchSize ? Arrays.copyOf(lines, n) : lines);
+                    if (line == null) {
+                        this.queue.put(END);
+                        eof = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Here we are being closed.
+            } catch (IOException | RuntimeException e) {
+                // Pass the error to the consumer, unless it has stopped listening.
+                try {
+                    this.queue.put(e);
+                } catch (InterruptedException e2) { }
+            }
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            String retVal = null;
+            while (this.batch != null && this.batchPos >= this.batch.length) {
+                Object item;
+                try {
+                    item = this.queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for prefetched lines.");
+                }
+                if (item == END)
+                    this.batch = null;
+                else if (item instanceof IOException ioErr)
+                    throw ioErr;
+                else if (item instanceof RuntimeException rtErr)
+                    throw rtErr;
+                else {
+                    this.batch = (String[]) item;
+                    this.batchPos = 0;
+                }
+            }
+            if (this.batch != null) {
+                retVal = this.batch[this.batchPos];
+                this.batch[this.batchPos] = null;
+                this.batchPos++;
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Stop the background thread.  An interrupt does not end a blocked read, so we close the underlying
+            // source first.  The thread may also be blocked on a full queue, so we interrupt it and drain the queue.
+            this.closed = true;
+            IOException error = null;
+            try {
+                this.source.close();
+            } catch (IOException e) {
+                error = e;
+            }
+            this.thread.interrupt();
+            this.queue.clear();
+            try {
+                this.thread.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.thread.isAlive())
+                log.warn("Prefetch thread {} did not stop after {} ms.", this.thread.getName(), CLOSE_TIMEOUT);
+            this.queue.clear();
+            if (error != null)
+                throw error;
+        }
+
+    }
 
     /**
      * Create a line reader for the specified input file.
@@ -46,15 +446,27 @@ public class LineReader implements Iterable<String>, Iterator<String>, AutoClose
      * @throws IOException
      */
     public LineReader(File inputFile) throws IOException {
-        Reader streamReader;
+        this(inputFile, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create a line reader for the specified input file with the specified character set.
+     *
+     * @param inputFile		input file to read, or NULL to read the standard input
+     * @param charset		character set of the file
+     *
+     * @throws IOException
+     */
+    public LineReader(File inputFile, Charset charset) throws IOException {
+        InputStream stream;
         if (inputFile != null) {
-            streamReader = new FileReader(inputFile);
+            stream = new FileInputStream(inputFile);
             this.fileName = inputFile.toString();
         } else {
-            streamReader = new InputStreamReader(System.in);
+            stream = System.in;
             this.fileName = "standard input";
         }
-        setup(streamReader);
+        setup(stream, charset);
     }
 
     /**
@@ -65,9 +477,20 @@ public class LineReader implements Iterable<String>, Iterator<String>, AutoClose
      * @throws IOException
      */
     public LineReader(InputStream inputStream) throws IOException {
+        this(inputStream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create a line reader for the specified input stream with the specified character set.
+     *
+     * @param inputStream	input stream to read
+     * @param charset		character set of the stream
+     *
+     * @throws IOException
+     */
+    public LineReader(InputStream inputStream, Charset charset) throws IOException {
         this.fileName = "text file input stream";
-        Reader streamReader = new InputStreamReader(inputStream);
-        setup(streamReader);
+        setup(inputStream, charset);
     }
 
     /**
@@ -109,12 +532,17 @@ public class LineReader implements Iterable<String>, Iterator<String>, AutoClose
     /**
      * Initialize this file for reading.
      *
-     * @param streamReader	reader for the input stream
+     * @param stream	input stream
+     * @param charset	character set of the input stream
      *
      * @throws IOException
      */
-    private void setup(Reader streamReader) throws IOException {
-        this.reader = new BufferedReader(streamReader);
+    private void setup(InputStream stream, Charset charset) throws IOException {
+        if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1))
+            this.reader = new ByteSource(stream, charset);
+        else
+            this.reader = new ReaderSource(stream, charset);
         this.eof = false;
         this.nextLine = null;
     }
@@ -124,6 +552,33 @@ public class LineReader implements Iterable<String>, Iterator<String>, AutoClose
         return this;
     }
 
+    /**
+     * Read lines on a background thread, so that reading overlaps with processing.  The lines are passed in batches
+     * through a bounded queue, so memory use is limited to about (batchSize * depth) lines.  The background thread
+     * is stopped when this reader is closed.
+     *
+     * @param batchSize		number of lines per batch
+     * @param depth			maximum number of batches to hold
+     *
+     * @return this object, for chaining
+     */
+    public LineReader prefetch(int batchSize, int depth) {
+        if (batchSize < 1 || depth < 1)
+            throw new IllegalArgumentException("Prefetch batch size and depth must be positive.");
+        if (! (this.reader instanceof PrefetchSource))
+            this.reader = new PrefetchSource(this.reader, batchSize, depth, this.fileName);
+        return this;
+    }
+
+    /**
+     * Read lines on a background thread using the default batch size and depth.
+     *
+     * @return this object, for chaining
+     */
+    public LineReader prefetch() {
+        return this.prefetch(DEFAULT_BATCH_SIZE, DEFAULT_PREFETCH_DEPTH);
+    }
+
     /**
      * @return the name of this file
      */
@@ -303,6 +758,22 @@ public class LineReader implements Iterable<String>, Iterator<String>, AutoClose
 
     }
 
+    /**
+     * Open a reader for a single section of a multi-section file.  The section index is taken from the sidecar file,
+     * which is built or rebuilt if necessary (see {@link SectionIndex}).
+     *
+     * @param inFile	multi-section file to read
+     * @param marker	end-of-section marker
+     * @param n			index of the desired section (0-based)
+     *
+     * @return a line reader for the section, not including the marker
+     *
+     * @throws IOException
+     */
+    public static LineReader openSection(File inFile, String marker, int n) throws IOException {
+        return SectionIndex.forFile(inFile, marker).openSection(n);
+    }
+
     /**
      * Skip the current section in the file.
      *
@@ -5,23 +5,57 @@ package org.theseed.io;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * This is an iterable, streamable object for a master directory of genome directories. Each genome
  * directory must be a subdirectory of the master, with the genome ID for its name.
  *
+ * The standard constructor lists the directory up front.  The lazy constructor reads the directory as it is
+ * iterated, and can cache the list of genome directories in an index file (see {@link DirectoryScanner}).
+ *
+ * For large directories, {@link #forEach(IGenomeDirTask, Options)} runs a task on every genome directory
+ * with a controlled degree of parallelism, optional per-genome timeouts, and progress reporting.  A genome
+ * that fails or times out is recorded in the results, and the run continues with the others.
+ *
+ * For incremental jobs, {@link #changedSince(GenomeDirManifest)} and
+ * {@link #forEachChanged(IGenomeDirTask, Options, GenomeDirManifest)} use a manifest from a previous run
+ * to skip genomes that have not changed.
+ *
  * @author Bruce Parrello
  *
  */
 public class MasterGenomeDir implements Iterable<File> {
 
     // FIELDS
-    /** list of subdirectories */
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(MasterGenomeDir.class);
+    /** list of subdirectories, or NULL if we are scanning lazily */
     private File[] dirList;
+    /** lazy directory scanner, or NULL if we have a list */
+    private final DirectoryScanner scanner;
     /** genome directory name match pattern */
     private static final Pattern GENOME_ID_PATTERN = Pattern.compile("\\d+\\.\\d+");
     /** genome sub-directory file filter */
@@ -54,7 +88,7 @@ public class MasterGenomeDir implements Iterable<File> {
 
         @Override
         public boolean hasNext() {
-            return (this.pos < MasterGenomeDir.this.size());
+            return (this.pos < MasterGenomeDir.this.dirList.length);
         }
 
         @Override
@@ -66,6 +100,315 @@ public class MasterGenomeDir implements Iterable<File> {
 
     }
 
+    /**
+     * This class contains the options for a {@link MasterGenomeDir#forEach(IGenomeDirTask, Options)} run.
+     * The setters return the object, so they can be chained.
+     */
+    public static class Options {
+
+        /** maximum number of genomes to process at once */
+        private int threads;
+        /** TRUE to use a virtual thread for each genome */
+        private boolean virtual;
+        /** caller-supplied executor, or NULL to create one */
+        private ExecutorService executor;
+        /** maximum time for each genome, or NULL for no limit */
+        private Duration timeout;
+        /** interval between progress reports, or NULL for no reports */
+        private Duration progressInterval;
+        /** progress listener */
+        private Consumer<Results> listener;
+
+        /**
+         * Create the default options:  one platform thread per processor, no timeout, and a log message
+         * every 10 seconds.
+         */
+        public Options() {
+            this.threads = Runtime.getRuntime().availableProcessors();
+            this.virtual = false;
+            this.executor = null;
+            this.timeout = null;
+            this.progressInterval = Duration.ofSeconds(10);
+            this.listener = x -> log.info("{}", x);
+        }
+
+        /**
+         * Specify the maximum number of genomes to process at once.
+         *
+         * @param threads	number of genomes to process in parallel
+         */
+        public Options setThreads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("Thread count must be positive.");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Specify whether to run each genome on its own virtual thread.  This is best for I/O-bound tasks,
+         * which should also specify a high thread count.
+         *
+         * @param virtual	TRUE to use virtual threads
+         */
+        public Options setVirtualThreads(boolean virtual) {
+            this.virtual = virtual;
+            return this;
+        }
+
+        /**
+         * Specify an executor to run the genome tasks.  The executor belongs to the caller, and is not shut
+         * down at the end of the run.  The thread count still limits the number of genomes in progress.
+         *
+         * @param executor	executor to use, or NULL to create one for the run
+         */
+        public Options setExecutor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Specify the maximum time allowed for a single genome.  When the time runs out, the genome is recorded
+         * as timed out and its thread is interrupted.
+         *
+         * A thread cannot be stopped, only interrupted, so a timed-out task keeps running until it notices the
+         * interrupt.  Its slot is released at the timeout so that the run can move on, which means a task that
+         * ignores interruption can leave more than the thread count of genomes in flight at once, and can still
+         * be running after the run returns.  When the executor is created for the run with platform threads, the
+         * pool size still caps the number of tasks actually executing; with virtual threads or a caller-supplied
+         * executor, only well-behaved tasks are bounded.
+         *
+         * @param timeout	maximum time per genome, or NULL for no limit
+         */
+        public Options setTimeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * Specify how often to report progress.
+         *
+         * @param interval	interval between progress reports, or NULL to report only at the end
+         */
+        public Options setProgressInterval(Duration interval) {
+            this.progressInterval = interval;
+            return this;
+        }
+
+        /**
+         * Specify the progress listener.  The listener is called periodically from a timer thread and once
+         * at the end of the run.  The default listener writes to the log.
+         *
+         * @param listener	progress listener
+         */
+        public Options setProgressListener(Consumer<Results> listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * @return a new executor for a run that does not have a caller-supplied one
+         */
+        protected ExecutorService createExecutor() {
+            ExecutorService retVal;
+            if (this.virtual)
+                retVal = Executors.newVirtualThreadPerTaskExecutor();
+            else
+                retVal = Executors.newFixedThreadPool(this.threads);
+            return retVal;
+        }
+
+    }
+
+    /**
+     * This class contains the progress and results of a {@link MasterGenomeDir#forEach(IGenomeDirTask, Options)}
+     * run.  The counts are updated while the run is in progress.
+     */
+    public static class Results {
+
+        /** total number of genomes, or -1 if it is not yet known */
+        private volatile int total;
+        /** number of genomes processed successfully */
+        private final AtomicInteger succeeded;
+        /** number of genomes that failed with an error */
+        private final AtomicInteger failed;
+        /** number of genomes that timed out */
+        private final AtomicInteger timedOut;
+        /** number of genomes skipped because they were unchanged */
+        private final AtomicInteger skipped;
+        /** map of genome directories to errors */
+        private final Map<File, Throwable> errors;
+        /** start time in nanoseconds */
+        private final long start;
+        /** end time in nanoseconds, or 0 if the run is still in progress */
+        private volatile long end;
+
+        /**
+         * Create a results object for a new run.
+         *
+         * @param total		total number of genomes to process, or -1 if it is not yet known
+         */
+        protected Results(int total) {
+            this.total = total;
+            this.succeeded = new AtomicInteger();
+            this.failed = new AtomicInteger();
+            this.timedOut = new AtomicInteger();
+            this.skipped = new AtomicInteger();
+            this.errors = new ConcurrentHashMap<File, Throwable>();
+            this.start = System.nanoTime();
+            this.end = 0;
+        }
+
+        /**
+         * Record an error for a genome.
+         *
+         * @param genomeDir		genome directory that failed
+         * @param error			error that occurred
+         */
+        protected void recordError(File genomeDir, Throwable error) {
+            this.errors.put(genomeDir, error);
+            if (error instanceof TimeoutException)
+                this.timedOut.incrementAndGet();
+            else
+                this.failed.incrementAndGet();
+        }
+
+        /**
+         * @return the total number of genomes in the run, or -1 if the directory is still being scanned
+         */
+        public int getTotal() {
+            return this.total;
+        }
+
+        /**
+         * @return the number of genomes processed successfully
+         */
+        public int getSucceeded() {
+            return this.succeeded.get();
+        }
+
+        /**
+         * @return the number of genomes that failed with an error
+         */
+        public int getFailed() {
+            return this.failed.get();
+        }
+
+        /**
+         * @return the number of genomes that timed out
+         */
+        public int getTimedOut() {
+            return this.timedOut.get();
+        }
+
+        /**
+         * @return the number of genomes skipped because they had not changed
+         */
+        public int getSkipped() {
+            return this.skipped.get();
+        }
+
+        /**
+         * @return the number of genomes finished so far, whether or not they succeeded
+         */
+        public int getDone() {
+            return this.succeeded.get() + this.failed.get() + this.timedOut.get() + this.skipped.get();
+        }
+
+        /**
+         * @return a map of each failed or timed-out genome directory to its error, sorted by directory
+         */
+        public Map<File, Throwable> getErrors() {
+            return Collections.unmodifiableMap(new TreeMap<File, Throwable>(this.errors));
+        }
+
+        /**
+         * @return the elapsed time of the run so far, in milliseconds
+         */
+        public long getElapsedMillis() {
+            long stop = (this.end == 0 ? System.nanoTime() : this.end);
+            return TimeUnit.NANOSECONDS.toMillis(stop - this.start);
+        }
+
+        /**
+         * @return the number of genomes finished per second
+         */
+        public double getRate() {
+            long millis = this.getElapsedMillis();
+            return (millis == 0 ? 0.0 : this.getDone() * 1000.0 / millis);
+        }
+
+        /**
+         * @return TRUE if the run is complete
+         */
+        public boolean isComplete() {
+            return this.end != 0;
+        }
+
+        @Override
+        public String toString() {
+            String totalString = (this.total < 0 ? "?" : Integer.toString(this.total));
+            return String.format("%d of %s genomes done (%d failed, %d timed out, %d skipped) in %1.1f seconds, %1.2f genomes/second.",
+                    this.getDone(), totalString, this.getFailed(), this.getTimedOut(), this.getSkipped(),
+                    this.getElapsedMillis() / 1000.0, this.getRate());
+        }
+
+    }
+
+    /**
+     * This interface describes a check that decides whether a genome directory needs processing.
+     */
+    @FunctionalInterface
+    private interface IGenomeDirCheck {
+
+        /**
+         * @return TRUE if the genome directory should be processed, FALSE to skip it
+         *
+         * @param genomeDir		genome directory to check
+         *
+         * @throws Exception	if the genome cannot be checked; the error is recorded and the run continues
+         */
+        public boolean test(File genomeDir) throws Exception;
+
+    }
+
+    /**
+     * This object tracks a single genome in progress.  Exactly one of the task and the watchdog
+     * finishes it.
+     */
+    private static class Job {
+
+        /** thread running the task */
+        private final Thread thread;
+        /** TRUE if the genome has been finished */
+        private boolean done;
+
+        /**
+         * Create a job for the current thread.
+         */
+        protected Job() {
+            this.thread = Thread.currentThread();
+            this.done = false;
+        }
+
+        /**
+         * Claim the right to finish this job.
+         *
+         * @param interrupt		TRUE to interrupt the task's thread if the claim succeeds
+         *
+         * @return TRUE if the claim succeeded, FALSE if the job was already finished
+         */
+        protected synchronized boolean claim(boolean interrupt) {
+            boolean retVal = ! this.done;
+            if (retVal) {
+                this.done = true;
+                if (interrupt)
+                    this.thread.interrupt();
+            }
+            return retVal;
+        }
+
+    }
+
     /**
      * Construct a genome-directory master directory object.
      *
@@ -73,32 +416,214 @@ public class MasterGenomeDir implements Iterable<File> {
      */
     public MasterGenomeDir(File dir) {
         this.dirList = dir.listFiles(GENOME_SUB_DIR_FILTER);
+        this.scanner = null;
     }
 
     /**
-     * @return the number of genome subdirectories
+     * Construct a lazily-scanned genome-directory master directory object.  The directory is read as it is
+     * iterated, so processing can begin immediately.
+     *
+     * @param dir			name of the master directory
+     * @param indexFile		index file for caching the list of genome directories, or NULL to scan every time
+     */
+    public MasterGenomeDir(File dir, File indexFile) {
+        this.dirList = null;
+        this.scanner = new DirectoryScanner(dir, GENOME_SUB_DIR_FILTER, indexFile);
+    }
+
+    /**
+     * @return the number of genome subdirectories (for a lazy scan, this requires reading the entire directory)
      */
     public int size() {
-        return this.dirList.length;
+        int retVal;
+        if (this.dirList != null)
+            retVal = this.dirList.length;
+        else
+            retVal = this.scanner.size();
+        return retVal;
     }
 
     @Override
     public Iterator<File> iterator() {
-        return this.new Iter();
+        Iterator<File> retVal;
+        if (this.dirList != null)
+            retVal = this.new Iter();
+        else
+            retVal = this.scanner.iterator();
+        return retVal;
     }
 
     /**
-     * @return a stream through the genome subdirectories
+     * @return a stream through the genome subdirectories (for a lazy scan, a stream that may not be consumed
+     * 		   completely should be closed)
      */
     public Stream<File> stream() {
-        return Arrays.stream(this.dirList);
+        Stream<File> retVal;
+        if (this.dirList != null)
+            retVal = Arrays.stream(this.dirList);
+        else
+            retVal = this.scanner.stream();
+        return retVal;
     }
 
     /**
      * @return a parallel stream through the genome subdirectories
      */
     public Stream<File> parallelStream() {
-        return Arrays.stream(this.dirList).parallel();
+        return this.stream().parallel();
+    }
+
+    /**
+     * Run a task on every genome directory.  Errors in individual genomes are recorded in the results,
+     * and do not stop the run.
+     *
+     * @param task		task to run on each genome directory
+     * @param options	options for the run
+     *
+     * @return the results of the run
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Results forEach(IGenomeDirTask task, Options options) throws InterruptedException {
+        return this.run(this, (this.dirList == null ? -1 : this.dirList.length), null, task, null, options);
+    }
+
+    /**
+     * @return a stream of the genome directories that are new or changed since they were recorded in a manifest
+     * 		   (the check is performed by the stream, so it is only parallel if the stream is)
+     *
+     * @param manifest	manifest from a previous run
+     */
+    public Stream<File> changedSince(GenomeDirManifest manifest) {
+        return this.stream().filter(x -> {
+            try {
+                return manifest.isChanged(x);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Run a task on every genome directory that is new or changed since it was recorded in a manifest.  The
+     * change check runs inside the parallel tasks, and unchanged genomes are counted as skipped.  Each genome
+     * processed successfully within its time limit is updated in the manifest, which the caller should save at the end.
+     *
+     * @param task		task to run on each genome directory
+     * @param options	options for the run
+     * @param manifest	manifest from a previous run
+     *
+     * @return the results of the run
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Results forEachChanged(IGenomeDirTask task, Options options, GenomeDirManifest manifest)
+            throws InterruptedException {
+        return this.run(this, (this.dirList == null ? -1 : this.dirList.length), manifest::isChanged, task,
+                manifest::update, options);
+    }
+
+    /**
+     * Run a task on a sequence of genome directories.
+     *
+     * @param genomeDirs	genome directories to process
+     * @param total			number of genome directories, or -1 if it is not known
+     * @param check			check that decides whether to process each genome directory, or NULL to process all
+     * @param task			task to run on each genome directory
+     * @param onSuccess		action to perform after each genome that succeeds within its time limit, or NULL
+     * @param options		options for the run
+     *
+     * @return the results of the run
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    private Results run(Iterable<File> genomeDirs, int total, IGenomeDirCheck check, IGenomeDirTask task,
+            IGenomeDirTask onSuccess, Options options) throws InterruptedException {
+        Results retVal = new Results(total);
+        // This limits the number of genomes in progress.  When we hold all the permits, every genome is finished.
+        Semaphore permits = new Semaphore(options.threads);
+        Iterator<File> genomeIter = null;
+        ExecutorService executor = options.executor;
+        final boolean owned = (executor == null);
+        if (owned)
+            executor = options.createExecutor();
+        // The timer runs the watchdogs and the progress reports.
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "genome-dir-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            if (options.progressInterval != null && options.listener != null) {
+                long interval = options.progressInterval.toMillis();
+                timer.scheduleAtFixedRate(() -> options.listener.accept(retVal), interval, interval,
+                        TimeUnit.MILLISECONDS);
+            }
+            int count = 0;
+            genomeIter = genomeDirs.iterator();
+            while (genomeIter.hasNext()) {
+                File genomeDir = genomeIter.next();
+                permits.acquire();
+                count++;
+                executor.execute(() -> {
+                    Job job = new Job();
+                    ScheduledFuture<?> watchdog = null;
+                    if (options.timeout != null) {
+                        watchdog = timer.schedule(() -> {
+                            if (job.claim(true)) {
+                                retVal.recordError(genomeDir, new TimeoutException("Timed out processing " + genomeDir + "."));
+                                permits.release();
+                            }
+                        }, options.timeout.toMillis(), TimeUnit.MILLISECONDS);
+                    }
+                    Throwable error = null;
+                    boolean skip = false;
+                    try {
+                        if (check != null && ! check.test(genomeDir))
+                            skip = true;
+                        else
+                            task.process(genomeDir);
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                    if (watchdog != null)
+                        watchdog.cancel(false);
+                    if (job.claim(false)) {
+                        // The genome finished in time.  Only now is it safe to run the success action.
+                        if (error == null && ! skip && onSuccess != null) {
+                            try {
+                                onSuccess.process(genomeDir);
+                            } catch (Throwable e) {
+                                error = e;
+                            }
+                        }
+                        if (error != null)
+                            retVal.recordError(genomeDir, error);
+                        else if (skip)
+                            retVal.skipped.incrementAndGet();
+                        else
+                            retVal.succeeded.incrementAndGet();
+                        permits.release();
+                    } else {
+                        // We timed out, so clear the watchdog's interrupt before the thread is reused.
+                        Thread.interrupted();
+                    }
+                });
+            }
+            retVal.total = count;
+            permits.acquire(options.threads);
+        } finally {
+            // If we were interrupted during a lazy scan, the directory stream is still open.
+            if (genomeIter instanceof DirectoryScanner.Iter)
+                ((DirectoryScanner.Iter) genomeIter).close();
+            timer.shutdownNow();
+            if (owned)
+                executor.shutdownNow();
+        }
+        retVal.end = System.nanoTime();
+        if (options.listener != null)
+            options.listener.accept(retVal);
+        return retVal;
     }
 
 }
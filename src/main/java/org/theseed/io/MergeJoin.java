@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * This object performs a streaming inner join of two {@link FieldInputStream}s that are both sorted by a key
+ * column (for example, by a {@link FieldSorter}).  It returns a pair of records for every left record and right
+ * record that have the same key.  Keys are compared as strings.
+ *
+ * Only the right-side records for a single key value are held in memory, so the smaller side of a many-to-many
+ * relationship should be on the right.  If either stream is found to be out of order, an IllegalStateException
+ * is thrown.  The streams belong to the caller and are not closed by this object.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MergeJoin implements Iterable<MergeJoin.Pair>, Iterator<MergeJoin.Pair> {
+
+    // FIELDS
+    /** left input stream */
+    private final FieldInputStream leftStream;
+    /** right input stream */
+    private final FieldInputStream rightStream;
+    /** index of left key column */
+    private final int leftKeyIdx;
+    /** index of right key column */
+    private final int rightKeyIdx;
+    /** current left record, or NULL if the left stream is exhausted */
+    private FieldInputStream.Record leftRecord;
+    /** key of current left record */
+    private String leftKey;
+    /** current group of right records with the same key */
+    private List<FieldInputStream.Record> rightGroup;
+    /** key of current right group, or NULL if the right stream is exhausted */
+    private String rightKey;
+    /** first right record after the current group, or NULL if there is none */
+    private FieldInputStream.Record rightNext;
+    /** position of the next right record to pair with the current left record */
+    private int groupPos;
+    /** TRUE if the current position is a match that has not yet been returned */
+    private boolean ready;
+
+    /**
+     * This object represents a pair of joined records.
+     */
+    public static class Pair {
+
+        /** join key */
+        private final String key;
+        /** left record */
+        private final FieldInputStream.Record left;
+        /** right record */
+        private final FieldInputStream.Record right;
+
+        /**
+         * Create a joined pair.
+         *
+         * @param key		join key
+         * @param left		left record
+         * @param right		right record
+         */
+        protected Pair(String key, FieldInputStream.Record left, FieldInputStream.Record right) {
+            this.key = key;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * @return the join key
+         */
+        public String getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return the left record
+         */
+        public FieldInputStream.Record getLeft() {
+            return this.left;
+        }
+
+        /**
+         * @return the right record
+         */
+        public FieldInputStream.Record getRight() {
+            return this.right;
+        }
+
+    }
+
+    /**
+     * Create a merge-join of two sorted streams.
+     *
+     * @param leftStream	left input stream, sorted by the left key
+     * @param leftKeyName	name of the left key column
+     * @param rightStream	right input stream, sorted by the right key
+     * @param rightKeyName	name of the right key column
+     *
+     * @throws IOException
+     */
+    public MergeJoin(FieldInputStream leftStream, String leftKeyName, FieldInputStream rightStream, String rightKeyName)
+            throws IOException {
+        this.leftStream = leftStream;
+        this.rightStream = rightStream;
+        this.leftKeyIdx = leftStream.findField(leftKeyName);
+        this.rightKeyIdx = rightStream.findField(rightKeyName);
+        this.rightGroup = new ArrayList<FieldInputStream.Record>();
+        // Prime both sides.
+        this.leftKey = null;
+        this.advanceLeft();
+        this.rightNext = (this.rightStream.hasNext() ? this.rightStream.next() : null);
+        this.rightKey = null;
+        this.loadRightGroup();
+        this.ready = false;
+    }
+
+    /**
+     * Move to the next left record.
+     */
+    private void advanceLeft() {
+        if (! this.leftStream.hasNext())
+            this.leftRecord = null;
+        else {
+            this.leftRecord = this.leftStream.next();
+            String newKey = this.leftRecord.get(this.leftKeyIdx);
+            if (this.leftKey != null && newKey.compareTo(this.leftKey) < 0)
+                throw new IllegalStateException("Left join stream is not sorted at key \"" + newKey + "\".");
+            this.leftKey = newKey;
+        }
+        this.groupPos = 0;
+    }
+
+    /**
+     * Load the next group of right records with the same key.
+     */
+    private void loadRightGroup() {
+        this.rightGroup.clear();
+        if (this.rightNext == null)
+            this.rightKey = null;
+        else {
+            String newKey = this.rightNext.get(this.rightKeyIdx);
+            if (this.rightKey != null && newKey.compareTo(this.rightKey) < 0)
+                throw new IllegalStateException("Right join stream is not sorted at key \"" + newKey + "\".");
+            this.rightKey = newKey;
+            this.rightGroup.add(this.rightNext);
+            this.rightNext = null;
+            while (this.rightNext == null && this.rightStream.hasNext()) {
+                FieldInputStream.Record record = this.rightStream.next();
+                if (record.get(this.rightKeyIdx).equals(newKey))
+                    this.rightGroup.add(record);
+                else
+                    this.rightNext = record;
+            }
+        }
+        this.groupPos = 0;
+    }
+
+    /**
+     * Position on the next matching pair, if any.
+     */
+    private void findMatch() {
+        while (! this.ready && this.leftRecord != null && this.rightKey != null) {
+            if (this.groupPos >= this.rightGroup.size()) {
+                // The current left record is paired with the whole group, so move to the next one.  Note that
+                // advancing the left side resets the group position.
+                this.advanceLeft();
+            } else {
+                int cmp = this.leftKey.compareTo(this.rightKey);
+                if (cmp < 0)
+                    this.advanceLeft();
+                else if (cmp > 0)
+                    this.loadRightGroup();
+                else
+                    this.ready = true;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        this.findMatch();
+        return this.ready;
+    }
+
+    @Override
+    public Pair next() {
+        this.findMatch();
+        if (! this.ready)
+            throw new NoSuchElementException("Attempt to read past end of merge-join.");
+        Pair retVal = new Pair(this.leftKey, this.leftRecord, this.rightGroup.get(this.groupPos));
+        this.groupPos++;
+        this.ready = false;
+        return retVal;
+    }
+
+    @Override
+    public Iterator<Pair> iterator() {
+        return this;
+    }
+
+}
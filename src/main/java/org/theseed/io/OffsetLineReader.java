@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This is a minimal UTF-8 line splitter that tracks the byte offset of each line, for use in building file indexes.
+ * Lines are terminated by a line feed, and a trailing carriage return is removed.  The input stream should be
+ * buffered.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class OffsetLineReader {
+
+    // FIELDS
+    /** input stream */
+    private final InputStream stream;
+    /** offset of the next unread byte */
+    private long offset;
+    /** line buffer */
+    private byte[] buffer;
+
+    /**
+     * Create a line splitter for a stream.
+     *
+     * @param stream		input stream, positioned at the start of the file
+     */
+    protected OffsetLineReader(InputStream stream) {
+        this.stream = stream;
+        this.offset = 0;
+        this.buffer = new byte[256];
+    }
+
+    /**
+     * @return the next line, or NULL at end-of-file
+     *
+     * @throws IOException
+     */
+    protected String next() throws IOException {
+        String retVal = null;
+        int len = 0;
+        int b = this.stream.read();
+        if (b >= 0) {
+            while (b >= 0 && b != '\n') {
+                if (len >= this.buffer.length)
+                    this.buffer = Arrays.copyOf(this.buffer, len * 2);
+                this.buffer[len] = (byte) b;
+                len++;
+                this.offset++;
+                b = this.stream.read();
+            }
+            if (b >= 0)
+                this.offset++;
+            if (len > 0 && this.buffer[len - 1] == '\r')
+                len--;
+            retVal = new String(this.buffer, 0, len, StandardCharsets.UTF_8);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the offset of the next line
+     */
+    protected long getOffset() {
+        return this.offset;
+    }
+
+}
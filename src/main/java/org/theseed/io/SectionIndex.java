@@ -0,0 +1,444 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object is an index of the sections in a multi-section text file, where each section is terminated by a marker
+ * line (for example, "//").  The last section may run to end-of-file instead.  For each section, the index records
+ * the byte offset of its first line and the byte offset of its marker, so a section can be read directly without
+ * scanning the ones before it.  The reader for a section does not return the marker line.
+ *
+ * Sections are read with positional reads on a file channel, so many sections can be read at once from a single
+ * channel.  This makes it possible to process the sections in parallel (see {@link #forEach(ISectionTask, int)}).
+ *
+ * The index can be saved as a sidecar file next to the data file.  The sidecar records the length and modification
+ * time of the data file, and it is rebuilt automatically if the data file has changed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SectionIndex {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(SectionIndex.class);
+    /** indexed file */
+    private final File dataFile;
+    /** end-of-section marker */
+    private final String marker;
+    /** length of the data file when indexed */
+    private final long fileLength;
+    /** modification time of the data file when indexed */
+    private final long fileTime;
+    /** start offset of each section */
+    private final long[] starts;
+    /** end offset of each section */
+    private final long[] ends;
+    /** filename suffix for sidecar index files */
+    public static final String SUFFIX = ".sidx";
+    /** marker for the sidecar metadata line */
+    private static final String SIDECAR_MARKER = "#sectionindex";
+    /** characters that must be escaped in the sidecar */
+    private static final String[] RAW_CHARS = new String[] { "\\", "\t", "\n", "\r" };
+    /** escaped forms of the special characters */
+    private static final String[] ESCAPED_CHARS = new String[] { "\\\\", "\\t", "\\n", "\\r" };
+    /** buffer size for section reads */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * This interface describes a task that processes a single section.
+     */
+    public interface ISectionTask {
+
+        /**
+         * Process one section of the file.
+         *
+         * @param n			index of the section (0-based)
+         * @param reader	line reader for the section
+         *
+         * @throws Exception
+         */
+        public void process(int n, LineReader reader) throws Exception;
+
+    }
+
+    /**
+     * This input stream reads a byte range from a file channel using positional reads, so it does not disturb
+     * the channel position and can share the channel with other streams.
+     */
+    private static class ChannelRangeStream extends InputStream {
+
+        /** file channel to read */
+        private final FileChannel channel;
+        /** TRUE if the channel should be closed with this stream */
+        private final boolean ownsChannel;
+        /** next position to read */
+        private long pos;
+        /** position after the last byte to read */
+        private final long end;
+        /** buffer for reading */
+        private final ByteBuffer buffer;
+
+        /**
+         * Create a stream for a byte range.
+         *
+         * @param channel		file channel to read
+         * @param start			offset of the first byte
+         * @param end			offset after the last byte
+         * @param ownsChannel	TRUE if the channel should be closed with this stream
+         */
+        protected ChannelRangeStream(FileChannel channel, long start, long end, boolean ownsChannel) {
+            this.channel = channel;
+            this.ownsChannel = ownsChannel;
+            this.pos = start;
+            this.end = end;
+            this.buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(end - start, 1)));
+            this.buffer.limit(0);
+        }
+
+        /**
+         * Insure there is data in the buffer.
+         *
+         * @return TRUE if data is available, FALSE at end of range
+         *
+         * @throws IOException
+         */
+        private boolean fill() throws IOException {
+            boolean retVal = this.buffer.hasRemaining();
+            if (! retVal && this.pos < this.end) {
+                this.buffer.clear();
+                this.buffer.limit((int) Math.min(this.buffer.capacity(), this.end - this.pos));
+                int n = this.channel.read(this.buffer, this.pos);
+                this.buffer.flip();
+                if (n > 0) {
+                    this.pos += n;
+                    retVal = true;
+                }
+            }
+            return retVal;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int retVal = -1;
+            if (this.fill())
+                retVal = this.buffer.get() & 0xFF;
+            return retVal;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int retVal = -1;
+            if (len == 0)
+                retVal = 0;
+            else if (this.fill()) {
+                retVal = Math.min(len, this.buffer.remaining());
+                this.buffer.get(b, off, retVal);
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.ownsChannel)
+                this.channel.close();
+        }
+
+    }
+
+    /**
+     * Construct a section index from its components.
+     *
+     * @param dataFile		indexed file
+     * @param marker		end-of-section marker
+     * @param fileLength	length of the data file
+     * @param fileTime		modification time of the data file
+     * @param starts		start offset of each section
+     * @param ends			end offset of each section
+     */
+    private SectionIndex(File dataFile, String marker, long fileLength, long fileTime, long[] starts, long[] ends) {
+        this.dataFile = dataFile;
+        this.marker = marker;
+        this.fileLength = fileLength;
+        this.fileTime = fileTime;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Build the section index for a file.
+     *
+     * @param dataFile		file to index
+     * @param marker		end-of-section marker
+     *
+     * @return the index built
+     *
+     * @throws IOException
+     */
+    public static SectionIndex build(File dataFile, String marker) throws IOException {
+        final long fileLength = dataFile.length();
+        final long fileTime = dataFile.lastModified();
+        long[] starts = new long[64];
+        long[] ends = new long[64];
+        int n = 0;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(dataFile))) {
+            OffsetLineReader lines = new OffsetLineReader(stream);
+            long start = 0;
+            long offset = 0;
+            for (String line = lines.next(); line != null; line = lines.next()) {
+                if (line.equals(marker)) {
+                    if (n >= starts.length) {
+                        starts = Arrays.copyOf(starts, n * 2);
+                        ends = Arrays.copyOf(ends, n * 2);
+                    }
+                    starts[n] = start;
+                    ends[n] = offset;
+                    n++;
+                    start = lines.getOffset();
+                }
+                offset = lines.getOffset();
+            }
+            // If there is anything after the last marker, it is a final section.
+            if (start < offset) {
+                if (n >= starts.length) {
+                    starts = Arrays.copyOf(starts, n + 1);
+                    ends = Arrays.copyOf(ends, n + 1);
+                }
+                starts[n] = start;
+                ends[n] = offset;
+                n++;
+            }
+        }
+        log.info("{} sections indexed for {}.", n, dataFile);
+        return new SectionIndex(dataFile, marker, fileLength, fileTime, Arrays.copyOf(starts, n), Arrays.copyOf(ends, n));
+    }
+
+    /**
+     * Get the section index for a file, using the sidecar if it is up to date, and otherwise building the index
+     * and saving it to the sidecar.  A sidecar that cannot be read is treated as out of date.
+     *
+     * @param dataFile		file to index
+     * @param marker		end-of-section marker
+     *
+     * @return the index for the file
+     *
+     * @throws IOException
+     */
+    public static SectionIndex forFile(File dataFile, String marker) throws IOException {
+        File sidecar = sidecarFile(dataFile);
+        SectionIndex retVal = null;
+        if (sidecar.isFile()) {
+            try {
+                SectionIndex old = load(dataFile, sidecar);
+                if (old.isValid() && old.marker.equals(marker))
+                    retVal = old;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Rebuilding unreadable section index {}: {}", sidecar, e.toString());
+            }
+        }
+        if (retVal == null) {
+            retVal = build(dataFile, marker);
+            retVal.save(sidecar);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sidecar index file for a data file
+     *
+     * @param dataFile		data file of interest
+     */
+    public static File sidecarFile(File dataFile) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), dataFile.getName() + SUFFIX);
+    }
+
+    /**
+     * Load a section index from a file.
+     *
+     * @param dataFile		data file that was indexed
+     * @param indexFile		file containing the saved index
+     *
+     * @return the index loaded
+     *
+     * @throws IOException
+     */
+    public static SectionIndex load(File dataFile, File indexFile) throws IOException {
+        SectionIndex retVal;
+        try (LineReader reader = new LineReader(indexFile)) {
+            if (! reader.hasNext())
+                throw new IOException("Index file " + indexFile + " is empty.");
+            String[] meta = StringUtils.splitPreserveAllTokens(reader.next(), '\t');
+            if (meta.length != 4 || ! meta[0].equals(SIDECAR_MARKER))
+                throw new IOException("Index file " + indexFile + " has an invalid header.");
+            List<String> lines = new ArrayList<String>();
+            for (String line : reader)
+                lines.add(line);
+            final int n = lines.size();
+            long[] starts = new long[n];
+            long[] ends = new long[n];
+            try {
+                for (int i = 0; i < n; i++) {
+                    String line = lines.get(i);
+                    int tab = line.indexOf('\t');
+                    if (tab < 0)
+                        throw new IOException("Index file " + indexFile + " has an invalid line: " + line);
+                    starts[i] = Long.parseLong(line.substring(0, tab));
+                    ends[i] = Long.parseLong(line.substring(tab + 1));
+                }
+                retVal = new SectionIndex(dataFile, unescape(meta[1]), Long.parseLong(meta[2]), Long.parseLong(meta[3]),
+                        starts, ends);
+            } catch (NumberFormatException e) {
+                throw new IOException("Index file " + indexFile + " has an invalid number: " + e.getMessage());
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Save this index to a file.
+     *
+     * @param indexFile		output file
+     *
+     * @throws IOException
+     */
+    public void save(File indexFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(indexFile, StandardCharsets.UTF_8)) {
+            writer.format("%s\t%s\t%d\t%d%n", SIDECAR_MARKER, escape(this.marker), this.fileLength, this.fileTime);
+            for (int i = 0; i < this.starts.length; i++)
+                writer.format("%d\t%d%n", this.starts[i], this.ends[i]);
+        }
+    }
+
+    /**
+     * @return a section marker with backslashes, tabs, and line breaks escaped, so it can be stored in the sidecar
+     *
+     * @param marker	marker to escape
+     */
+    private static String escape(String marker) {
+        return StringUtils.replaceEach(marker, RAW_CHARS, ESCAPED_CHARS);
+    }
+
+    /**
+     * @return a section marker read from the sidecar, with its escapes removed
+     *
+     * @param text		escaped marker text
+     */
+    private static String unescape(String text) {
+        return StringUtils.replaceEach(text, ESCAPED_CHARS, RAW_CHARS);
+    }
+
+    /**
+     * @return TRUE if this index is still valid for its data file
+     */
+    public boolean isValid() {
+        return (this.dataFile.length() == this.fileLength && this.dataFile.lastModified() == this.fileTime);
+    }
+
+    /**
+     * @return the number of sections in the file
+     */
+    public int size() {
+        return this.starts.length;
+    }
+
+    /**
+     * Open a reader for a single section.  The reader must be closed by the caller.
+     *
+     * @param n		index of the section (0-based)
+     *
+     * @return a line reader for the section, not including the marker
+     *
+     * @throws IOException
+     */
+    public LineReader openSection(int n) throws IOException {
+        FileChannel channel = FileChannel.open(this.dataFile.toPath(), StandardOpenOption.READ);
+        return this.openSection(channel, n, true);
+    }
+
+    /**
+     * Open a reader for a single section on a file channel.
+     *
+     * @param channel		channel for the data file
+     * @param n				index of the section (0-based)
+     * @param ownsChannel	TRUE if the channel should be closed with the reader
+     *
+     * @return a line reader for the section
+     *
+     * @throws IOException
+     */
+    private LineReader openSection(FileChannel channel, int n, boolean ownsChannel) throws IOException {
+        if (n < 0 || n >= this.starts.length)
+            throw new IndexOutOfBoundsException("Invalid section number " + n + " for file with " + this.starts.length
+                    + " sections.");
+        return new LineReader(new ChannelRangeStream(channel, this.starts[n], this.ends[n], ownsChannel));
+    }
+
+    /**
+     * Process all the sections in parallel.  The sections share a single file channel and are read with positional
+     * reads.  If any task fails, the first error is thrown after all the tasks have finished.
+     *
+     * @param task			task to run on each section
+     * @param threads		number of threads to use
+     *
+     * @throws IOException
+     */
+    public void forEach(ISectionTask task, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.dataFile.toPath(), StandardOpenOption.READ)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>(this.starts.length);
+                for (int i = 0; i < this.starts.length; i++) {
+                    final int n = i;
+                    futures.add(executor.submit(() -> {
+                        try (LineReader reader = this.openSection(channel, n, false)) {
+                            task.process(n, reader);
+                        }
+                        return null;
+                    }));
+                }
+                Throwable error = null;
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (error == null)
+                            error = e.getCause();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while processing sections of " + this.dataFile + ".");
+                    }
+                }
+                if (error instanceof IOException ioErr)
+                    throw ioErr;
+                else if (error != null)
+                    throw new IOException("Error processing section of " + this.dataFile + ": " + error.toString(), error);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+/**
+ *
+ */
+package org.theseed.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object is a sparse key index for a tab-delimited file with headers that is sorted by a key column.  Each
+ * index entry records a key and the byte offset of the first line with that key.  An entry is made for the first
+ * line of each key group that begins at least a fixed number of lines after the previous entry, so an interval of
+ * 1 indexes every key, and a larger interval trades lookup time for a smaller index.
+ *
+ * To find the lines for a key, we go to the offset of the last entry with a key less than or equal to it and scan
+ * forward.  Keys are compared as strings.
+ *
+ * The index can be saved as a sidecar file next to the data file.  The sidecar records the length and modification
+ * time of the data file, and it is rebuilt automatically if the data file has changed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TabIndex {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(TabIndex.class);
+    /** name of the key column, or NULL for the first column */
+    private final String keyName;
+    /** index of the key column */
+    private final int keyIdx;
+    /** minimum number of lines between entries */
+    private final int interval;
+    /** length of the data file when indexed */
+    private final long fileLength;
+    /** modification time of the data file when indexed */
+    private final long fileTime;
+    /** array of indexed keys */
+    private final String[] keys;
+    /** array of offsets for the indexed keys */
+    private final long[] offsets;
+    /** filename suffix for sidecar index files */
+    public static final String SUFFIX = ".idx";
+    /** marker for the sidecar metadata line */
+    private static final String MARKER = "#tabindex";
+
+    /**
+     * Construct an index from its components.
+     *
+     * @param keyName		name of the key column, or NULL for the first column
+     * @param keyIdx		index of the key column
+     * @param interval		minimum number of lines between entries
+     * @param fileLength	length of the data file
+     * @param fileTime		modification time of the data file
+     * @param keys			list of indexed keys
+     * @param offsets		array of offsets for the indexed keys
+     */
+    private TabIndex(String keyName, int keyIdx, int interval, long fileLength, long fileTime, List<String> keys,
+            long[] offsets) {
+        this.keyName = keyName;
+        this.keyIdx = keyIdx;
+        this.interval = interval;
+        this.fileLength = fileLength;
+        this.fileTime = fileTime;
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.offsets = offsets;
+    }
+
+    /**
+     * Build an index for a sorted tab-delimited file.
+     *
+     * @param dataFile		file to index
+     * @param keyName		name of the key column, or NULL for the first column
+     * @param interval		minimum number of lines between entries
+     *
+     * @return the index built
+     *
+     * @throws IOException
+     */
+    public static TabIndex build(File dataFile, String keyName, int interval) throws IOException {
+        if (interval < 1)
+            throw new IllegalArgumentException("Index interval must be positive.");
+        final long fileLength = dataFile.length();
+        final long fileTime = dataFile.lastModified();
+        List<String> keys = new ArrayList<String>();
+        long[] offsets = new long[64];
+        int keyIdx = 0;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(dataFile))) {
+            OffsetLineReader lines = new OffsetLineReader(stream);
+            String header = lines.next();
+            if (header == null)
+                throw new IOException("Input file " + dataFile + " is empty.");
+            if (keyName != null) {
+                String[] names = StringUtils.splitPreserveAllTokens(header, '\t');
+                keyIdx = -1;
+                for (int i = 0; i < names.length && keyIdx < 0; i++) {
+                    if (FieldInputStream.isName(keyName, names[i].toLowerCase()))
+                        keyIdx = i;
+                }
+                if (keyIdx < 0)
+                    throw new IOException("No column named \"" + keyName + "\" found in " + dataFile + ".");
+            }
+            // Loop through the data lines.
+            String oldKey = null;
+            int sinceEntry = interval;
+            long offset = lines.getOffset();
+            for (String line = lines.next(); line != null; line = lines.next()) {
+                String key = TabbedInputStream.rawField(line, keyIdx);
+                if (oldKey == null || ! key.equals(oldKey)) {
+                    if (oldKey != null && key.compareTo(oldKey) < 0)
+                        throw new IOException("File " + dataFile + " is not sorted at key \"" + key + "\".");
+                    if (sinceEntry >= interval) {
+                        if (keys.size() >= offsets.length)
+                            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        offsets[keys.size()] = offset;
+                        keys.add(key);
+                        sinceEntry = 0;
+                    }
+                    oldKey = key;
+                }
+                sinceEntry++;
+                offset = lines.getOffset();
+            }
+        }
+        log.info("{} keys indexed for {}.", keys.size(), dataFile);
+        return new TabIndex(keyName, keyIdx, interval, fileLength, fileTime, keys, Arrays.copyOf(offsets, keys.size()));
+    }
+
+    /**
+     * Get the index for a file, using the sidecar if it is up to date, and otherwise building the index and
+     * saving it to the sidecar.  A sidecar that cannot be read is treated as out of date, and if the sidecar cannot be
+     * written, the index is used without saving it.
+     *
+     * @param dataFile		file to index
+     * @param keyName		name of the key column, or NULL for the first column
+     * @param interval		minimum number of lines between entries
+     *
+     * @return the index for the file
+     *
+     * @throws IOException
+     */
+    public static TabIndex forFile(File dataFile, String keyName, int interval) throws IOException {
+        File sidecar = sidecarFile(dataFile);
+        TabIndex retVal = null;
+        if (sidecar.isFile()) {
+            try {
+                TabIndex old = load(sidecar);
+                if (old.isValid(dataFile) && StringUtils.equals(old.keyName, keyName) && old.interval == interval)
+                    retVal = old;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Rebuilding unreadable index {}: {}", sidecar, e.toString());
+            }
+        }
+        if (retVal == null) {
+            retVal = build(dataFile, keyName, interval);
+            // The index is still usable if the sidecar cannot be written, for example in a read-only directory.
+            try {
+                retVal.save(sidecar);
+            } catch (IOException e) {
+                log.warn("Could not save index {}: {}", sidecar, e.toString());
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sidecar index file for a data file
+     *
+     * @param dataFile		data file of interest
+     */
+    public static File sidecarFile(File dataFile) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), dataFile.getName() + SUFFIX);
+    }
+
+    /**
+     * Load an index from a file.
+     *
+     * @param indexFile		file containing the saved index
+     *
+     * @return the index loaded
+     *
+     * @throws IOException
+     */
+    public static TabIndex load(File indexFile) throws IOException {
+        TabIndex retVal;
+        try (LineReader reader = new LineReader(indexFile)) {
+            if (! reader.hasNext())
+                throw new IOException("Index file " + indexFile + " is empty.");
+            String[] meta = StringUtils.splitPreserveAllTokens(reader.next(), '\t');
+            if (meta.length != 6 || ! meta[0].equals(MARKER))
+                throw new IOException("Index file " + indexFile + " has an invalid header.");
+            String keyName = (meta[1].isEmpty() ? null : meta[1]);
+            List<String> keys = new ArrayList<String>();
+            long[] offsets = new long[64];
+            for (String line : reader) {
+                int tab = line.lastIndexOf('\t');
+                if (keys.size() >= offsets.length)
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                offsets[keys.size()] = Long.parseLong(line.substring(tab + 1));
+                keys.add(line.substring(0, tab));
+            }
+            retVal = new TabIndex(keyName, Integer.parseInt(meta[2]), Integer.parseInt(meta[3]),
+                    Long.parseLong(meta[4]), Long.parseLong(meta[5]), keys, Arrays.copyOf(offsets, keys.size()));
+        }
+        return retVal;
+    }
+
+    /**
+     * Save this index to a file.
+     *
+     * @param indexFile		output file
+     *
+     * @throws IOException
+     */
+    public void save(File indexFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(indexFile, StandardCharsets.UTF_8)) {
+            writer.format("%s\t%s\t%d\t%d\t%d\t%d%n", MARKER, StringUtils.defaultString(this.keyName), this.keyIdx,
+                    this.interval, this.fileLength, this.fileTime);
+            for (int i = 0; i < this.keys.length; i++)
+                writer.format("%s\t%d%n", this.keys[i], this.offsets[i]);
+            if (writer.checkError())
+                throw new IOException("Error writing index file " + indexFile + ".");
+        }
+    }
+
+    /**
+     * @return TRUE if this index is still valid for the specified data file
+     *
+     * @param dataFile		data file to check
+     */
+    public boolean isValid(File dataFile) {
+        return (dataFile.length() == this.fileLength && dataFile.lastModified() == this.fileTime);
+    }
+
+    /**
+     * @return the byte offset at which to start scanning for a key, or -1 if the file has no data lines
+     *
+     * @param key		key of interest
+     */
+    public long findStart(String key) {
+        long retVal;
+        if (this.keys.length == 0)
+            retVal = -1;
+        else {
+            int pos = Arrays.binarySearch(this.keys, key);
+            if (pos < 0) {
+                // Here the key is not indexed.  We want the entry before the insertion point, if any.
+                pos = Math.max(-pos - 2, 0);
+            }
+            retVal = this.offsets[pos];
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the index of the key column
+     */
+    public int getKeyIdx() {
+        return this.keyIdx;
+    }
+
+    /**
+     * @return the number of index entries
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+}
@@ -4,9 +4,16 @@
 package org.theseed.io;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -14,6 +21,10 @@ import org.apache.commons.lang3.StringUtils;
  * This is the field-input stream handler for a standard tab-delimited file with headers.  The fields
  * are all described in the first (header) line, and fields not present cause an IOException.
  *
+ * If the stream was opened on a file that is sorted by a key column, a {@link TabIndex} can be attached using
+ * {@link #useIndex(String, int)}.  The records for a key or a range of keys can then be read directly using
+ * {@link #seek(String)} or {@link #rangeScan(String, String)}, without disturbing the main iteration.
+ *
  * @author Bruce Parrello
  *
  */
@@ -22,9 +33,125 @@ public class TabbedInputStream extends FieldInputStream {
     // FIELDS
     /** number of input columns */
     private int cols;
+    /** input file, or NULL if we are reading from a stream */
+    private final File inputFile;
+    /** key index for random access, or NULL if there is none */
+    private TabIndex index;
+
+    /**
+     * This object iterates through the records in a key range, using the index to position in the file.  It must
+     * be closed when the caller is done with it.
+     */
+    public class KeyRange implements Iterable<Record>, Iterator<Record>, AutoCloseable {
+
+        /** reader positioned in the file */
+        private final LineReader reader;
+        /** maximum key (exclusive), or NULL if the range is unbounded */
+        private final String toKey;
+        /** next line to return, or NULL if the range is exhausted */
+        private String nextLine;
+
+        /**
+         * Position on the first record in a key range.
+         *
+         * @param fromKey	minimum key (inclusive)
+         * @param toKey		maximum key (exclusive), or NULL to read to the end of the file
+         *
+         * @throws IOException
+         */
+        protected KeyRange(String fromKey, String toKey) throws IOException {
+            TabIndex index = TabbedInputStream.this.index;
+            if (index == null)
+                throw new IllegalStateException("No key index has been attached to this tabbed input stream.");
+            this.toKey = toKey;
+            long offset = index.findStart(fromKey);
+            if (offset < 0)
+                this.reader = null;
+            else {
+                FileInputStream stream = new FileInputStream(TabbedInputStream.this.inputFile);
+                try {
+                    stream.getChannel().position(offset);
+                    this.reader = new LineReader(stream);
+                } catch (IOException | RuntimeException e) {
+                    stream.close();
+                    throw e;
+                }
+            }
+            // Skip the lines before the range.
+            this.nextLine = null;
+            try {
+                boolean found = false;
+                while (! found && this.reader != null && this.reader.hasNext()) {
+                    String line = this.reader.next();
+                    if (this.getKey(line).compareTo(fromKey) >= 0) {
+                        found = true;
+                        this.check(line);
+                    }
+                }
+            } catch (RuntimeException e) {
+                this.reader.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the key of a data line
+         *
+         * @param line		line of interest
+         */
+        private String getKey(String line) {
+            return rawField(line, TabbedInputStream.this.index.getKeyIdx());
+        }
+
+        /**
+         * Store a line as the next line if it is in the range.
+         *
+         * @param line		line to check
+         */
+        private void check(String line) {
+            if (this.toKey == null || this.getKey(line).compareTo(this.toKey) < 0)
+                this.nextLine = line;
+            else
+                this.nextLine = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (this.nextLine != null);
+        }
+
+        @Override
+        public Record next() {
+            if (this.nextLine == null)
+                throw new NoSuchElementException("Attempt to read past end of key range.");
+            Record retVal = TabbedInputStream.this.parseLine(this.nextLine);
+            if (this.reader.hasNext())
+                this.check(this.reader.next());
+            else
+                this.nextLine = null;
+            return retVal;
+        }
+
+        @Override
+        public Iterator<Record> iterator() {
+            return this;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (this.reader != null)
+                    this.reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+    }
 
     public TabbedInputStream(File inputFile) throws IOException {
         super(inputFile);
+        this.inputFile = inputFile;
         if (! this.hasNextLine())
             throw new IOException("Input file " + inputFile + " is empty.");
         this.initialize();
@@ -32,6 +159,7 @@ public class TabbedInputStream extends FieldInputStream {
 
     public TabbedInputStream(InputStream inputStream) throws IOException {
         super(inputStream);
+        this.inputFile = null;
         if (! this.hasNextLine())
             throw new IOException("Tab-delimited input stream is empty.");
         this.initialize();
@@ -52,16 +180,187 @@ public class TabbedInputStream extends FieldInputStream {
     }
 
     @Override
-    public Record next() {
+    protected boolean hasNextRecord() {
+        return this.hasNextLine();
+    }
+
+    @Override
+    protected Record nextRecord() {
+        return this.nextRecord(null);
+    }
+
+    @Override
+    protected Record nextRecord(Record spare) {
         String line = this.nextLine();
-        String[] fields = StringUtils.splitPreserveAllTokens(line, '\t');
-        Record retVal = this.new Record(fields);
+        Record retVal;
+        if (! this.passesRaw(line))
+            retVal = null;
+        else
+            retVal = this.parseLine(line, spare);
+        return retVal;
+    }
+
+    /**
+     * Convert a data line into a record.
+     *
+     * @param line		data line to parse
+     *
+     * @return a record for the line
+     */
+    private Record parseLine(String line) {
+        return this.parseLine(line, null);
+    }
+
+    /**
+     * Convert a data line into a record, reusing the field list of an old record if one is available.
+     *
+     * @param line		data line to parse
+     * @param spare		old record from this stream to reuse, or NULL to build a new one
+     *
+     * @return a record for the line
+     */
+    private Record parseLine(String line, Record spare) {
+        Record retVal;
+        BitSet projection = this.getProjection();
+        String[] fields;
+        if (projection == null)
+            fields = StringUtils.splitPreserveAllTokens(line, '\t');
+        else {
+            // Here we only need to extract the requested columns.  The rest are left NULL, which makes them empty.
+            fields = new String[this.cols];
+            final int last = projection.length();
+            final int n = line.length();
+            int start = 0;
+            for (int col = 0; col < last && start <= n; col++) {
+                int end = line.indexOf('\t', start);
+                if (end < 0)
+                    end = n;
+                if (projection.get(col))
+                    fields[col] = line.substring(start, end);
+                start = end + 1;
+            }
+        }
+        if (spare == null)
+            retVal = this.new Record(fields);
+        else {
+            spare.load(fields);
+            retVal = spare;
+        }
         // Insure the number of fields is sufficient.
         for (int i = fields.length; i < this.cols; i++)
             retVal.addField();
         return retVal;
     }
 
+    /**
+     * Attach a key index to this stream.  The sidecar index file is used if it is up to date, and otherwise it
+     * is rebuilt.  The file must be sorted by the key column.
+     *
+     * @param keyName		name of the key column, or NULL to use the first column
+     * @param interval		minimum number of lines between index entries (1 to index every key)
+     *
+     * @throws IOException
+     */
+    public void useIndex(String keyName, int interval) throws IOException {
+        this.useIndex(TabIndex.forFile(this.getInputFile(), keyName, interval));
+    }
+
+    /**
+     * Attach a key index to this stream.
+     *
+     * @param index		index to use
+     */
+    public void useIndex(TabIndex index) {
+        this.getInputFile();
+        this.index = index;
+    }
+
+    /**
+     * @return the input file, which is required for random access
+     */
+    private File getInputFile() {
+        if (this.inputFile == null)
+            throw new IllegalStateException("Random access is not possible for a tabbed input stream not read from a file.");
+        return this.inputFile;
+    }
+
+    /**
+     * @return a list of the records with the specified key
+     *
+     * @param key		key of interest
+     *
+     * @throws IOException
+     */
+    public List<Record> seek(String key) throws IOException {
+        List<Record> retVal = new ArrayList<Record>();
+        try (KeyRange range = this.new KeyRange(key, null)) {
+            boolean done = false;
+            while (! done && range.hasNext()) {
+                if (! range.getKey(range.nextLine).equals(key))
+                    done = true;
+                else
+                    retVal.add(range.next());
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Iterate through the records in a key range.  Filters are not applied to the records.
+     *
+     * @param fromKey		minimum key (inclusive)
+     * @param toKey			maximum key (exclusive), or NULL to read to the end of the file
+     *
+     * @return an iterable for the records in the range, which must be closed after use
+     *
+     * @throws IOException
+     */
+    public KeyRange rangeScan(String fromKey, String toKey) throws IOException {
+        return this.new KeyRange(fromKey, toKey);
+    }
+
+    @Override
+    protected boolean filtersRawInput() {
+        return true;
+    }
+
+    /**
+     * @return TRUE if an unparsed data line passes all the filters
+     *
+     * @param line		data line to test
+     */
+    private boolean passesRaw(String line) {
+        boolean retVal = true;
+        List<FieldFilter> filters = this.getFilters();
+        final int n = filters.size();
+        for (int i = 0; i < n && retVal; i++) {
+            FieldFilter filter = filters.get(i);
+            retVal = filter.matchesRaw(rawField(line, filter.getColumn()));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the text of a single column in a data line, or an empty string if the line is too short
+     *
+     * @param line		data line to scan
+     * @param col		index of the desired column
+     */
+    protected static String rawField(String line, int col) {
+        String retVal = "";
+        int start = 0;
+        for (int i = 0; i < col && start >= 0; i++) {
+            start = line.indexOf('\t', start);
+            if (start >= 0)
+                start++;
+        }
+        if (start >= 0) {
+            int end = line.indexOf('\t', start);
+            retVal = (end < 0 ? line.substring(start) : line.substring(start, end));
+        }
+        return retVal;
+    }
+
     @Override
     public int findField(String fieldName) throws IOException {
         int retVal = this.findColumn(fieldName);
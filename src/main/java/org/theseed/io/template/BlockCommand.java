@@ -5,13 +5,15 @@ package org.theseed.io.template;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 import org.theseed.io.FieldInputStream.Record;
 
 /**
  * This is the base class for a block command.  Block commands are always generated by the compiler, not
- * the user, and simply concatenate all the sub-commands.
- * a
+ * the user, and simply concatenate all the sub-commands.  The block records the output lengths of its
+ * sub-commands and itself, so that the length estimates adapt to the data.
+ *
  * @author Bruce Parrello
  *
  */
@@ -49,11 +51,30 @@ public class BlockCommand extends TemplateCommand {
         StringBuilder retVal = new StringBuilder(this.getEstimatedLength());
         for (var command :this.subCommands) {
             String subString = command.translate(line);
+            if (! command.learnsOwnLength())
+                command.recordLength(subString.length());
             retVal.append(subString);
         }
+        // Learn our own output length so the next buffer is sized accordingly.
+        this.recordLength(retVal.length());
         return retVal.toString();
     }
 
+    @Override
+    protected boolean learnsOwnLength() {
+        return true;
+    }
+
+    @Override
+    protected List<TemplateCommand> getSubCommands() {
+        return this.subCommands;
+    }
+
+    @Override
+    protected void wrapSubCommands(UnaryOperator<TemplateCommand> wrapper) {
+        this.subCommands.replaceAll(wrapper);
+    }
+
     @Override
     protected String getName() {
         return this.name;
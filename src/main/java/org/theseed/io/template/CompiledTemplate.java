@@ -0,0 +1,412 @@
+/**
+ *
+ */
+package org.theseed.io.template;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object is the compiled form of a template string:  the list of literal, variable, and command tokens
+ * produced by the template lexer.  The lexer makes a single linear pass over the template text.
+ *
+ * The compiled form does not depend on the input file, so it can be shared by every {@link LineTemplate} built
+ * from the same template string.  Compiled forms are kept in a small in-memory cache keyed by the template text,
+ * so that a job running the same template over many input files only lexes it once.
+ *
+ * If a cache directory is specified with {@link #setCacheDir(File)}, compiled forms are also saved to files, so
+ * that separate jobs running the same template only lex it once.  The file name is a hash of the template text
+ * and the input field list.  The file is a simple length-prefixed binary format containing the template text, the
+ * field list, and the tokens.  Every length is checked against the file size when it is read, and the stored text
+ * and field list must match the ones requested, so a damaged file or a hash collision is treated as a cache miss.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CompiledTemplate {
+
+    // FIELDS
+    /** logging facility */
+    private static final Logger log = LoggerFactory.getLogger(CompiledTemplate.class);
+    /** original template text */
+    private final String template;
+    /** list of tokens */
+    private final List<Token> tokens;
+    /** maximum number of compiled forms cached in memory */
+    private static final int MEMORY_CACHE_SIZE = 100;
+    /** in-memory cache of compiled forms, keyed by template text */
+    private static final Map<String, CompiledTemplate> MEMORY_CACHE = new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+            return this.size() > MEMORY_CACHE_SIZE;
+        }
+    };
+    /** directory for saved compiled forms, or NULL if they are only cached in memory */
+    private static volatile File cacheDir = null;
+    /** marker at the start of a saved compiled form */
+    private static final String FILE_MARKER = "#compiledtemplate";
+    /** version number of the saved format */
+    private static final int FILE_VERSION = 1;
+    /** suffix for saved compiled forms */
+    private static final String FILE_SUFFIX = ".tpl";
+
+    /**
+     * Enumeration of token types.
+     */
+    public static enum Type {
+        /** literal text */
+        LITERAL,
+        /** variable reference */
+        VARIABLE,
+        /** special command */
+        COMMAND;
+    }
+
+    /**
+     * This object represents a single template token.
+     */
+    public static class Token {
+
+        /** token type */
+        private final Type type;
+        /** token text (for a variable or command, the text inside the braces) */
+        private final String text;
+        /** position of the token in the template */
+        private final int position;
+
+        /**
+         * Create a token.
+         *
+         * @param type		token type
+         * @param text		token text
+         * @param position	position of the token in the template
+         */
+        protected Token(Type type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+
+        /**
+         * @return the token type
+         */
+        public Type getType() {
+            return this.type;
+        }
+
+        /**
+         * @return the token text
+         */
+        public String getText() {
+            return this.text;
+        }
+
+        /**
+         * @return the position of the token in the template
+         */
+        public int getPosition() {
+            return this.position;
+        }
+
+    }
+
+    /**
+     * Lex a template string into tokens.
+     *
+     * @param template		template string to compile
+     */
+    private CompiledTemplate(String template) {
+        this.template = template;
+        List<Token> tokenList = new ArrayList<Token>();
+        final int len = template.length();
+        int pos = 0;
+        while (pos < len) {
+            // Find the next construct.  A construct is enclosed in double braces and has at least one character.
+            int start = template.indexOf("{{", pos);
+            int end = (start < 0 ? -1 : template.indexOf("}}", start + 3));
+            if (end < 0) {
+                // Here the rest of the template is a literal.
+                tokenList.add(new Token(Type.LITERAL, template.substring(pos), pos));
+                pos = len;
+            } else {
+                if (start > pos)
+                    tokenList.add(new Token(Type.LITERAL, template.substring(pos, start), pos));
+                String construct = template.substring(start + 2, end);
+                Type type = (construct.charAt(0) == '$' ? Type.COMMAND : Type.VARIABLE);
+                tokenList.add(new Token(type, construct, start));
+                pos = end + 2;
+            }
+        }
+        this.tokens = Collections.unmodifiableList(tokenList);
+    }
+
+    /**
+     * Create a compiled form from a saved token list.
+     *
+     * @param template		original template text
+     * @param tokens		list of tokens
+     */
+    private CompiledTemplate(String template, List<Token> tokens) {
+        this.template = template;
+        this.tokens = Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * Get the compiled form of a template string, using the cache if possible.
+     *
+     * @param template		template string to compile
+     *
+     * @return the compiled form of the template
+     */
+    public static CompiledTemplate of(String template) {
+        CompiledTemplate retVal;
+        synchronized (MEMORY_CACHE) {
+            retVal = MEMORY_CACHE.get(template);
+        }
+        if (retVal == null) {
+            retVal = new CompiledTemplate(template);
+            synchronized (MEMORY_CACHE) {
+                MEMORY_CACHE.put(template, retVal);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Get the compiled form of a template string for an input file with the specified fields.  If it is not in
+     * memory and a cache directory has been specified, the saved form is used if there is one; otherwise, the
+     * template is lexed and the result saved.  Failures reading or writing the cache directory are logged and
+     * otherwise ignored.
+     *
+     * @param template		template string to compile
+     * @param fields		names of the fields in the input file
+     *
+     * @return the compiled form of the template
+     */
+    public static CompiledTemplate of(String template, List<String> fields) {
+        CompiledTemplate retVal;
+        synchronized (MEMORY_CACHE) {
+            retVal = MEMORY_CACHE.get(template);
+        }
+        if (retVal == null) {
+            final File dir = cacheDir;
+            if (dir == null)
+                retVal = of(template);
+            else {
+                File cacheFile = new File(dir, hashName(template, fields));
+                if (cacheFile.isFile()) {
+                    try {
+                        retVal = load(cacheFile, template, fields);
+                    } catch (IOException e) {
+                        log.warn("Could not read compiled template {}: {}", cacheFile, e.toString());
+                    }
+                }
+                if (retVal == null) {
+                    retVal = new CompiledTemplate(template);
+                    try {
+                        retVal.save(cacheFile, fields);
+                    } catch (IOException e) {
+                        log.warn("Could not save compiled template {}: {}", cacheFile, e.toString());
+                    }
+                }
+                synchronized (MEMORY_CACHE) {
+                    MEMORY_CACHE.put(template, retVal);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Specify the directory for saved compiled forms.
+     *
+     * @param dir		directory to use, or NULL to cache only in memory
+     */
+    public static void setCacheDir(File dir) {
+        cacheDir = dir;
+    }
+
+    /**
+     * @return the directory for saved compiled forms, or NULL if they are only cached in memory
+     */
+    public static File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * @return the name of the cache file for a template string and input field list
+     *
+     * @param template		template string of interest
+     * @param fields		names of the fields in the input file
+     */
+    public static String hashName(String template, List<String> fields) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // This should never happen, since every JVM must support SHA-256.
+            throw new IllegalStateException(e);
+        }
+        digest.update(template.getBytes(StandardCharsets.UTF_8));
+        for (String field : fields) {
+            digest.update((byte) 0);
+            digest.update(field.getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest(), 0, 16) + FILE_SUFFIX;
+    }
+
+    /**
+     * Save this compiled form to a file.  The form is written to a temporary file and then moved into place, so
+     * another job never sees a partial file.
+     *
+     * @param outFile		output file
+     * @param fields		names of the fields in the input file
+     *
+     * @throws IOException
+     */
+    public void save(File outFile, List<String> fields) throws IOException {
+        Path outPath = outFile.getAbsoluteFile().toPath();
+        Path tempFile = Files.createTempFile(outPath.getParent(), outFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                outStream.writeUTF(FILE_MARKER);
+                outStream.writeInt(FILE_VERSION);
+                writeString(outStream, this.template);
+                outStream.writeInt(fields.size());
+                for (String field : fields)
+                    writeString(outStream, field);
+                outStream.writeInt(this.tokens.size());
+                for (Token token : this.tokens) {
+                    outStream.writeByte(token.type.ordinal());
+                    outStream.writeInt(token.position);
+                    writeString(outStream, token.text);
+                }
+            }
+            Files.move(tempFile, outPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Write a length-prefixed string.
+     *
+     * @param outStream		output stream
+     * @param string		string to write
+     *
+     * @throws IOException
+     */
+    private static void writeString(DataOutputStream outStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        outStream.writeInt(bytes.length);
+        outStream.write(bytes);
+    }
+
+    /**
+     * Load a compiled form from a file.
+     *
+     * @param inFile		input file
+     * @param template		expected template text
+     * @param fields		expected names of the fields in the input file
+     *
+     * @return the compiled form read, or NULL if it is for a different template or field list
+     *
+     * @throws IOException if the file is not a valid compiled form
+     */
+    public static CompiledTemplate load(File inFile, String template, List<String> fields) throws IOException {
+        CompiledTemplate retVal = null;
+        final long limit = inFile.length();
+        try (DataInputStream inStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(inFile.toPath())))) {
+            if (! FILE_MARKER.equals(inStream.readUTF()) || inStream.readInt() != FILE_VERSION)
+                throw new IOException("File " + inFile + " does not contain a compiled template.");
+            String oldTemplate = readString(inStream, limit);
+            int nFields = readCount(inStream, limit);
+            List<String> oldFields = new ArrayList<String>(nFields);
+            for (int i = 0; i < nFields; i++)
+                oldFields.add(readString(inStream, limit));
+            int nTokens = readCount(inStream, limit);
+            List<Token> tokenList = new ArrayList<Token>(nTokens);
+            final Type[] types = Type.values();
+            for (int i = 0; i < nTokens; i++) {
+                int typeIdx = inStream.readUnsignedByte();
+                int position = inStream.readInt();
+                String text = readString(inStream, limit);
+                if (typeIdx >= types.length || position < 0 || position > oldTemplate.length())
+                    throw new IOException("Invalid token in compiled template file " + inFile + ".");
+                tokenList.add(new Token(types[typeIdx], text, position));
+            }
+            if (oldTemplate.equals(template) && oldFields.equals(fields))
+                retVal = new CompiledTemplate(template, tokenList);
+        }
+        return retVal;
+    }
+
+    /**
+     * Read a count from a compiled-form file.  The count cannot be negative or larger than the file size.
+     *
+     * @param inStream		input stream
+     * @param limit			size of the file
+     *
+     * @return the count read
+     *
+     * @throws IOException
+     */
+    private static int readCount(DataInputStream inStream, long limit) throws IOException {
+        int retVal = inStream.readInt();
+        if (retVal < 0 || retVal > limit)
+            throw new IOException("Invalid length " + retVal + " in compiled template file.");
+        return retVal;
+    }
+
+    /**
+     * Read a length-prefixed string from a compiled-form file.
+     *
+     * @param inStream		input stream
+     * @param limit			size of the file
+     *
+     * @return the string read
+     *
+     * @throws IOException
+     */
+    private static String readString(DataInputStream inStream, long limit) throws IOException {
+        byte[] bytes = new byte[readCount(inStream, limit)];
+        inStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the original template text
+     */
+    public String getTemplate() {
+        return this.template;
+    }
+
+    /**
+     * @return the list of tokens
+     */
+    public List<Token> getTokens() {
+        return this.tokens;
+    }
+
+}
@@ -4,12 +4,17 @@
 package org.theseed.io.template;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.theseed.io.FieldInputStream;
 import org.theseed.io.FieldInputStream.Record;
 
 /**
- * This command forms a sentence predicate to describe a feature type, including virus feature types.
+ * This command forms a sentence predicate to describe a feature type, including virus feature types.  The
+ * predicates for the known types are held in a precompiled table, and the predicates for other types are built
+ * once and then remembered.
  *
  * @author Bruce Parrello
  *
@@ -19,6 +24,27 @@ public class FeatureTypeCommand extends PrimitiveTemplateCommand {
     // FIELDS
     /** column index for input field to use */
     private int colIdx;
+    /** map of unknown feature types to predicates */
+    private Map<String, String> others;
+    /** map of known feature types to predicates */
+    private static final Map<String, String> PREDICATES = Map.ofEntries(
+            new AbstractMap.SimpleEntry<>("CDS", "is a protein-producing coding region"),
+            new AbstractMap.SimpleEntry<>("gene", "is a protein-producing gene"),
+            new AbstractMap.SimpleEntry<>("source", "is a source"),
+            new AbstractMap.SimpleEntry<>("5'UTR", "is a 5'-end untranslated region"),
+            new AbstractMap.SimpleEntry<>("mRNA", "produces messenger RNA"),
+            new AbstractMap.SimpleEntry<>("3'UTR", "is a 3'-end untranslated region"),
+            new AbstractMap.SimpleEntry<>("misc_feature", "is an unknown type of feature"),
+            new AbstractMap.SimpleEntry<>("unsure", "is an unknown type of feature"),
+            new AbstractMap.SimpleEntry<>("misc_difference", "is an unknown type of feature"),
+            new AbstractMap.SimpleEntry<>("misc_RNA", "produces miscellaneous RNA"),
+            new AbstractMap.SimpleEntry<>("assembly_gap", "represents a gap"),
+            new AbstractMap.SimpleEntry<>("gap", "represents a gap"),
+            new AbstractMap.SimpleEntry<>("intron", "is an intron"),
+            new AbstractMap.SimpleEntry<>("sig_peptide", "produces a signal peptide"),
+            new AbstractMap.SimpleEntry<>("mat_peptide", "produces a mature peptide"),
+            new AbstractMap.SimpleEntry<>("primer_bind", "is a primer binding"),
+            new AbstractMap.SimpleEntry<>("stem_loop", "is a stem loop"));
 
     /**
      * Construct a feature type command.
@@ -32,62 +58,19 @@ public class FeatureTypeCommand extends PrimitiveTemplateCommand {
     public FeatureTypeCommand(LineTemplate template, FieldInputStream inStream, String parms) throws IOException {
         super(template);
         this.colIdx = inStream.findField(parms);
+        // Feature types have very few distinct values, so we intern them.
+        inStream.enableInterning(this.colIdx);
+        this.others = new HashMap<String, String>();
     }
 
     @Override
     protected String translate(Record line) {
         // Get the feature type.
         String fType = line.get(this.colIdx);
-        String retVal;
-        switch (fType) {
-        case "CDS" :
-            retVal = "is a protein-producing coding region";
-            break;
-        case "gene" :
-            retVal = "is a protein-producing gene";
-            break;
-        case "source" :
-            retVal = "is a source";
-            break;
-        case "5'UTR" :
-            retVal = "is a 5'-end untranslated region";
-            break;
-        case "mRNA" :
-            retVal = "produces messenger RNA";
-            break;
-        case "3'UTR" :
-            retVal = "is a 3'-end untranslated region";
-            break;
-        case "misc_feature" :
-        case "unsure" :
-        case "misc_difference" :
-            retVal = "is an unknown type of feature";
-            break;
-        case "misc_RNA" :
-            retVal = "produces miscellaneous RNA";
-            break;
-        case "assembly_gap" :
-        case "gap" :
-            retVal = "represents a gap";
-            break;
-        case "intron" :
-            retVal = "is an intron";
-            break;
-        case "sig_peptide" :
-            retVal = "produces a signal peptide";
-            break;
-        case "mat_peptide" :
-            retVal = "produces a mature peptide";
-            break;
-        case "primer_bind" :
-            retVal = "is a primer binding";
-            break;
-        case "stem_loop" :
-            retVal = "is a stem loop";
-            break;
-        default :
-            retVal = "is a " + fType + " feature";
-        }
+        // Check the table of known types.  For the others, we build the predicate once and remember it.
+        String retVal = PREDICATES.get(fType);
+        if (retVal == null)
+            retVal = this.others.computeIfAbsent(fType, x -> "is a " + x + " feature");
         return retVal;
     }
 
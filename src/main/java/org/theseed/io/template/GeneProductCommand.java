@@ -5,8 +5,9 @@ package org.theseed.io.template;
 
 import java.io.IOException;
 import java.util.AbstractMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -19,6 +20,15 @@ import org.theseed.roles.RoleUtilities;
  * This command takes two column names as input and presumes the columns contain a gene product string.
  * and a feature type, respectively.  The columns are decoded into descriptive text and then output.
  *
+ * The same product strings recur many times across genomes, so each command keeps a bounded cache of translations
+ * keyed on the product and type.  The cache is split into segments by key hash, and each segment is a small
+ * least-recently-used map with its own lock, so that several threads can apply the same template at once without
+ * contending for a single lock.  When a segment is full, its least-recently-used translation is discarded.  The
+ * cache statistics are kept per command, and hence per template.
+ *
+ * Protein products are classified by a single scan that locates the comment, domain, ambiguity, multi-role, and
+ * subtype delimiters, so that the common case of a simple role requires no splitting or pattern matching.
+ *
  * @author Bruce Parrello
  *
  */
@@ -29,6 +39,32 @@ public class GeneProductCommand extends PrimitiveTemplateCommand {
     private int prodColIdx;
     /** index of the column containing the feature type code */
     private int typeColIdx;
+    /** translation cache segments, each in least-recently-used order */
+    private volatile Segment[] cache;
+    /** maximum number of cached translations */
+    private volatile int cacheLimit;
+    /** number of translations found in the cache */
+    private final LongAdder cacheHits;
+    /** number of translations computed */
+    private final LongAdder cacheMisses;
+    /** number of translations discarded from the cache */
+    private final LongAdder cacheEvictions;
+    /** default maximum number of cached translations */
+    public static final int DEFAULT_CACHE_LIMIT = 20000;
+    /** maximum number of cache segments (must be a power of 2) */
+    private static final int MAX_SEGMENTS = 16;
+    /** minimum number of translations per cache segment */
+    private static final int MIN_SEGMENT_SIZE = 256;
+    /** classifier flag for a comment delimiter ("#" or "!") */
+    private static final int HAS_COMMENT = 1;
+    /** classifier flag for a domain delimiter (" / ") */
+    private static final int HAS_DOMAINS = 2;
+    /** classifier flag for an ambiguity delimiter ("; ") */
+    private static final int HAS_CHOICES = 4;
+    /** classifier flag for a multi-role delimiter (" @ ") */
+    private static final int HAS_ROLES = 8;
+    /** classifier flag for a subtype delimiter ("=>") */
+    private static final int HAS_SUBTYPE = 16;
     /** map of protein abbreviations to names for tRNA */
     private static final Map<String, String> AMINO_ACIDS = Map.ofEntries(
             new AbstractMap.SimpleEntry<>("Ala", "Alanine"),
@@ -63,10 +99,8 @@ public class GeneProductCommand extends PrimitiveTemplateCommand {
     private static final Pattern T_RNA_PSEUDO = Pattern.compile("tRNA-Pseudo-([A-Z]{3,3})");
     /** array of roman numeral indices */
     private static final String[] ROMAN_IDX = new String[] { "i", "ii", "iii", "iv", "v", "vi", "vii", "viii", "ix", "x" };
-    /** pattern for descriptive @-pieces */
-    private static final Pattern DESCRIPTIVE = Pattern.compile("\\@\\s+\\w+\\-containing", Pattern.CASE_INSENSITIVE);
-    /** subtype pattern */
-    private static final Pattern SUBTYPE_ROLE = Pattern.compile("(.+)\\s+=>\\s+(.+)");
+    /** suffix for descriptive @-pieces */
+    private static final String CONTAINING = "-containing";
     /** mean size of a product description */
     private static final int DEFAULT_PRODUCT_SIZE = 40;
 
@@ -88,13 +122,191 @@ public class GeneProductCommand extends PrimitiveTemplateCommand {
             throw new ParseFailureException("$product command requires exactly two column names-- the product column and the feature type column.");
         this.prodColIdx = inStream.findField(tokens[0]);
         this.typeColIdx = inStream.findField(tokens[1]);
+        // Feature types have very few distinct values, so we intern them.
+        inStream.enableInterning(this.typeColIdx);
         this.setEstimatedLength(DEFAULT_PRODUCT_SIZE);
+        this.cacheHits = new LongAdder();
+        this.cacheMisses = new LongAdder();
+        this.cacheEvictions = new LongAdder();
+        this.setCacheLimit(DEFAULT_CACHE_LIMIT);
+    }
+
+    /**
+     * This is a key for the translation cache.  Feature types are interned by the input stream, so they
+     * are usually compared by identity.
+     */
+    private static class Key {
+
+        /** gene product string */
+        private final String product;
+        /** feature type */
+        private final String type;
+        /** precomputed hash code */
+        private final int hash;
+
+        /**
+         * Create a cache key.
+         *
+         * @param product	gene product string
+         * @param type		feature type
+         */
+        protected Key(String product, String type) {
+            this.product = product;
+            this.type = type;
+            this.hash = product.hashCode() * 31 + type.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            boolean retVal;
+            if (this == obj)
+                retVal = true;
+            else if (! (obj instanceof Key))
+                retVal = false;
+            else {
+                Key other = (Key) obj;
+                retVal = (this.hash == other.hash && this.product.equals(other.product) && this.type.equals(other.type));
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * This is a segment of the translation cache.  It is an access-ordered map with a size limit, and all access
+     * to it must be synchronized on the segment.
+     */
+    private class Segment extends LinkedHashMap<Key, String> {
+
+        private static final long serialVersionUID = 1L;
+        /** maximum number of translations in this segment */
+        private final int limit;
+
+        /**
+         * Create an empty cache segment.
+         *
+         * @param limit		maximum number of translations to keep
+         */
+        protected Segment(int limit) {
+            super(Math.min(limit, 1024), 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            boolean retVal = (this.size() > this.limit);
+            if (retVal)
+                GeneProductCommand.this.cacheEvictions.increment();
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Specify the maximum number of cached translations.  This clears the cache.  A large cache is divided into
+     * equal segments, so it may hold slightly fewer translations than the limit.
+     *
+     * @param newLimit	new cache limit; 0 disables the cache
+     */
+    public void setCacheLimit(int newLimit) {
+        if (newLimit < 0)
+            throw new IllegalArgumentException("Product cache limit cannot be negative.");
+        int n = 1;
+        while (n < MAX_SEGMENTS && newLimit / (n * 2) >= MIN_SEGMENT_SIZE)
+            n *= 2;
+        Segment[] segments = new Segment[n];
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(newLimit / n);
+        this.cache = segments;
+        this.cacheLimit = newLimit;
+    }
+
+    /**
+     * @return the maximum number of cached translations
+     */
+    public int getCacheLimit() {
+        return this.cacheLimit;
+    }
+
+    /**
+     * @return the number of translations found in the cache
+     */
+    public long getCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    /**
+     * @return the number of translations that had to be computed
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    /**
+     * @return the number of translations discarded from the cache to make room
+     */
+    public long getCacheEvictions() {
+        return this.cacheEvictions.sum();
+    }
+
+    /**
+     * @return the number of translations currently cached
+     */
+    public int getCacheSize() {
+        int retVal = 0;
+        for (Segment segment : this.cache) {
+            synchronized (segment) {
+                retVal += segment.size();
+            }
+        }
+        return retVal;
     }
 
     @Override
     public String translate(FieldInputStream.Record line) {
         String product = line.get(this.prodColIdx);
         String type = line.get(this.typeColIdx);
+        String retVal;
+        Segment[] segments = this.cache;
+        if (segments[0].limit == 0) {
+            this.cacheMisses.increment();
+            retVal = this.decode(product, type);
+        } else {
+            Key key = new Key(product, type);
+            final int h = key.hash ^ (key.hash >>> 16);
+            Segment segment = segments[h & (segments.length - 1)];
+            synchronized (segment) {
+                retVal = segment.get(key);
+            }
+            if (retVal != null)
+                this.cacheHits.increment();
+            else {
+                // The translation is computed outside the lock.  Two threads may both compute the same one, but the
+                // results are identical.
+                this.cacheMisses.increment();
+                retVal = this.decode(product, type);
+                synchronized (segment) {
+                    segment.put(key, retVal);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the description for a gene product.
+     *
+     * @param product	gene product string
+     * @param type		feature type
+     *
+     * @return the descriptive text for the product
+     */
+    private String decode(String product, String type) {
         String retVal;
         // Each type has a different approach.
         retVal = switch (type) {
@@ -252,53 +464,105 @@ public class GeneProductCommand extends PrimitiveTemplateCommand {
         if (StringUtils.isBlank(product) || Strings.CI.equals(product, "hypothetical protein"))
             retVal.append("a hypothetical protein");
         else {
-            // Strip off the comment.
-            String productBody = RoleUtilities.commentFree(product);
+            // Classify the product.  If there is a comment, we strip it off and classify the remainder.
+            String productBody = product;
+            int flags = classify(product);
+            if ((flags & HAS_COMMENT) != 0) {
+                productBody = RoleUtilities.commentFree(product);
+                flags = classify(productBody);
+            }
             // Now, we split into domains.  In most cases there is only one.
-            String[] pieces = StringUtils.splitByWholeSeparator(productBody, " / ");
-            if (pieces.length > 1) {
+            String[] pieces = ((flags & HAS_DOMAINS) == 0 ? null : StringUtils.splitByWholeSeparator(productBody, " / "));
+            if (pieces != null && pieces.length > 1) {
                 // This gets complicated.  We present the alternatives as a numbered list.  Note that the first
                 // function is preceded by a colon, and the remaining ones separated by semi-colons.
                 retVal.append("a protein with ").append(pieces.length).append(" domains, whose products are: (1) ")
-                        .append(this.interpretDomain(pieces[0]));
+                        .append(this.interpretDomain(pieces[0], flags));
                 final int n = pieces.length - 1;
                 for (int i = 1; i < n; i++)
-                    retVal.append("; (").append(i+1).append(") ").append(this.interpretDomain(pieces[i]));
-                retVal.append("; and (").append(pieces.length).append(") ").append(this.interpretDomain(pieces[n]));
+                    retVal.append("; (").append(i+1).append(") ").append(this.interpretDomain(pieces[i], flags));
+                retVal.append("; and (").append(pieces.length).append(") ").append(this.interpretDomain(pieces[n], flags));
             } else {
                 // Here we have a much simpler case:  an umambiguous product.
-                retVal.append("a protein whose product is ").append(this.interpretDomain(productBody));
+                retVal.append("a protein whose product is ").append(this.interpretDomain(productBody, flags));
             }
         }
         return retVal.toString();
     }
 
+    /**
+     * Scan a protein product string once to determine which delimiters it contains.  A flag that is set indicates
+     * the delimiter may be present; a flag that is clear guarantees it is absent from the string and all of its
+     * substrings.
+     *
+     * @param product	product string to classify
+     *
+     * @return a bitmask of the HAS_XXX flags for the delimiters found
+     */
+    private static int classify(String product) {
+        int retVal = 0;
+        final int n = product.length();
+        for (int i = 0; i < n; i++) {
+            switch (product.charAt(i)) {
+            case '#', '!' :
+                retVal |= HAS_COMMENT;
+                break;
+            case '/' :
+                if (i > 0 && product.charAt(i - 1) == ' ' && i + 1 < n && product.charAt(i + 1) == ' ')
+                    retVal |= HAS_DOMAINS;
+                break;
+            case ';' :
+                if (i + 1 < n && product.charAt(i + 1) == ' ')
+                    retVal |= HAS_CHOICES;
+                break;
+            case '@' :
+                if (i > 0 && product.charAt(i - 1) == ' ' && i + 1 < n && product.charAt(i + 1) == ' ')
+                    retVal |= HAS_ROLES;
+                break;
+            case '=' :
+                if (i + 1 < n && product.charAt(i + 1) == '>')
+                    retVal |= HAS_SUBTYPE;
+                break;
+            default :
+            }
+        }
+        return retVal;
+    }
+
     /**
      * This method produces a product description for a single domain, that is, the portion of a product
      * that is between the " / " delimiters, or is the only product.  We split the function into ambiguous possibilities
      * and then produce a description for each one.
      *
      * @param domainString	the domain string to interpret
+     * @param flags			classification flags for the product containing the domain
      *
      * @return a descriptive phrase for the domain product (most commonly the domain string itself)
      */
-    private String interpretDomain(String domainString) {
-        StringBuilder retVal = new StringBuilder(domainString.length() * 2);
-        // We need to split by "; ".  If we only have one piece, then the product is unambiguous.
-        String[] pieces = StringUtils.splitByWholeSeparator(domainString, "; ");
-        if (pieces.length > 1) {
-            retVal.append("an ambiguous function with ").append(pieces.length).append(" possibilities, including (a) ")
-                    .append(this.interpretFunction(pieces[0]));
-            final int n = pieces.length - 1;
-            for (int i = 1; i < n; i++) {
-                retVal.append(", (").append((char) ('a' + i)).append(") ")
-                    .append(this.interpretFunction(pieces[i]));
-            }
-            retVal.append(", or (").append((char) ('a' + n)).append(") ")
-                    .append(this.interpretFunction(pieces[n]));
-        } else
-            retVal.append(this.interpretFunction(domainString));
-        return retVal.toString();
+    private String interpretDomain(String domainString, int flags) {
+        String retVal;
+        // Without any role-level delimiters, the domain string is its own description.
+        if ((flags & (HAS_CHOICES | HAS_ROLES | HAS_SUBTYPE)) == 0)
+            retVal = domainString;
+        else {
+            // We need to split by "; ".  If we only have one piece, then the product is unambiguous.
+            String[] pieces = ((flags & HAS_CHOICES) == 0 ? null : StringUtils.splitByWholeSeparator(domainString, "; "));
+            if (pieces != null && pieces.length > 1) {
+                StringBuilder buffer = new StringBuilder(domainString.length() * 2);
+                buffer.append("an ambiguous function with ").append(pieces.length).append(" possibilities, including (a) ")
+                        .append(this.interpretFunction(pieces[0], flags));
+                final int n = pieces.length - 1;
+                for (int i = 1; i < n; i++) {
+                    buffer.append(", (").append((char) ('a' + i)).append(") ")
+                        .append(this.interpretFunction(pieces[i], flags));
+                }
+                buffer.append(", or (").append((char) ('a' + n)).append(") ")
+                        .append(this.interpretFunction(pieces[n], flags));
+                retVal = buffer.toString();
+            } else
+                retVal = this.interpretFunction(domainString, flags);
+        }
+        return retVal;
     }
 
     /**
@@ -309,50 +573,112 @@ public class GeneProductCommand extends PrimitiveTemplateCommand {
      * another, it is suppressed.
      *
      * @param functionString	the function string to interpret
+     * @param flags				classification flags for the product containing the function
      *
      * @return a descriptive phrase for the function (most commonly the function string itself)
      */
-    private String interpretFunction(String functionString) {
-        StringBuilder retVal = new StringBuilder(functionString.length() * 2);
+    private String interpretFunction(String functionString, int flags) {
+        String retVal;
         // Try the @-split.
-        String[] pieces = StringUtils.splitByWholeSeparator(functionString, " @ ");
+        String[] pieces = ((flags & HAS_ROLES) == 0 ? null : StringUtils.splitByWholeSeparator(functionString, " @ "));
         // A singleton is returned unchanged.
-        if (pieces.length == 1)
-            retVal.append(this.interpretRole(functionString));
-        else if (pieces.length == 2 && DESCRIPTIVE.matcher(pieces[1]).matches()) {
+        if (pieces == null || pieces.length == 1)
+            retVal = this.interpretRole(functionString, flags);
+        else if (pieces.length == 2 && isDescriptive(pieces[1])) {
             // Here we have a descriptive string for the role.
-            retVal.append(this.interpretRole(pieces[0])).append( "(").append(pieces[1]).append(")");
+            retVal = this.interpretRole(pieces[0], flags) + "(" + pieces[1] + ")";
         } else if (pieces.length == 2 && Strings.CS.startsWith(pieces[1], pieces[0])) {
             // Here we have a generic function followed by an identical detailed one.
-            retVal.append(this.interpretRole(pieces[1]));
+            retVal = this.interpretRole(pieces[1], flags);
         } else {
             // Here we have a multifunctional domain.
-            retVal.append(pieces.length).append(" roles including (i) ").append(this.interpretRole(pieces[0]));
+            StringBuilder buffer = new StringBuilder(functionString.length() * 2);
+            buffer.append(pieces.length).append(" roles including (i) ").append(this.interpretRole(pieces[0], flags));
             final int n = pieces.length - 1;
             for (int i = 1; i < n; i++)
-                retVal.append(", (").append(ROMAN_IDX[i]).append(") ").append(this.interpretRole(pieces[i]));
-            retVal.append(", and (").append(ROMAN_IDX[n]).append(") ").append(this.interpretRole(pieces[n]));
+                buffer.append(", (").append(ROMAN_IDX[i]).append(") ").append(this.interpretRole(pieces[i], flags));
+            buffer.append(", and (").append(ROMAN_IDX[n]).append(") ").append(this.interpretRole(pieces[n], flags));
+            retVal = buffer.toString();
         }
-        return retVal.toString();
+        return retVal;
+    }
+
+    /**
+     * Determine whether the second piece of a role pair is a description of the first.  A descriptive piece
+     * consists of an at-sign, white space, a word, and the suffix "-containing" in any case.
+     *
+     * @param piece		piece to check
+     *
+     * @return TRUE if the piece is descriptive, else FALSE
+     */
+    private static boolean isDescriptive(String piece) {
+        final int n = piece.length();
+        final int suffixStart = n - CONTAINING.length();
+        boolean retVal = (n > 0 && piece.charAt(0) == '@');
+        if (retVal) {
+            // Skip the white space.
+            int i = 1;
+            while (i < suffixStart && isSpace(piece.charAt(i))) i++;
+            // Skip the word.
+            int wordStart = i;
+            while (i < suffixStart && isWordChar(piece.charAt(i))) i++;
+            retVal = (wordStart > 1 && i > wordStart && i == suffixStart
+                    && piece.regionMatches(true, i, CONTAINING, 0, CONTAINING.length()));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified character is a regular-expression word character
+     *
+     * @param c		character to check
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_');
+    }
+
+    /**
+     * @return TRUE if the specified character is regular-expression white space
+     *
+     * @param c		character to check
+     */
+    private static boolean isSpace(char c) {
+        return (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r');
     }
 
     /**
      * This method interprets a role.  The only fancy thing is that we may need to handle the " => "
-     * construct, which indicates a subtype.
+     * construct, which indicates a subtype.  We use the last arrow that has white space on both sides
+     * and text before and after.
      *
      * @param roleString	the role string to interpret
+     * @param flags			classification flags for the product containing the role
      *
      * @return a descriptive phrase for the role (most commonly the role string itself)
      */
-    private String interpretRole(String roleString) {
-        String retVal;
-        // Check for the " => " construct.
-        Matcher m = SUBTYPE_ROLE.matcher(roleString);
-        if (m.matches()) {
-            // Here we have the subtype construct.
-            retVal = m.group(1) + ", a subtype of " + m.group(2);
-        } else
-            retVal = roleString;
+    private String interpretRole(String roleString, int flags) {
+        String retVal = roleString;
+        if ((flags & HAS_SUBTYPE) != 0) {
+            // Check for the " => " construct, working backward from the end.
+            final int n = roleString.length();
+            int arrow = roleString.lastIndexOf("=>");
+            boolean found = false;
+            while (arrow > 0 && ! found) {
+                // We need white space before the arrow with text in front of it, and white space after the arrow
+                // with text behind it.
+                int tail = arrow + 2;
+                if (arrow >= 2 && isSpace(roleString.charAt(arrow - 1)) && tail < n && isSpace(roleString.charAt(tail))) {
+                    tail++;
+                    while (tail < n - 1 && isSpace(roleString.charAt(tail))) tail++;
+                    if (tail < n) {
+                        // Here we have the subtype construct.
+                        found = true;
+                        retVal = roleString.substring(0, arrow - 1) + ", a subtype of " + roleString.substring(tail);
+                    }
+                }
+                arrow = roleString.lastIndexOf("=>", arrow - 1);
+            }
+        }
         return retVal;
     }
 
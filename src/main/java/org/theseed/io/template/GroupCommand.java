@@ -5,6 +5,7 @@ package org.theseed.io.template;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 import org.apache.commons.lang3.StringUtils;
 import org.theseed.basic.ParseFailureException;
@@ -30,6 +31,8 @@ public class GroupCommand extends TemplateCommand {
     private TemplateCommand prefix;
     /** clause blocks */
     private List<ClauseCommand> clauses;
+    /** commands for translating the clause blocks (normally the clauses themselves) */
+    private List<TemplateCommand> clauseBodies;
     /** suffix */
     private String nullClause;
 
@@ -58,6 +61,7 @@ public class GroupCommand extends TemplateCommand {
         // Denote we have no prefix and no clauses.
         this.prefix = null;
         this.clauses = new ArrayList<ClauseCommand>();
+        this.clauseBodies = new ArrayList<TemplateCommand>();
     }
 
     @Override
@@ -65,18 +69,21 @@ public class GroupCommand extends TemplateCommand {
         // The first command is the prefix.  The others are added to the list.
         if (this.prefix == null)
             this.prefix = command;
-        else
+        else {
             this.clauses.add((ClauseCommand) command);
+            this.clauseBodies.add(command);
+        }
         this.addEstimatedLength(command);
     }
 
     @Override
     protected String translate(Record line) {
         // Run through the clauses, translating the valid ones.
-        List<String> phrases = new ArrayList<String>(this.clauses.size());
-        for (ClauseCommand clause : this.clauses) {
-            if (clause.isSatisfied(line))
-                phrases.add(clause.translate(line));
+        final int n = this.clauses.size();
+        List<String> phrases = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            if (this.clauses.get(i).isSatisfied(line))
+                phrases.add(this.clauseBodies.get(i).translate(line));
         }
         String retVal;
         if (phrases.size() == 0)
@@ -97,6 +104,23 @@ public class GroupCommand extends TemplateCommand {
         return retVal;
     }
 
+    @Override
+    protected List<TemplateCommand> getSubCommands() {
+        List<TemplateCommand> retVal = new ArrayList<TemplateCommand>(this.clauseBodies.size() + 1);
+        if (this.prefix != null)
+            retVal.add(this.prefix);
+        retVal.addAll(this.clauseBodies);
+        return retVal;
+    }
+
+    @Override
+    protected void wrapSubCommands(UnaryOperator<TemplateCommand> wrapper) {
+        // The clauses are kept for their conditions, and only the translators are wrapped.
+        if (this.prefix != null)
+            this.prefix = wrapper.apply(this.prefix);
+        this.clauseBodies.replaceAll(wrapper);
+    }
+
     @Override
     protected String getName() {
         return "group";
@@ -3,7 +3,11 @@
  */
 package org.theseed.io.template;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.UnaryOperator;
 
 import org.apache.commons.lang3.StringUtils;
 import org.theseed.basic.ParseFailureException;
@@ -15,11 +19,14 @@ import org.theseed.io.template.cols.FieldExpression;
  * This is the basic IF command.  The command has as its sole parameter a field expression.
  * It executes its THEN-block when the expression evaluates to TRUE and executes the ELSE
  * block when the column evaluates to FALSE.
+ *
+ * If there are multiple condition expressions, they are all required to be TRUE.  The expressions are
+ * evaluated cheapest first, so that simple column checks can short-circuit the global-data lookups.
  */
 public class IfCommand extends TemplateCommand {
 
     // FIELDS
-    /** condition expressions */
+    /** condition expressions, in evaluation order */
     private FieldExpression[] fields;
     /** then-clause */
     private TemplateCommand thenClause;
@@ -42,6 +49,9 @@ public class IfCommand extends TemplateCommand {
         this.fields = new FieldExpression[cols.length];
         for (int i = 0; i < this.fields.length; i++)
             this.fields[i] = FieldExpression.compile(template, inStream, cols[i]);
+        // Order the expressions by cost.  Expression evaluation has no side effects, so this does not change
+        // the result.
+        Arrays.sort(this.fields, Comparator.comparingInt(FieldExpression::getCost));
         // Both clauses are initialized to null.  The first subcommand is THEN, the second is ELSE, and
         // any others are an error.
         this.thenClause = null;
@@ -65,7 +75,7 @@ public class IfCommand extends TemplateCommand {
     protected String translate(Record line) {
         String retVal = "";
         // Evaluate the condition.
-        boolean flag = Arrays.stream(this.fields).allMatch(x -> x.eval(line));
+        boolean flag = this.evaluate(line);
         // Execute the appropriate clause if it exists.
         if (flag && this.thenClause != null)
             retVal = this.thenClause.translate(line);
@@ -74,6 +84,36 @@ public class IfCommand extends TemplateCommand {
         return retVal;
     }
 
+    /**
+     * @return TRUE if all the condition expressions are TRUE for the specified record
+     *
+     * @param line	input record to test
+     */
+    private boolean evaluate(Record line) {
+        boolean retVal = true;
+        for (int i = 0; retVal && i < this.fields.length; i++)
+            retVal = this.fields[i].eval(line);
+        return retVal;
+    }
+
+    @Override
+    protected List<TemplateCommand> getSubCommands() {
+        List<TemplateCommand> retVal = new ArrayList<TemplateCommand>(2);
+        if (this.thenClause != null)
+            retVal.add(this.thenClause);
+        if (this.elseClause != null)
+            retVal.add(this.elseClause);
+        return retVal;
+    }
+
+    @Override
+    protected void wrapSubCommands(UnaryOperator<TemplateCommand> wrapper) {
+        if (this.thenClause != null)
+            this.thenClause = wrapper.apply(this.thenClause);
+        if (this.elseClause != null)
+            this.elseClause = wrapper.apply(this.elseClause);
+    }
+
     @Override
     protected String getName() {
         return "if";
@@ -3,7 +3,10 @@
  */
 package org.theseed.io.template;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -20,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.io.FieldInputStream;
+import org.theseed.io.LineReader;
 import org.theseed.io.template.output.TemplateHashWriter;
 
 
@@ -75,6 +79,16 @@ import org.theseed.io.template.output.TemplateHashWriter;
  * The template string is parsed into a list of commands.  This command list can then be processed rapidly
  * to form the result string.
  *
+ * For performance tuning, the template can be instrumented with {@link #enableProfiling()}.  Each compiled
+ * command is then wrapped to count calls, time, and output length, and {@link #getProfile()} returns a report
+ * shaped like the template structure.  A template that is not profiled contains no wrappers and pays no cost.
+ *
+ * Each command learns its typical output length as the template is applied, and the block commands use the
+ * learned lengths to size their buffers.  The learned estimates can be saved with {@link #saveEstimates(File)}
+ * and restored into a template compiled from the same string with {@link #loadEstimates(File)}.
+ *
+ * Once compiled, a template can be applied to records by several threads at once.
+ *
  * @author Bruce Parrello
  *
  */
@@ -91,13 +105,17 @@ public class LineTemplate {
     private TemplateHashWriter globals;
     /** randomizer */
     private Random rand;
-    /** search pattern for variables */
+    /** search pattern for variables; the compiler uses the equivalent single-pass lexer in {@link CompiledTemplate} */
     protected static final Pattern VARIABLE = Pattern.compile("(.*?)\\{\\{(.+?)\\}\\}(.*)");
     /** search pattern for special commands */
     protected static final Pattern COMMAND = Pattern.compile("\\$(\\w+)(?::(.+))?");
+    /** marker for the estimate file header */
+    private static final String ESTIMATE_MARKER = "#estimates";
 
     /**
      * Construct a line template for the specified tab-delimited file and the specified template string.
+     * Every column the template uses is resolved through {@link FieldInputStream#findField(String)}, so a caller
+     * that owns the stream and does not need the other columns can call {@link FieldInputStream#enableProjection()}.
      *
      * @param inStream	tab-delimited file stream
      * @param template	template string
@@ -116,165 +134,147 @@ public class LineTemplate {
         this.compileStack = new ArrayDeque<TemplateCommand>();
         this.compileStack.push(new BlockCommand(this,"block"));
         final int len = template.length();
-        // We parse the template into tokens.  There are literals, variables, and commands.  The unparsed section
-        // of the string is stored as the residual.  We set up a try-block so we can output the neighborhood of the
-        // error.
-        String residual = template;
+        // The template is lexed into tokens:  literals, variables, and commands.  The lexed form is cached, so a
+        // template used for many files is only lexed once.  We set up a try-block so we can output the neighborhood
+        // of the error.
         int currentPos = 0;
         try {
-            while(! residual.isEmpty()) {
-                // Look for the next variable or command.
-                Matcher m = VARIABLE.matcher(residual);
-                if (! m.matches()) {
-                    // Here the entire remainder of the template is a literal.
-                    currentPos = template.length() - residual.length();
-                    TemplateCommand residualCommand = new LiteralCommand(this, residual);
-                    this.addToTop(residualCommand);
-                    residual = "";
+            for (CompiledTemplate.Token token : CompiledTemplate.of(template, inStream.getKnownFields()).getTokens()) {
+                currentPos = token.getPosition();
+                String construct = token.getText();
+                if (token.getType() == CompiledTemplate.Type.LITERAL) {
+                    // Here we have literal text.
+                    TemplateCommand literalCommand = new LiteralCommand(this, construct);
+                    this.addToTop(literalCommand);
+                } else if (token.getType() == CompiledTemplate.Type.VARIABLE) {
+                    // Here we have a variable reference.
+                    TemplateCommand varCommand = new ColumnCommand(this, construct, inStream);
+                    this.addToTop(varCommand);
                 } else {
-                    // Here group 1 is the initial literal, group 2 is a variable or command, and group 3
-                    // is the new residual.
-                    String prefix = m.group(1);
-                    String construct = m.group(2);
-                    currentPos = template.length() - residual.length() + prefix.length();
-                    // Process the prefix.
-                    if (! prefix.isEmpty()) {
-                        TemplateCommand prefixCommand = new LiteralCommand(this, prefix);
-                        this.addToTop(prefixCommand);
-                    }
-                    // Is this a command or a variable reference?
-                    if (construct.charAt(0) != '$') {
-                        // Here we have a variable reference.
-                        TemplateCommand varCommand = new ColumnCommand(this, construct, inStream);
-                        this.addToTop(varCommand);
-                    } else {
-                        // Here we have a special command and we need to decode it.
-                        Matcher m2 = COMMAND.matcher(construct);
-                        if (! m2.matches())
-                            throw new ParseFailureException("Invalid special command \"" + construct + "\".");
-                        // Set up some local variables for use below.
-                        TemplateCommand newCommand = null;
-                        switch (m2.group(1)) {
-                        case "0" :
-                            // The null command does nothing, so it has no effect.
-                            break;
-                        case "strand" :
-                            // This command translates a strand code (+ or -).
-                            newCommand = new StrandCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "product" :
-                            // This command translates a gene product.
-                            newCommand = new GeneProductCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "numword" :
-                            // This command uses a field containing a list to decide between a singular word
-                            // and a plural word.
-                            newCommand = new NumWordCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "list" :
-                            // This command turns a field containing a list into a comma-separated
-                            // phrase.
-                            newCommand = new ListCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "qlist" :
-                            // This command turns a field containing a list into a comma-separated
-                            // phrase with quoted elements.
-                            newCommand = new QuotedListCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "if" :
-                            // This command starts an if-block.
-                            newCommand = new IfCommand(this, inStream, m2.group(2));
-                            this.addAndPush(newCommand);
-                            // Start a block to cover the THEN clause.
-                            this.addAndPush(new BlockCommand(this, "if"));
-                            break;
-                        case "nl" :
-                            // This command emits a new-line.
-                            newCommand = new LiteralCommand(this, "\n");
-                            this.addToTop(newCommand);
-                            break;
-                        case "else" :
-                            // This command starts a block that executes when the IF is false.
-                            // We first need to pop off a then-block.  This next method fails if
-                            // the context is not IF.
-                            this.popInContext("else", "if");
-                            // Now create the ELSE and connect it to the IF.
-                            newCommand = new BlockCommand(this, "else");
-                            this.addAndPush(newCommand);
-                            break;
-                        case "fi" :
-                            // This command terminates the scope of an IF-construct. We must
-                            // insure we are in the scope of an if-construct.  Pop off the
-                            // currently-active block command and verify we are in a valid
-                            // context.
-                            this.popInContext("fi", "if", "else");
-                            // Pop off the IF itself.
-                            this.pop();
-                            break;
-                        case "group" :
-                            // The group command allows the template to create a conjuncted list of
-                            // complex phrases.  The group consists of a prefix and a set of clauses.
-                            // We need to construct the group command and then push on a block command
-                            // for the prefix.
-                            newCommand = new GroupCommand(this, m2.group(2));
-                            this.addAndPush(newCommand);
-                            this.addAndPush(new BlockCommand(this, "group"));
-                            break;
-                        case "clause" :
-                            // The clause command indicates a conditional section of the group.
-                            // Pop off the current block command and verify we are in a valid
-                            // context.
-                            this.popInContext("clause", "group", "clause");
-                            // Create the clause command and add it to the group.
-                            newCommand = new ClauseCommand(this, inStream, m2.group(2));
-                            this.addAndPush(newCommand);
-                            break;
-                        case "end" :
-                            // This command ends a group construct.  Pop off the currently-active
-                            // block command and verify we are in a valid context.
-                            this.popInContext("end", "group", "clause");
-                            // Pop off the GROUP itself.
-                            this.pop();
-                            break;
-                        case "tab" :
-                            // This command emits a tab.
-                            newCommand = new LiteralCommand(this, "\t");
-                            this.addToTop(newCommand);
-                            break;
-                        case "choices" :
-                            // This command presents multiple answer choices.
-                            newCommand = new ChoiceCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "json" :
-                            // This command presents a JSON string.
-                            newCommand = new JsonCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "signWord" :
-                            // This command chooses an output string based on the sign of the
-                            // input expression (when parsed as a floating-point number).
-                            newCommand = new SignWordCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        case "ftype" :
-                            // This command outputs a description of a feature type, including
-                            // virus feature types. Grammatically, it will produce a sentence
-                            // predicate.
-                            newCommand = new FeatureTypeCommand(this, inStream, m2.group(2));
-                            this.addToTop(newCommand);
-                            break;
-                        default :
-                            throw new ParseFailureException("Unknown special command \"" + m2.group(1) + "\".");
-                        }
+                    // Here we have a special command and we need to decode it.
+                    Matcher m2 = COMMAND.matcher(construct);
+                    if (! m2.matches())
+                        throw new ParseFailureException("Invalid special command \"" + construct + "\".");
+                    // Set up some local variables for use below.
+                    TemplateCommand newCommand = null;
+                    switch (m2.group(1)) {
+                    case "0" :
+                        // The null command does nothing, so it has no effect.
+                        break;
+                    case "strand" :
+                        // This command translates a strand code (+ or -).
+                        newCommand = new StrandCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "product" :
+                        // This command translates a gene product.
+                        newCommand = new GeneProductCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "numword" :
+                        // This command uses a field containing a list to decide between a singular word
+                        // and a plural word.
+                        newCommand = new NumWordCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "list" :
+                        // This command turns a field containing a list into a comma-separated
+                        // phrase.
+                        newCommand = new ListCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "qlist" :
+                        // This command turns a field containing a list into a comma-separated
+                        // phrase with quoted elements.
+                        newCommand = new QuotedListCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "if" :
+                        // This command starts an if-block.
+                        newCommand = new IfCommand(this, inStream, m2.group(2));
+                        this.addAndPush(newCommand);
+                        // Start a block to cover the THEN clause.
+                        this.addAndPush(new BlockCommand(this, "if"));
+                        break;
+                    case "nl" :
+                        // This command emits a new-line.
+                        newCommand = new LiteralCommand(this, "\n");
+                        this.addToTop(newCommand);
+                        break;
+                    case "else" :
+                        // This command starts a block that executes when the IF is false.
+                        // We first need to pop off a then-block.  This next method fails if
+                        // the context is not IF.
+                        this.popInContext("else", "if");
+                        // Now create the ELSE and connect it to the IF.
+                        newCommand = new BlockCommand(this, "else");
+                        this.addAndPush(newCommand);
+                        break;
+                    case "fi" :
+                        // This command terminates the scope of an IF-construct. We must
+                        // insure we are in the scope of an if-construct.  Pop off the
+                        // currently-active block command and verify we are in a valid
+                        // context.
+                        this.popInContext("fi", "if", "else");
+                        // Pop off the IF itself.
+                        this.pop();
+                        break;
+                    case "group" :
+                        // The group command allows the template to create a conjuncted list of
+                        // complex phrases.  The group consists of a prefix and a set of clauses.
+                        // We need to construct the group command and then push on a block command
+                        // for the prefix.
+                        newCommand = new GroupCommand(this, m2.group(2));
+                        this.addAndPush(newCommand);
+                        this.addAndPush(new BlockCommand(this, "group"));
+                        break;
+                    case "clause" :
+                        // The clause command indicates a conditional section of the group.
+                        // Pop off the current block command and verify we are in a valid
+                        // context.
+                        this.popInContext("clause", "group", "clause");
+                        // Create the clause command and add it to the group.
+                        newCommand = new ClauseCommand(this, inStream, m2.group(2));
+                        this.addAndPush(newCommand);
+                        break;
+                    case "end" :
+                        // This command ends a group construct.  Pop off the currently-active
+                        // block command and verify we are in a valid context.
+                        this.popInContext("end", "group", "clause");
+                        // Pop off the GROUP itself.
+                        this.pop();
+                        break;
+                    case "tab" :
+                        // This command emits a tab.
+                        newCommand = new LiteralCommand(this, "\t");
+                        this.addToTop(newCommand);
+                        break;
+                    case "choices" :
+                        // This command presents multiple answer choices.
+                        newCommand = new ChoiceCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "json" :
+                        // This command presents a JSON string.
+                        newCommand = new JsonCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "signWord" :
+                        // This command chooses an output string based on the sign of the
+                        // input expression (when parsed as a floating-point number).
+                        newCommand = new SignWordCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    case "ftype" :
+                        // This command outputs a description of a feature type, including
+                        // virus feature types. Grammatically, it will produce a sentence
+                        // predicate.
+                        newCommand = new FeatureTypeCommand(this, inStream, m2.group(2));
+                        this.addToTop(newCommand);
+                        break;
+                    default :
+                        throw new ParseFailureException("Unknown special command \"" + m2.group(1) + "\".");
                     }
-                    // Update the residual.
-                    residual = m.group(3);
                 }
             }
             if (this.compileStack.size() > 1)
@@ -345,6 +345,125 @@ public class LineTemplate {
         return this.compiledTemplate.translate(line);
     }
 
+    /**
+     * Instrument this template for profiling.  Every compiled command is wrapped to collect runtime statistics.
+     * Calling this method more than once has no further effect.
+     */
+    public void enableProfiling() {
+        this.compiledTemplate = ProfiledCommand.instrument(this.compiledTemplate);
+    }
+
+    /**
+     * @return TRUE if this template is instrumented for profiling
+     */
+    public boolean isProfiling() {
+        return (this.compiledTemplate instanceof ProfiledCommand);
+    }
+
+    /**
+     * Erase the profiling statistics collected so far.
+     */
+    public void resetProfile() {
+        if (this.compiledTemplate instanceof ProfiledCommand)
+            ((ProfiledCommand) this.compiledTemplate).resetAll();
+    }
+
+    /**
+     * @return a report of the profiling statistics, with one line per command indented to show the template
+     * 		   structure, or an empty string if profiling is not enabled
+     */
+    public String getProfile() {
+        StringBuilder retVal = new StringBuilder(1000);
+        if (this.compiledTemplate instanceof ProfiledCommand)
+            ((ProfiledCommand) this.compiledTemplate).report(retVal, 0);
+        return retVal.toString();
+    }
+
+    /**
+     * @return the compiled template command
+     */
+    protected TemplateCommand getCompiledTemplate() {
+        return this.compiledTemplate;
+    }
+
+    /**
+     * @return a list of all the commands in the compiled template, in prefix order
+     */
+    private List<TemplateCommand> listCommands() {
+        List<TemplateCommand> retVal = new ArrayList<TemplateCommand>();
+        Deque<TemplateCommand> stack = new ArrayDeque<TemplateCommand>();
+        stack.push(this.compiledTemplate);
+        while (! stack.isEmpty()) {
+            TemplateCommand command = stack.pop();
+            retVal.add(command);
+            List<TemplateCommand> subs = command.getSubCommands();
+            for (int i = subs.size() - 1; i >= 0; i--)
+                stack.push(subs.get(i));
+        }
+        return retVal;
+    }
+
+    /**
+     * Save the learned output-length estimates for this template to a file.  There is one line per command,
+     * in prefix order, containing the command name and the learned mean and deviation (if any).
+     *
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    public void saveEstimates(File outFile) throws IOException {
+        List<TemplateCommand> commands = this.listCommands();
+        try (PrintWriter writer = new PrintWriter(outFile, StandardCharsets.UTF_8)) {
+            writer.println(ESTIMATE_MARKER + "\t" + commands.size());
+            for (TemplateCommand command : commands) {
+                double[] state = command.getLearnedState();
+                if (state == null)
+                    writer.println(command.getName());
+                else
+                    writer.println(command.getName() + "\t" + state[0] + "\t" + state[1]);
+            }
+        }
+    }
+
+    /**
+     * Load learned output-length estimates from a file created by {@link #saveEstimates(File)}.  If the
+     * file does not match the structure of this template, a warning is logged and the estimates are not used.
+     *
+     * @param inFile	input file
+     *
+     * @return TRUE if the estimates were loaded, FALSE if they did not match the template
+     *
+     * @throws IOException
+     */
+    public boolean loadEstimates(File inFile) throws IOException {
+        List<TemplateCommand> commands = this.listCommands();
+        List<String[]> lines = new ArrayList<String[]>(commands.size());
+        boolean retVal = false;
+        try (LineReader reader = new LineReader(inFile)) {
+            String[] header = (reader.hasNext() ? StringUtils.split(reader.next(), '\t') : null);
+            if (header == null || header.length != 2 || ! header[0].equals(ESTIMATE_MARKER))
+                throw new IOException("File " + inFile + " is not a template estimate file.");
+            for (String line : reader)
+                lines.add(StringUtils.splitPreserveAllTokens(line, '\t'));
+        }
+        // Verify the commands match before we change anything.
+        final int n = commands.size();
+        boolean ok = (lines.size() == n);
+        for (int i = 0; ok && i < n; i++)
+            ok = lines.get(i)[0].equals(commands.get(i).getName());
+        if (! ok)
+            log.warn("Estimate file {} does not match the template structure and will be ignored.", inFile);
+        else {
+            for (int i = 0; i < n; i++) {
+                String[] fields = lines.get(i);
+                if (fields.length >= 3)
+                    commands.get(i).setLearnedState(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]));
+            }
+            retVal = true;
+        }
+        return retVal;
+    }
+
     /**
      * Push a new command onto the compile stack.
      *
@@ -441,10 +560,10 @@ public class LineTemplate {
     }
 
     /**
-     * @return a list of choices from the specified choice list
+     * @return a list of choices from the specified choice list, always including the correct choice
      *
      * @param name		name of the choice list
-     * @param answer	correct choice
+     * @param answer	correct choice (this may be missing from a sampled choice list)
      * @param num		number of choices to use
      *
      * @throws ParseFailureException
@@ -459,6 +578,13 @@ public class LineTemplate {
         if (num >= n) {
             choiceList.addAll(choices);
             this.shuffle(choiceList, n);
+            // A sampled choice list may not contain the real answer.  If so, it takes a random slot.
+            if (! choices.contains(answer)) {
+                if (n == 0)
+                    choiceList.add(answer);
+                else
+                    choiceList.set(this.rand.nextInt(n), answer);
+            }
             retVal = choiceList;
         } else {
             choices.stream().filter(x -> ! x.equals(answer)).forEach(x -> choiceList.add(x));
@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package org.theseed.io.template;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import org.theseed.basic.ParseFailureException;
+import org.theseed.io.FieldInputStream.Record;
+
+/**
+ * This command wraps another template command to collect runtime statistics.  It records the number of
+ * calls, the cumulative time in nanoseconds, the total output length, and how well the wrapped command's
+ * estimated length predicted the real output length.  The timings are inclusive, so a compound command's time
+ * includes the time of its sub-commands; the self-time is computed when the profile is reported.  The length
+ * estimate and its learning are delegated to the wrapped command.
+ *
+ * The statistics are kept in striped adders, so a profiled template can be applied by several threads at once.
+ *
+ * Profiled commands are only inserted into a compiled template when profiling is enabled, so an ordinary template
+ * contains no wrappers.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ProfiledCommand extends TemplateCommand {
+
+    // FIELDS
+    /** wrapped command */
+    private final TemplateCommand inner;
+    /** number of calls */
+    private final LongAdder calls;
+    /** cumulative nanoseconds */
+    private final LongAdder nanos;
+    /** total output length */
+    private final LongAdder outputLength;
+    /** number of calls whose output was longer than the estimate */
+    private final LongAdder underEstimates;
+    /** total absolute difference between the estimated and actual output lengths */
+    private final LongAdder estimateError;
+
+    /**
+     * Wrap a command for profiling.
+     *
+     * @param command	command to wrap
+     */
+    public ProfiledCommand(TemplateCommand command) {
+        super(command.getMasterTemplate());
+        this.inner = command;
+        this.calls = new LongAdder();
+        this.nanos = new LongAdder();
+        this.outputLength = new LongAdder();
+        this.underEstimates = new LongAdder();
+        this.estimateError = new LongAdder();
+    }
+
+    /**
+     * Instrument a command and all its sub-commands for profiling.
+     *
+     * @param command	command to instrument
+     *
+     * @return the profiled version of the command
+     */
+    public static TemplateCommand instrument(TemplateCommand command) {
+        TemplateCommand retVal = command;
+        if (! (command instanceof ProfiledCommand)) {
+            command.wrapSubCommands(ProfiledCommand::instrument);
+            retVal = new ProfiledCommand(command);
+        }
+        return retVal;
+    }
+
+    /**
+     * Erase the statistics for this command.
+     */
+    public void reset() {
+        this.calls.reset();
+        this.nanos.reset();
+        this.outputLength.reset();
+        this.underEstimates.reset();
+        this.estimateError.reset();
+    }
+
+    @Override
+    protected void addCommand(TemplateCommand command) throws ParseFailureException {
+        throw new ParseFailureException("Invalid attempt to add a subcommand to a profiled command.");
+    }
+
+    @Override
+    protected String translate(Record line) {
+        final int estimate = this.getEstimatedLength();
+        final long start = System.nanoTime();
+        String retVal = this.inner.translate(line);
+        this.nanos.add(System.nanoTime() - start);
+        this.calls.increment();
+        final int len = retVal.length();
+        this.outputLength.add(len);
+        if (len > estimate)
+            this.underEstimates.increment();
+        this.estimateError.add(Math.abs(len - estimate));
+        return retVal;
+    }
+
+    @Override
+    protected String getName() {
+        return this.inner.getName();
+    }
+
+    @Override
+    protected int getEstimatedLength() {
+        return this.inner.getEstimatedLength();
+    }
+
+    @Override
+    protected void recordLength(int length) {
+        this.inner.recordLength(length);
+    }
+
+    @Override
+    protected boolean learnsOwnLength() {
+        return this.inner.learnsOwnLength();
+    }
+
+    @Override
+    protected double[] getLearnedState() {
+        return this.inner.getLearnedState();
+    }
+
+    @Override
+    protected void setLearnedState(double mean, double deviation) {
+        this.inner.setLearnedState(mean, deviation);
+    }
+
+    @Override
+    protected List<TemplateCommand> getSubCommands() {
+        return this.inner.getSubCommands();
+    }
+
+    @Override
+    protected void wrapSubCommands(UnaryOperator<TemplateCommand> wrapper) {
+        this.inner.wrapSubCommands(wrapper);
+    }
+
+    /**
+     * @return the wrapped command
+     */
+    public TemplateCommand getInner() {
+        return this.inner;
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return this.calls.sum();
+    }
+
+    /**
+     * @return the cumulative time in nanoseconds, including sub-commands
+     */
+    public long getNanos() {
+        return this.nanos.sum();
+    }
+
+    /**
+     * @return the cumulative time in nanoseconds, excluding profiled sub-commands
+     */
+    public long getSelfNanos() {
+        long retVal = this.nanos.sum();
+        for (TemplateCommand sub : this.getSubCommands()) {
+            if (sub instanceof ProfiledCommand)
+                retVal -= ((ProfiledCommand) sub).getNanos();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the total output length in characters
+     */
+    public long getOutputLength() {
+        return this.outputLength.sum();
+    }
+
+    /**
+     * @return the number of calls whose output was longer than the estimated length
+     */
+    public long getUnderEstimates() {
+        return this.underEstimates.sum();
+    }
+
+    /**
+     * @return the mean absolute difference between the estimated and actual output lengths
+     */
+    public double getMeanEstimateError() {
+        final long n = this.calls.sum();
+        return (n == 0 ? 0.0 : this.estimateError.sum() / (double) n);
+    }
+
+    /**
+     * Add the profile for this command and its sub-commands to a report.  Each command is a single line,
+     * indented according to its depth in the template.
+     *
+     * @param buffer	output buffer for the report
+     * @param depth		depth of this command in the template
+     */
+    public void report(StringBuilder buffer, int depth) {
+        final long n = this.getCalls();
+        final long chars = this.getOutputLength();
+        buffer.append("  ".repeat(depth)).append(this.getName());
+        buffer.append(String.format(" calls=%d total=%.3fms self=%.3fms chars=%d mean=%.1f est=%d under=%d err=%.1f%n",
+                n, this.getNanos() / 1e6, this.getSelfNanos() / 1e6, chars,
+                (n == 0 ? 0.0 : chars / (double) n), this.getEstimatedLength(),
+                this.getUnderEstimates(), this.getMeanEstimateError()));
+        for (TemplateCommand sub : this.getSubCommands()) {
+            if (sub instanceof ProfiledCommand)
+                ((ProfiledCommand) sub).report(buffer, depth + 1);
+        }
+    }
+
+    /**
+     * Erase the statistics for this command and all its sub-commands.
+     */
+    public void resetAll() {
+        this.reset();
+        for (TemplateCommand sub : this.getSubCommands()) {
+            if (sub instanceof ProfiledCommand)
+                ((ProfiledCommand) sub).resetAll();
+        }
+    }
+
+}
@@ -33,6 +33,8 @@ public class StrandCommand extends PrimitiveTemplateCommand {
     public StrandCommand(LineTemplate lineTemplate, FieldInputStream inStream, String colName) throws IOException {
         super(lineTemplate);
         this.colIdx = inStream.findField(colName);
+        // Strand codes have very few distinct values, so we intern them.
+        inStream.enableInterning(this.colIdx);
     }
 
     @Override
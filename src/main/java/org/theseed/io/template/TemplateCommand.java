@@ -3,6 +3,10 @@
  */
 package org.theseed.io.template;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
 import org.theseed.basic.ParseFailureException;
 import org.theseed.io.FieldInputStream;
 
@@ -10,6 +14,15 @@ import org.theseed.io.FieldInputStream;
  * This is the base class for template commands.  It handles the process of tracking the length
  * estimate and exposes the methods needed by the template processor.
  *
+ * The length estimate starts as a static guess computed at compile time.  As output is produced, the command
+ * learns the distribution of its actual output lengths as an exponentially weighted mean and mean deviation.
+ * Once anything has been learned, the estimate is a high percentile of that distribution (the mean plus two
+ * deviations), so that output buffers are rarely resized.
+ *
+ * The learned state is an immutable object that is replaced on each update, so a template can be applied by several
+ * threads at once.  Two threads updating the estimate at the same time may each start from the same state, in which
+ * case one output length is not counted; this is harmless, since the estimate only sizes buffers.
+ *
  * @author Bruce Parrello
  *
  */
@@ -20,6 +33,40 @@ public abstract class TemplateCommand {
     private int estimatedLength;
     /** controlling template */
     private LineTemplate masterTemplate;
+    /** learned output-length estimate, or NULL if nothing has been learned */
+    private volatile Estimate learned;
+    /** weight given to each new output length */
+    private static final double LEARN_WEIGHT = 0.05;
+    /** number of deviations above the mean for the learned estimate */
+    private static final double LEARN_SPREAD = 2.0;
+    /** initial deviation, as a fraction of the first output length */
+    private static final double INITIAL_DEVIATION = 0.25;
+
+    /**
+     * This is a learned output-length estimate.
+     */
+    private static class Estimate {
+
+        /** mean output length */
+        private final double mean;
+        /** mean deviation of the output length */
+        private final double deviation;
+        /** high-percentile output length */
+        private final int length;
+
+        /**
+         * Create a learned estimate.
+         *
+         * @param mean			mean output length
+         * @param deviation		mean deviation of the output length
+         */
+        protected Estimate(double mean, double deviation) {
+            this.mean = mean;
+            this.deviation = deviation;
+            this.length = (int) Math.ceil(mean + LEARN_SPREAD * deviation);
+        }
+
+    }
 
     /**
      * Compile a new template command.
@@ -29,13 +76,56 @@ public abstract class TemplateCommand {
     public TemplateCommand(LineTemplate template) {
         this.estimatedLength = 0;
         this.masterTemplate = template;
+        this.learned = null;
     }
 
     /**
      * @return the estimated output length for this block
      */
     protected int getEstimatedLength() {
-        return this.estimatedLength;
+        Estimate current = this.learned;
+        return (current == null ? this.estimatedLength : current.length);
+    }
+
+    /**
+     * Record the length of an actual output from this command, updating the learned estimate.
+     *
+     * @param length	length of the output string
+     */
+    protected void recordLength(int length) {
+        Estimate current = this.learned;
+        if (current == null)
+            this.learned = new Estimate(length, length * INITIAL_DEVIATION);
+        else {
+            double diff = length - current.mean;
+            this.learned = new Estimate(current.mean + LEARN_WEIGHT * diff,
+                    current.deviation + LEARN_WEIGHT * (Math.abs(diff) - current.deviation));
+        }
+    }
+
+    /**
+     * @return TRUE if this command records its own output lengths, so that its parent should not
+     */
+    protected boolean learnsOwnLength() {
+        return false;
+    }
+
+    /**
+     * @return the learned estimate state (mean and deviation), or NULL if nothing has been learned
+     */
+    protected double[] getLearnedState() {
+        Estimate current = this.learned;
+        return (current == null ? null : new double[] { current.mean, current.deviation });
+    }
+
+    /**
+     * Restore a previously-learned estimate state.
+     *
+     * @param mean			learned mean output length
+     * @param deviation		learned mean deviation of the output length
+     */
+    protected void setLearnedState(double mean, double deviation) {
+        this.learned = new Estimate(mean, deviation);
     }
 
     /**
@@ -91,6 +181,21 @@ public abstract class TemplateCommand {
      */
     protected abstract String getName();
 
+    /**
+     * @return the list of sub-commands for this command, in template order
+     */
+    protected List<TemplateCommand> getSubCommands() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Replace each sub-command of this command with a wrapped version.  This is used to instrument
+     * the compiled template for profiling.  Commands without sub-commands do nothing.
+     *
+     * @param wrapper	function that returns the wrapped version of a sub-command
+     */
+    protected void wrapSubCommands(UnaryOperator<TemplateCommand> wrapper) { }
+
     /**
      * @return the master controlling template
      */
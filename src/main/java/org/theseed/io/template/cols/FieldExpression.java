@@ -33,6 +33,12 @@ public abstract class FieldExpression {
     private static final Pattern FUNCTION_PATTERN = Pattern.compile("([a-z]\\w+)\\((.+)\\)");
     /** splitter for function parameters */
     private static final Pattern SPLIT_PATTERN = Pattern.compile("\\s*,\\s*");
+    /** evaluation cost of an expression that does not look at the record */
+    public static final int COST_CONSTANT = 0;
+    /** evaluation cost of an expression that checks a single column */
+    public static final int COST_COLUMN = 1;
+    /** evaluation cost of an expression that looks up global data */
+    public static final int COST_LOOKUP = 10;
 
 
     /**
@@ -107,6 +113,14 @@ public abstract class FieldExpression {
      */
     public abstract String get(FieldInputStream.Record line);
 
+    /**
+     * @return the relative cost of evaluating this expression, used to order conditions so that cheap tests are
+     * 		   performed first
+     */
+    public int getCost() {
+        return COST_COLUMN;
+    }
+
     /**
      * @return the master template
      */
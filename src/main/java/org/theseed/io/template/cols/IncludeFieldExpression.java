@@ -53,7 +53,16 @@ public class IncludeFieldExpression extends FieldExpression {
     @Override
     public boolean eval(Record line) {
         List<String> values = this.getList(line);
-        return values.stream().anyMatch(x -> ! x.isBlank());
+        boolean retVal = false;
+        final int n = values.size();
+        for (int i = 0; i < n && ! retVal; i++)
+            retVal = ! values.get(i).isBlank();
+        return retVal;
+    }
+
+    @Override
+    public int getCost() {
+        return COST_LOOKUP;
     }
 
     @Override
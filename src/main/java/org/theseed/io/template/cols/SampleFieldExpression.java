@@ -57,6 +57,11 @@ public class SampleFieldExpression extends FieldExpression {
         return this.choices.size() > 0 && this.count > 0;
     }
 
+    @Override
+    public int getCost() {
+        return COST_CONSTANT;
+    }
+
     @Override
     public List<String> getList(Record line) {
         // Get the choices into a list and shuffle them.
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.theseed.io.template.output;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This object accumulates the choice list for a single field.  In exact mode, every distinct value is kept.  In
+ * sampling mode, memory is bounded by a fixed capacity, and the object keeps a uniform random sample of the
+ * distinct values.
+ *
+ * A plain reservoir sample of the input records would favor values that occur frequently, so instead we use
+ * bottom-k sampling, the distinct-value form of reservoir sampling.  Each value is assigned a pseudo-random 64-bit
+ * hash (computed from the value and a seed), and the sample consists of the values with the K smallest hashes.
+ * Because the hash of a value does not depend on how often or where it occurs, every set of K distinct values is
+ * equally likely to be chosen, regardless of the value frequencies or the order of the input.  The same seed
+ * always selects the same sample, and two samplers with the same seed and capacity can be merged to produce
+ * exactly the sample that a single pass over both inputs would have produced.  This allows the input files to
+ * be processed in parallel.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ChoiceSampler {
+
+    // FIELDS
+    /** maximum number of values to keep, or 0 for exact mode */
+    private final int capacity;
+    /** seed for the value hashes */
+    private final long seed;
+    /** set of all values (exact mode) */
+    private final TreeSet<String> exact;
+    /** map of hashes to values for the current sample (sampling mode) */
+    private final TreeMap<Long, String> sample;
+    /** number of values offered */
+    private long offered;
+
+    /**
+     * Create a new, empty choice sampler.
+     *
+     * @param capacity	maximum number of values to keep, or 0 to keep all values
+     * @param seed		seed for the value hashes
+     */
+    public ChoiceSampler(int capacity, long seed) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Choice list capacity cannot be negative.");
+        this.capacity = capacity;
+        this.seed = seed;
+        if (capacity == 0) {
+            this.exact = new TreeSet<String>();
+            this.sample = null;
+        } else {
+            this.exact = null;
+            this.sample = new TreeMap<Long, String>();
+        }
+        this.offered = 0;
+    }
+
+    /**
+     * Offer a value to the choice list.
+     *
+     * @param value		value to add
+     */
+    public void add(String value) {
+        this.offered++;
+        if (this.exact != null)
+            this.exact.add(value);
+        else
+            this.addHashed(hash(value, this.seed), value);
+    }
+
+    /**
+     * Add a value with a known hash to the sample.
+     *
+     * @param hash		hash of the value
+     * @param value		value to add
+     */
+    private void addHashed(long hash, String value) {
+        if (this.sample.size() < this.capacity)
+            this.sample.put(hash, value);
+        else if (hash < this.sample.lastKey()) {
+            // Here the value belongs in the sample.  If it is not already present, it displaces the value with
+            // the largest hash.
+            if (this.sample.put(hash, value) == null)
+                this.sample.pollLastEntry();
+        }
+    }
+
+    /**
+     * Merge another choice sampler into this one.  The other sampler must have the same capacity and seed.
+     *
+     * @param other		other sampler to merge
+     */
+    public void merge(ChoiceSampler other) {
+        if (other.capacity != this.capacity || other.seed != this.seed)
+            throw new IllegalArgumentException("Cannot merge choice samplers with different capacities or seeds.");
+        this.offered += other.offered;
+        if (this.exact != null)
+            this.exact.addAll(other.exact);
+        else {
+            for (Map.Entry<Long, String> entry : other.sample.entrySet())
+                this.addHashed(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the choice set.  In exact mode, this is sorted; in sampling mode, it is in hash order,
+     * 		   which is effectively random.
+     */
+    public Set<String> getChoices() {
+        Set<String> retVal;
+        if (this.exact != null)
+            retVal = this.exact;
+        else
+            retVal = new LinkedHashSet<String>(this.sample.values());
+        return retVal;
+    }
+
+    /**
+     * @return the number of values offered to this sampler
+     */
+    public long getOffered() {
+        return this.offered;
+    }
+
+    /**
+     * @return TRUE if this sampler keeps all values
+     */
+    public boolean isExact() {
+        return (this.exact != null);
+    }
+
+    /**
+     * Compute the 64-bit hash of a value.  We use FNV-1a on the characters followed by the MurmurHash3
+     * finalizer, which spreads the bits well enough to treat the hash as uniformly random.
+     *
+     * @param value		value to hash
+     * @param seed		hash seed
+     *
+     * @return the hash value
+     */
+    protected static long hash(String value, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        final int n = value.length();
+        for (int i = 0; i < n; i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+}
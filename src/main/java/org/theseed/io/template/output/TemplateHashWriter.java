@@ -5,6 +5,7 @@ package org.theseed.io.template.output;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -12,7 +13,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -24,7 +24,8 @@ import org.theseed.io.FieldInputStream;
 /**
  * This template writer saves the template output in a hash that can later
  * be interrogated by the $include directive.  It can also be used to store
- * choice lists.
+ * choice lists.  Choice lists are normally exact, but they can be given a
+ * capacity, in which case they are uniform random samples of bounded size.
  */
 public class TemplateHashWriter implements ITemplateWriter {
 
@@ -35,6 +36,12 @@ public class TemplateHashWriter implements ITemplateWriter {
     private Map<String, Map<String, List<String>>> masterHash;
     /** choice lists -- type -> choice set */
     private Map<String, Set<String>> choiceLists;
+    /** maximum number of values per choice list, or 0 to keep all values */
+    private int choiceCapacity;
+    /** seed for choice-list sampling */
+    private long choiceSeed;
+    /** default seed for choice-list sampling */
+    public static final long DEFAULT_CHOICE_SEED = 1842724469L;
 
     /**
      * Construct a template hash writer.
@@ -46,6 +53,9 @@ public class TemplateHashWriter implements ITemplateWriter {
         this.choiceLists = new HashMap<String, Set<String>>();
         // Create a choice list for yes/no.
         this.choiceLists.put("YesNo", Set.of("Yes", "No"));
+        // Choice lists are exact by default.
+        this.choiceCapacity = 0;
+        this.choiceSeed = DEFAULT_CHOICE_SEED;
     }
 
     @Override
@@ -79,31 +89,121 @@ public class TemplateHashWriter implements ITemplateWriter {
         // This is an in-memory structure.  No action is needed.
     }
 
+    /**
+     * Specify the capacity for choice lists read by {@link #readChoiceLists(File, String...)}.  A capacity of 0
+     * (the default) keeps every distinct value in sorted order.  A positive capacity bounds the memory used and
+     * keeps a uniform random sample of the distinct values; see {@link ChoiceSampler} for the guarantees.
+     *
+     * @param capacity	maximum number of values per choice list, or 0 for exact lists
+     */
+    public void setChoiceCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Choice list capacity cannot be negative.");
+        this.choiceCapacity = capacity;
+    }
+
+    /**
+     * @return the capacity for choice lists, or 0 if choice lists are exact
+     */
+    public int getChoiceCapacity() {
+        return this.choiceCapacity;
+    }
+
+    /**
+     * Specify the seed used to select sampled choice lists.
+     *
+     * @param seed		new sampling seed
+     */
+    public void setChoiceSeed(long seed) {
+        this.choiceSeed = seed;
+    }
+
     @Override
     public void readChoiceLists(File fileName, String... fields) throws IOException {
+        this.readChoiceLists(List.of(fileName), fields);
+    }
+
+    /**
+     * Read choice lists from multiple files.  The files are processed in parallel in a single streaming pass,
+     * and the choice lists for each field are merged.
+     *
+     * @param files		list of input files
+     * @param fields	array of field names to read the choices from
+     *
+     * @throws IOException
+     */
+    public void readChoiceLists(List<File> files, String... fields) throws IOException {
+        List<ChoiceSampler> samplers;
+        try {
+            samplers = files.parallelStream().map(x -> this.sampleFile(x, fields))
+                    .reduce(TemplateHashWriter::mergeSamplers).orElse(this.createSamplers(fields.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // With all the choice sets created, we add the sets.
+        for (int i = 0; i < fields.length; i++) {
+            ChoiceSampler sampler = samplers.get(i);
+            Set<String> set = sampler.getChoices();
+            if (sampler.isExact())
+                log.info("{} items added to choice list for {}.", set.size(), fields[i]);
+            else
+                log.info("{} items sampled from {} values for choice list {}.", set.size(), sampler.getOffered(), fields[i]);
+            this.choiceLists.put(fields[i], set);
+        }
+    }
+
+    /**
+     * @return a list of empty choice samplers
+     *
+     * @param n		number of samplers needed
+     */
+    private List<ChoiceSampler> createSamplers(int n) {
+        return IntStream.range(0, n).mapToObj(i -> new ChoiceSampler(this.choiceCapacity, this.choiceSeed))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Read a single input file to accumulate choice lists.
+     *
+     * @param fileName	input file name
+     * @param fields	array of field names to read the choices from
+     *
+     * @return a list of the choice samplers for the fields, in order
+     */
+    private List<ChoiceSampler> sampleFile(File fileName, String[] fields) {
+        List<ChoiceSampler> retVal = this.createSamplers(fields.length);
         // Open the input file.
         try (FieldInputStream inStream = FieldInputStream.create(fileName)) {
             // Get the field indices.
             int[] idxes = new int[fields.length];
             for (int i = 0; i < fields.length; i++)
                 idxes[i] = inStream.findField(fields[i]);
-            // Set up the string sets.
-            List<Set<String>> sets = IntStream.range(0, fields.length).mapToObj(i -> new TreeSet<String>()).collect(Collectors.toList());
             // Now read the file.
             for (var line : inStream) {
                 for (int i = 0; i < fields.length; i++) {
                     String value = line.get(idxes[i]);
                     if (! StringUtils.isBlank(value))
-                        sets.get(i).add(value);
+                        retVal.get(i).add(value);
                 }
             }
-            // With all the choice sets created, we add the sets.
-            for (int i = 0; i < fields.length; i++) {
-                Set<String> set = sets.get(i);
-                log.info("{} items added to choice list for {}.", set.size(), fields[i]);
-                this.choiceLists.put(fields[i], set);
-            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return retVal;
+    }
+
+    /**
+     * Merge two lists of choice samplers.
+     *
+     * @param list1		first list of samplers (modified)
+     * @param list2		second list of samplers
+     *
+     * @return the first list, with the second list merged in
+     */
+    private static List<ChoiceSampler> mergeSamplers(List<ChoiceSampler> list1, List<ChoiceSampler> list2) {
+        for (int i = 0; i < list1.size(); i++)
+            list1.get(i).merge(list2.get(i));
+        return list1;
     }
 
     /**
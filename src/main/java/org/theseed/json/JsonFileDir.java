@@ -12,6 +12,7 @@ import java.util.Iterator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.theseed.io.DirectoryScanner;
 
 import com.github.cliftonlabs.json_simple.JsonArray;
 import com.github.cliftonlabs.json_simple.JsonException;
@@ -20,6 +21,9 @@ import com.github.cliftonlabs.json_simple.Jsoner;
 /**
  * This object facilitates looping through all the JSON files in a JSON dump directory.
  *
+ * The standard constructor lists the directory up front.  The lazy constructor reads the directory as it is
+ * iterated, and can cache the list of JSON files in an index file (see {@link DirectoryScanner}).
+ *
  * @author Bruce Parrello
  *
  */
@@ -28,8 +32,10 @@ public class JsonFileDir implements Iterable<File> {
     // FIELDS
     /** logging facility */
     private static final Logger log = LoggerFactory.getLogger(JsonFileDir.class);
-    /** array of JSON files in this directory */
+    /** array of JSON files in this directory, or NULL if we are scanning lazily */
     private final File[] jsonFiles;
+    /** lazy directory scanner, or NULL if we have a list */
+    private final DirectoryScanner scanner;
     /** JSON file filter */
     private final FileFilter JSON_FILE_FILTER = (File pathname) -> {
         boolean retVal = pathname.isFile();
@@ -77,18 +83,41 @@ public class JsonFileDir implements Iterable<File> {
     public JsonFileDir(File inDir) {
         // Get the JSON file list.
         this.jsonFiles = inDir.listFiles(JSON_FILE_FILTER);
+        this.scanner = null;
+    }
+
+    /**
+     * Construct a lazily-scanned JSON dump iterable for the specified directory.  The directory is read
+     * as it is iterated, so processing can begin immediately.
+     *
+     * @param inDir			JSON dump directory to parse
+     * @param indexFile		index file for caching the list of JSON files, or NULL to scan every time
+     */
+    public JsonFileDir(File inDir, File indexFile) {
+        this.jsonFiles = null;
+        this.scanner = new DirectoryScanner(inDir, JSON_FILE_FILTER, indexFile);
     }
 
     @Override
     public Iterator<File> iterator() {
-        return this.new Iter();
+        Iterator<File> retVal;
+        if (this.jsonFiles != null)
+            retVal = this.new Iter();
+        else
+            retVal = this.scanner.iterator();
+        return retVal;
     }
 
     /**
-     * @return the number of files in this directory
+     * @return the number of files in this directory (for a lazy scan, this requires reading the entire directory)
      */
     public int size() {
-        return this.jsonFiles.length;
+        int retVal;
+        if (this.jsonFiles != null)
+            retVal = this.jsonFiles.length;
+        else
+            retVal = this.scanner.size();
+        return retVal;
     }
 
     /**
@@ -25,6 +25,9 @@ import org.theseed.io.FieldInputStream;
  * list element can be a number or a quoted string.  We use the old trick of breaking the input into tokens to
  * accomplish this.  Fortunately, it is illegal to break a token across a line.
  *
+ * The tokens are kept in raw form, with the quotes in place, and only the values of keys that have been requested
+ * as fields are unescaped.  Values of other keys are checked for syntax and discarded.
+ *
  * @author Bruce Parrello
  *
  */
@@ -111,20 +114,21 @@ public class JsonListInputStream extends FieldInputStream {
             if (! this.hasNextLine())
                 throw new IOException("Unexpected end-of-file in JSON input stream.");
             String line = this.nextLine();
-            JsonTokenizer tokens = new JsonTokenizer(line, this.getLineNumber());
+            JsonTokenizer tokens = new JsonTokenizer.Raw(line, this.getLineNumber());
             this.tokenIter = tokens.iterator();
         }
     }
 
     @Override
-    public boolean hasNext() {
+    protected boolean hasNextRecord() {
         return this.tokenIter.hasNext();
     }
 
     @Override
-    public Record next() {
+    protected Record nextRecord() {
         // We will build the return value in here.
         Record retVal = this.new Record(this.width());
+        final List<String> fieldNames = this.getFieldNames();
         try {
             // Here we must read the next record into a hash.  We expect to find tokens in the order [key, colon, value, comma].
             // The only wrinkle is that sometimes the value can be a list.
@@ -136,19 +140,25 @@ public class JsonListInputStream extends FieldInputStream {
                 while (! done) {
                     if (INVALID_KEYS.contains(key))
                         throw new IOException("Unexpected token \"" + key + "\" when looking for map key in line " + this.getLineNumber() + ".");
+                    key = JsonTokenizer.unquote(key, this.getLineNumber());
+                    // Only a requested field needs its value unescaped.
+                    final int idx = fieldNames.indexOf(key);
                     String delim = this.getNextToken();
                     if (! delim.contentEquals(":"))
                         throw new IOException("Expecting colon after \"" + key + "\", found \"" + delim + "\" in line " + this.getLineNumber() + ".");
                     // The next token should be the value.  It could also be an open-list bracket.
                     String value = this.getNextToken();
-                    if (value.contentEquals("["))
-                        retVal.setField(key, this.parseList());
+                    if (value.contentEquals("[")) {
+                        List<String> list = this.parseList(idx >= 0);
+                        if (idx >= 0)
+                            retVal.setField(idx, list);
+                    }
                     else if (value.contentEquals("{"))
                         throw new IOException("Unsupported use of map value for key \"" + key + "\" in line " + this.getLineNumber() + ".");
                     else if (INVALID_KEYS.contains(value))
                         throw new IOException("Unexpected token \"" + value + "\" found parsing value of \"" + key + "\" in line " + this.getLineNumber() + ".");
-                    else
-                        retVal.setField(key, value);
+                    else if (idx >= 0)
+                        retVal.setField(idx, JsonTokenizer.unquote(value, this.getLineNumber()));
                     // The next token should be a comma or end-of-record.
                     delim = this.getNextToken();
                     if (delim.contentEquals("}"))
@@ -171,12 +181,14 @@ public class JsonListInputStream extends FieldInputStream {
      * Parse the list value at the current position.  At the end, we will be positioned on the comma after
      * the list.
      *
-     * @return the list of strings to use as the value
+     * @param keep		TRUE if the list value is needed, FALSE if it is only being skipped
+     *
+     * @return the list of strings to use as the value, or NULL if it is not needed
      *
      * @throws IOException
      */
-    private List<String> parseList() throws IOException {
-        List<String> retVal = new ArrayList<String>();
+    private List<String> parseList(boolean keep) throws IOException {
+        List<String> retVal = (keep ? new ArrayList<String>() : null);
         // We expect string, comma, string, comma, ... string, close-bracket.
         String element = this.getNextToken();
         // Handle the special case of an empty list.
@@ -187,7 +199,8 @@ public class JsonListInputStream extends FieldInputStream {
                 if (element.contentEquals("{") || element.contentEquals("["))
                     throw new IOException("Unsupported feature:  list in line " + this.getLineNumber() + " contains a non-primitive element.");
                 // Add this element to the return list.
-                retVal.add(element);
+                if (keep)
+                    retVal.add(JsonTokenizer.unquote(element, this.getLineNumber()));
                 // Get the delimiter.
                 String delim = this.getNextToken();
                 if (delim.contentEquals("]"))
@@ -62,34 +62,24 @@ public class JsonTokenizer implements Iterable<String> {
         @Override
         protected String parseString() throws IOException {
             final int n = this.line.length();
+            final int start = this.pos;
             // Push past the open quote.
-            this.buffer.append('"');
             this.pos++;
-            // Loop ahead, looking for the close quote.
+            // Loop ahead, looking for the close quote.  Since the token is the original text, we don't need to
+            // copy anything until the end.
             boolean closed = false;
             while (this.pos < n && ! closed) {
                 char c = line.charAt(this.pos);
-                switch (c) {
-                case '\\' :
-                    // Here we have a backslash, so we need to push the next character regardless of what it is.
-                    this.buffer.append(c);
+                if (c == '\\') {
+                    // Here we have a backslash, so we need to skip the next character regardless of what it is.
                     this.pos++;
                     if (this.pos >= n)
                         throw new IOException("Invalid escape sequence at end of string in line " + this.lineNumber + ".");
-                    c = line.charAt(this.pos);
-                    break;
-                case '"' :
-                    // Here we have the close quote.
+                } else if (c == '"')
                     closed = true;
-                    break;
-                }
-                this.buffer.append(c);
                 this.pos++;
             }
-            // Return the token and empty the buffer.
-            String retVal = this.buffer.toString();
-            this.buffer.setLength(0);
-            return retVal;
+            return this.line.substring(start, this.pos);
         }
 
     }
@@ -143,7 +133,32 @@ public class JsonTokenizer implements Iterable<String> {
         }
     }
 
-     /**
+    /**
+     * Convert a raw token from {@link Raw} into the token the normal tokenizer would have produced.  Unquoted tokens
+     * are returned unchanged.  This allows a client to defer the cost of unescaping until it knows it needs the value.
+     *
+     * @param token		raw token to convert
+     * @param lineNum	line number for error messages
+     *
+     * @return the unquoted and unescaped token string
+     *
+     * @throws IOException
+     */
+    public static String unquote(String token, int lineNum) throws IOException {
+        String retVal = token;
+        final int n = token.length();
+        if (n > 0 && token.charAt(0) == '"') {
+            if (token.indexOf('\\') < 0)
+                retVal = (n > 1 && token.charAt(n - 1) == '"' ? token.substring(1, n - 1) : token.substring(1));
+            else {
+                JsonTokenizer tokenizer = new JsonTokenizer(token, lineNum);
+                retVal = tokenizer.tokens.get(0);
+            }
+        }
+        return retVal;
+    }
+
+    /**
      * This method parses a quoted string.  It is presumed the current position is on the
      * open quote.  It will be moved past the close quote.
      *
@@ -10,8 +10,10 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -44,9 +46,15 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
     private final T searchObj;
     /** list of aliases */
     private final List<T> aliases;
-    /** set of little words */
+    /** array of little words */
+    private static final String[] LITTLE_WORD_LIST = new String[] { "and", "or", "the", "a", "of", "in", "an", "to", "on" };
+    /** set of little words (including the empty string) */
     private static final HashSet<String> LITTLE_WORDS =
-            Stream.of("and", "or", "the", "a", "of", "in", "an", "to", "on", "").collect(Collectors.toCollection(HashSet::new));
+            Stream.concat(Stream.of(LITTLE_WORD_LIST), Stream.of("")).collect(Collectors.toCollection(HashSet::new));
+    /** languages whose locales lower-case ASCII letters to non-ASCII characters */
+    private static final Set<String> TURKIC_LANGUAGES = Set.of("tr", "az");
+    /** minimum length of a magic ID prefix */
+    private static final int MAGIC_LEN = 16;
     /** parentheticals */
     private static final Pattern PARENTHETICAL = Pattern.compile("\\(.*?\\)");
     /** things that are not digits and letters */
@@ -71,11 +79,65 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
      * Condense a string into a magic ID.  Note there will be no
      * suffix.
      *
+     * The name is lower-cased, outer parentheses and inner parentheticals are removed, and it is broken into
+     * words at each non-word character.  Little words are skipped, and the first four characters of each
+     * remaining word are added (capitalized) until the ID is at least 16 characters long.  For the common
+     * case of an ASCII name, this is done in a single pass over the string with no intermediate strings.
+     *
      * @param full	full string to be condensed
      *
      * @return a shorter representation of the string
      */
     public static String condense(String full) {
+        // Non-ASCII characters and Turkic locales change the behavior of lower-casing, so we fall back
+        // to the general method for those.
+        if (! isAsciiOnly(full) || TURKIC_LANGUAGES.contains(Locale.getDefault().getLanguage()))
+            return condenseGeneral(full);
+        // Compute the bounds of the string with the outer parentheses removed.
+        int pos = 0;
+        int end = full.length();
+        if (hasOuterParens(full)) {
+            pos = 1;
+            end--;
+        }
+        // We will build the ID in here.  The last word can push us past 16 characters by at most 3.
+        char[] retVal = new char[MAGIC_LEN + 3];
+        int len = 0;
+        while (len < MAGIC_LEN && pos < end) {
+            char c = full.charAt(pos);
+            if (isWordChar(c)) {
+                // Here we are at the start of a word.  Find the end.
+                int wordEnd = pos + 1;
+                while (wordEnd < end && isWordChar(full.charAt(wordEnd)))
+                    wordEnd++;
+                // Note we skip little words.
+                if (! isLittleWord(full, pos, wordEnd)) {
+                    // Capitalize the first letter and shrink to four characters.
+                    retVal[len++] = toUpperAscii(c);
+                    final int wordLimit = Math.min(wordEnd, pos + 4);
+                    for (int i = pos + 1; i < wordLimit; i++)
+                        retVal[len++] = toLowerAscii(full.charAt(i));
+                }
+                pos = wordEnd;
+            } else if (c == '(') {
+                // A parenthetical is skipped if it closes before the end of the line.
+                int close = findParenClose(full, pos + 1, end);
+                pos = (close < 0 ? pos + 1 : close + 1);
+            } else
+                pos++;
+        }
+        return new String(retVal, 0, len);
+    }
+
+    /**
+     * Condense a string into a magic ID using the general, regex-based method.  This handles all
+     * the unicode edge cases of lower-casing, but is much slower than the main method.
+     *
+     * @param full	full string to be condensed
+     *
+     * @return a shorter representation of the string
+     */
+    /* package private */ static String condenseGeneral(String full) {
         // Remove outer parentheses, if any.
         String noParens = deparenthesize(full);
         // Remove remaining parentheticals.
@@ -84,8 +146,8 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
         // Separate into words.
         String[] words = noParens.split(PUNCTUATION);
         // Loop through the words, putting them into the output.
-        StringBuilder retVal = new StringBuilder(16);
-        for (int wordIdx = 0; retVal.length() < 16 && wordIdx < words.length; wordIdx++) {
+        StringBuilder retVal = new StringBuilder(MAGIC_LEN);
+        for (int wordIdx = 0; retVal.length() < MAGIC_LEN && wordIdx < words.length; wordIdx++) {
             String thisWord = words[wordIdx];
             // Note we skip little words.
             if (! LITTLE_WORDS.contains(thisWord)) {
@@ -99,6 +161,87 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
        return retVal.toString();
     }
 
+    /**
+     * @return TRUE if the string contains only ASCII characters, else FALSE
+     *
+     * @param full	string to check
+     */
+    private static boolean isAsciiOnly(String full) {
+        final int n = full.length();
+        boolean retVal = true;
+        for (int i = 0; i < n && retVal; i++)
+            retVal = (full.charAt(i) < 0x80);
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified ASCII character is a regex word character, else FALSE
+     *
+     * @param c		character to check
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * @return the lower-case version of an ASCII character
+     *
+     * @param c		character to convert
+     */
+    private static char toLowerAscii(char c) {
+        return (c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+    }
+
+    /**
+     * @return the upper-case version of an ASCII character
+     *
+     * @param c		character to convert
+     */
+    private static char toUpperAscii(char c) {
+        return (c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c);
+    }
+
+    /**
+     * @return TRUE if the specified section of a string is a little word (ignoring case), else FALSE
+     *
+     * @param full		string containing the word
+     * @param start		index of the first character of the word
+     * @param end		index past the last character of the word
+     */
+    private static boolean isLittleWord(String full, int start, int end) {
+        boolean retVal = false;
+        if (end - start <= 3) {
+            for (int i = 0; i < LITTLE_WORD_LIST.length && ! retVal; i++) {
+                String little = LITTLE_WORD_LIST[i];
+                retVal = (little.length() == end - start && full.regionMatches(true, start, little, 0, little.length()));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Find the closing parenthesis of a parenthetical.  The parenthetical cannot extend past the end of a
+     * line.
+     *
+     * @param full		string containing the parenthetical
+     * @param pos		position after the open parenthesis
+     * @param end		position past the end of the region to search
+     *
+     * @return the position of the close parenthesis, or -1 if there is none
+     */
+    private static int findParenClose(String full, int pos, int end) {
+        int retVal = -1;
+        while (pos < end && retVal < 0) {
+            char c = full.charAt(pos);
+            if (c == ')')
+                retVal = pos;
+            else if (c == '\n' || c == '\r')
+                break;
+            pos++;
+        }
+        return retVal;
+    }
+
     /**
      * Remove the outer parentheses from a string (if any).
      *
@@ -108,7 +251,19 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
      */
     public static String deparenthesize(String full) {
         String noParens = full;
-        if (full.startsWith("(") && full.endsWith(")")) {
+        if (hasOuterParens(full))
+            noParens = full.substring(1, full.length() - 1);
+        return noParens;
+    }
+
+    /**
+     * @return TRUE if the string is enclosed in a matching pair of parentheses, else FALSE
+     *
+     * @param full	full string to parse
+     */
+    private static boolean hasOuterParens(String full) {
+        boolean retVal = false;
+        if (full.length() >= 2 && full.charAt(0) == '(' && full.charAt(full.length() - 1) == ')') {
             int level = 1;
             int i = 1;
             final int n = full.length() - 1;
@@ -124,10 +279,9 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
                 }
                 i++;
             }
-            if (! error)
-                noParens = full.substring(1, n);
+            retVal = ! error;
         }
-        return noParens;
+        return retVal;
     }
 
     /**
@@ -252,7 +406,17 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
      * @param value	object for which a magic ID is desired
      */
     private void storeNew(T value) {
-        String prefix = condense(value.getName());
+        this.storeNew(value, condense(value.getName()));
+    }
+
+    /**
+     * Generate an ID for the specified object from a pre-computed condensed
+     * prefix and store it in the object, then add the object to the map.
+     *
+     * @param value		object for which a magic ID is desired
+     * @param prefix	condensed form of the object's name
+     */
+    private void storeNew(T value, String prefix) {
         int minSuffix = 0;
         // Does the prefix end with a digit?
         String end = StringUtils.right(prefix, 1);
@@ -310,6 +474,82 @@ public class MagicMap<T extends MagicObject> implements Map<String, String>, Ite
         }
     }
 
+    /**
+     * Load a collection of names into this map in bulk.  Each name that is not already in the map
+     * is added with a new magic ID.  The result is the same as calling a "findOrInsert" method on
+     * each name in order, but the object construction (which includes normalization and checksum
+     * computation) and the condensing of names into ID prefixes are done in parallel.  Only the
+     * final ID assignment is sequential.
+     *
+     * @param names		collection of names to load
+     * @param factory	constructor that creates a map object from an ID and a name
+     *
+     * @return a list of the map objects for the names, in the same order as the input
+     */
+    public List<T> bulkLoadNames(Collection<String> names, BiFunction<String, String, T> factory) {
+        Stream<Map.Entry<String, String>> pairs = names.stream().map(x -> new AbstractMap.SimpleEntry<String, String>(null, x));
+        return this.bulkLoad(pairs, factory);
+    }
+
+    /**
+     * Load a stream of (ID, name) pairs into this map in bulk.  A pair with a NULL ID is treated as a
+     * name to be found or inserted.  A pair with an ID is registered as if it were passed to {@link #put(MagicObject)}.
+     * The objects are built and their ID prefixes computed in parallel, and then they are merged into the
+     * map sequentially in input order, so the IDs assigned are the same as they would be if the pairs were
+     * processed one at a time.
+     *
+     * @param pairs		stream of (ID, name) pairs to load
+     * @param factory	constructor that creates a map object from an ID and a name
+     *
+     * @return a list of the map objects for the pairs, in the same order as the input
+     */
+    public List<T> bulkLoad(Stream<? extends Map.Entry<String, String>> pairs, BiFunction<String, String, T> factory) {
+        // Build the objects and their prefixes in parallel.  Nothing in the map is modified during this phase,
+        // so the read-only lookups are safe.
+        List<BulkItem> items = pairs.parallel().map(x -> this.new BulkItem(factory.apply(x.getKey(), x.getValue())))
+                .collect(Collectors.toList());
+        // Now merge them in order.
+        List<T> retVal = new ArrayList<>(items.size());
+        for (BulkItem item : items) {
+            T found = this.checkMapper.get(item.obj.getChecksum());
+            if (found == null) {
+                if (item.obj.getId() == null)
+                    this.storeNew(item.obj, item.prefix);
+                else
+                    this.register(item.obj);
+                found = this.checkMapper.get(item.obj.getChecksum());
+            }
+            retVal.add(found);
+        }
+        return retVal;
+    }
+
+    /**
+     * This is a utility class used to hold the result of the parallel phase of a bulk load.
+     */
+    private class BulkItem {
+
+        /** object to merge */
+        private final T obj;
+        /** condensed name prefix, or NULL if none is needed */
+        private final String prefix;
+
+        /**
+         * Prepare an object for merging.  The ID prefix is only computed if the object needs
+         * an ID and is not already in the map.
+         *
+         * @param obj	object to prepare
+         */
+        private BulkItem(T obj) {
+            this.obj = obj;
+            if (obj.getId() == null && ! MagicMap.this.checkMapper.containsKey(obj.getChecksum()))
+                this.prefix = condense(obj.getName());
+            else
+                this.prefix = null;
+        }
+
+    }
+
     /**
      * Erase everything in this mapping.  This will cause IDs to be reused.
      */
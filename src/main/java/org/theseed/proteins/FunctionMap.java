@@ -3,6 +3,9 @@
  */
 package org.theseed.proteins;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.theseed.magic.MagicMap;
 
 /**
@@ -39,4 +42,17 @@ public class FunctionMap extends MagicMap<Function> {
         return retVal;
     }
 
+    /**
+     * Find or insert all of the named functions.  The normalization and checksum computations are
+     * done in parallel, but the IDs assigned are the same as those that would be assigned by calling
+     * {@link #findOrInsert(String)} on each name in order.
+     *
+     * @param funDescs	collection of function names
+     *
+     * @return a list of the Function objects for the names, in input order
+     */
+    public List<Function> findOrInsertAll(Collection<String> funDescs) {
+        return this.bulkLoadNames(funDescs, Function::new);
+    }
+
 }
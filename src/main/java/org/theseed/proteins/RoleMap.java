@@ -6,6 +6,8 @@ package org.theseed.proteins;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.List;
 import java.util.Scanner;
 
 import org.apache.commons.lang3.StringUtils;
@@ -46,6 +48,19 @@ public class RoleMap extends MagicMap<Role> {
         return retVal;
     }
 
+    /**
+     * Find or insert all of the named roles.  The normalization and checksum computations are
+     * done in parallel, but the IDs assigned are the same as those that would be assigned by calling
+     * {@link #findOrInsert(String)} on each name in order.
+     *
+     * @param roleDescs	collection of role names
+     *
+     * @return a list of the Role objects for the names, in input order
+     */
+    public List<Role> findOrInsertAll(Collection<String> roleDescs) {
+        return this.bulkLoadNames(roleDescs, Role::new);
+    }
+
     /**
      * Save a role map to a file.  The file is 3 columns for compatability with the old system.
      *
@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package org.theseed.counters;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class TestCountMap {
+
+    @Test
+    void testCompactCounts() {
+        CountMap<String> expected = new CountMap<String>();
+        CompactCountMap<String> actual = new CompactCountMap<String>();
+        assertThat(actual.getBestEntry(), nullValue());
+        Random rand = new Random(12345L);
+        // Count a skewed distribution of keys with occasional removals, so the probe runs get exercised.
+        for (int i = 0; i < 50000; i++) {
+            double r = rand.nextDouble();
+            String key = "k" + (int) (r * r * 2000);
+            if (rand.nextInt(50) == 0) {
+                expected.remove(key);
+                actual.remove(key);
+            } else {
+                int n = rand.nextInt(3) + 1;
+                assertThat(key, actual.count(key, n), equalTo(expected.count(key, n)));
+            }
+        }
+        assertThat(actual.size(), equalTo(expected.size()));
+        assertThat(actual.getTotal(), equalTo(expected.getTotal()));
+        assertThat(actual.keys(), equalTo(expected.keys()));
+        assertThat(actual.getSingletons(), equalTo(expected.getSingletons()));
+        for (String key : expected.keys())
+            assertThat(key, actual.getCount(key), equalTo(expected.getCount(key)));
+        assertThat(actual.getCount("missing"), equalTo(0));
+        assertThat(actual.findCounter("missing"), nullValue());
+        // Verify the sort.
+        List<CountMap<String>.Count> expectedSort = expected.sortedCounts();
+        List<CompactCountMap.Count<String>> actualSort = actual.sortedCounts();
+        assertThat(actualSort.size(), equalTo(expectedSort.size()));
+        for (int i = 0; i < actualSort.size(); i++) {
+            assertThat(actualSort.get(i).getKey(), equalTo(expectedSort.get(i).getKey()));
+            assertThat(actualSort.get(i).getCount(), equalTo(expectedSort.get(i).getCount()));
+        }
+        assertThat(actual.getBestEntry().getKey(), equalTo(expected.getBestEntry().getKey()));
+        // Test accumulation.
+        CompactCountMap<String> total = new CompactCountMap<String>(10);
+        total.accumulate(actual);
+        total.accumulate(expected);
+        for (String key : expected.keys())
+            assertThat(key, total.getCount(key), equalTo(2 * expected.getCount(key)));
+        // Test clearing.
+        total.clear();
+        assertThat(total.size(), equalTo(expected.size()));
+        assertThat(total.getTotal(), equalTo(0));
+        total.deleteAll();
+        assertThat(total.size(), equalTo(0));
+        assertThat(total.getCount("k0"), equalTo(0));
+    }
+
+    @Test
+    void testConcurrentCounts() {
+        ConcurrentCountMap<String> actual = new ConcurrentCountMap<String>();
+        assertThat(actual.getBestEntry(), nullValue());
+        // Count from many threads, taking snapshots while the counting is going on.
+        IntStream.range(0, 200000).parallel().forEach(i -> {
+            if (i % 1000 == 0) {
+                // Each thread counts "a" before "b", so a consistent snapshot can never show more "b" than "a".
+                CountMap<String> snap = actual.snapshot();
+                assertThat(snap.getCount("a") >= snap.getCount("b"), equalTo(true));
+                assertThat(snap.getCount("k7"), lessThanOrEqualTo(4000));
+                assertThat(snap.getCount("k7") % 2, equalTo(0));
+            }
+            actual.count("a");
+            actual.count("b");
+            actual.count("k" + (i % 100), 2);
+        });
+        assertThat(actual.size(), equalTo(102));
+        assertThat(actual.getCount("a"), equalTo(200000L));
+        assertThat(actual.getCount("b"), equalTo(200000L));
+        assertThat(actual.getCount("k7"), equalTo(4000L));
+        assertThat(actual.getCount("missing"), equalTo(0L));
+        assertThat(actual.getTotal(), equalTo(800000L));
+        List<CountMap<String>.Count> sorted = actual.sortedCounts();
+        assertThat(sorted.size(), equalTo(102));
+        assertThat(sorted.get(0).getCount(), equalTo(200000));
+        assertThat(sorted.get(101).getCount(), equalTo(4000));
+        // Accumulate a standard map.
+        CountMap<String> other = new CountMap<String>();
+        other.count("b", 5);
+        other.count("z");
+        actual.accumulate(other);
+        assertThat(actual.getBestEntry().getKey(), equalTo("b"));
+        assertThat(actual.getCount("z"), equalTo(1L));
+        assertThat(actual.getTotal(), equalTo(800006L));
+        // Negative counts are rejected.
+        try {
+            actual.count("a", -1);
+            assertThat("Negative count accepted.", false, equalTo(true));
+        } catch (IllegalArgumentException e) {
+            assertThat(actual.getCount("a"), equalTo(200000L));
+        }
+        actual.deleteAll();
+        assertThat(actual.size(), equalTo(0));
+        assertThat(actual.getTotal(), equalTo(0L));
+    }
+
+    @Test
+    void testTopCounts() throws IOException {
+        CountMap<String> expected = new CountMap<String>();
+        TopCountMap<String> actual = new TopCountMap<String>(100);
+        TopCountMap<String> half1 = new TopCountMap<String>(100);
+        TopCountMap<String> half2 = new TopCountMap<String>(100);
+        assertThat(actual.getBestEntry(), nullValue());
+        Random rand = new Random(12345L);
+        // Count a heavily skewed distribution over far more keys than the capacity.
+        for (int i = 0; i < 100000; i++) {
+            double r = rand.nextDouble();
+            String key = "k" + (int) (r * r * r * 20000);
+            expected.count(key);
+            actual.count(key);
+            if (i % 2 == 0)
+                half1.count(key);
+            else
+                half2.count(key);
+        }
+        assertThat(actual.size(), equalTo(100));
+        assertThat(actual.getTotal(), equalTo((long) expected.getTotal()));
+        final long bound = actual.getTotal() / actual.getCapacity();
+        assertThat((long) actual.getMinCount(), lessThanOrEqualTo(bound));
+        // Verify the error bounds.
+        for (TopCountMap.Count<String> counter : actual.counts()) {
+            int real = expected.getCount(counter.getKey());
+            assertThat(counter.toString(), counter.getCount(), greaterThanOrEqualTo(real));
+            assertThat(counter.toString(), counter.getGuaranteed(), lessThanOrEqualTo(real));
+            assertThat(counter.toString(), counter.getError(), lessThanOrEqualTo(actual.getMinCount()));
+        }
+        // Every key above the bound must be present.
+        for (CountMap<String>.Count counter : expected.sortedCounts()) {
+            if (counter.getCount() > bound)
+                assertThat(counter.getKey(), actual.containsKey(counter.getKey()), equalTo(true));
+        }
+        // The top keys should be sorted.
+        List<TopCountMap.Count<String>> top = actual.top(10);
+        assertThat(top.size(), equalTo(10));
+        for (int i = 1; i < 10; i++)
+            assertThat(top.get(i).getCount(), lessThanOrEqualTo(top.get(i-1).getCount()));
+        assertThat(actual.getBestEntry().getKey(), equalTo(expected.getBestEntry().getKey()));
+        // Merge the halves and check the bounds again.
+        half1.accumulate(half2);
+        assertThat(half1.getTotal(), equalTo(actual.getTotal()));
+        for (TopCountMap.Count<String> counter : half1.counts()) {
+            int real = expected.getCount(counter.getKey());
+            assertThat(counter.toString(), counter.getCount(), greaterThanOrEqualTo(real));
+            assertThat(counter.toString(), counter.getGuaranteed(), lessThanOrEqualTo(real));
+        }
+        for (CountMap<String>.Count counter : expected.sortedCounts()) {
+            if (counter.getCount() > bound)
+                assertThat(counter.getKey(), half1.containsKey(counter.getKey()), equalTo(true));
+        }
+        // Test save and load.
+        File saveFile = new File("data", "top.ser");
+        actual.save(saveFile);
+        TopCountMap<String> loaded = TopCountMap.load(saveFile, x -> x);
+        assertThat(loaded.getCapacity(), equalTo(100));
+        assertThat(loaded.getTotal(), equalTo(actual.getTotal()));
+        assertThat(loaded.size(), equalTo(actual.size()));
+        for (TopCountMap.Count<String> counter : actual.counts()) {
+            TopCountMap.Count<String> other = loaded.findCounter(counter.getKey());
+            assertThat(counter.getKey(), other.getCount(), equalTo(counter.getCount()));
+            assertThat(counter.getKey(), other.getError(), equalTo(counter.getError()));
+        }
+        loaded.deleteAll();
+        assertThat(loaded.size(), equalTo(0));
+        assertThat(loaded.getTotal(), equalTo(0L));
+        // A key containing a tab cannot be saved, and a file that is not a saved map cannot be loaded.
+        loaded.count("bad\tkey");
+        try {
+            loaded.save(saveFile);
+            assertThat("Key with tab saved.", false, equalTo(true));
+        } catch (IOException e) {
+            assertThat(true, equalTo(true));
+        }
+        try {
+            TopCountMap.load(new File("data", "simple.tbl"), x -> x);
+            assertThat("Invalid top-count file loaded.", false, equalTo(true));
+        } catch (IOException e) {
+            assertThat(true, equalTo(true));
+        }
+    }
+
+}
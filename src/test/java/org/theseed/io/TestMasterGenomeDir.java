@@ -7,8 +7,19 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
 
 import org.junit.jupiter.api.Test;
 
@@ -37,4 +48,185 @@ class TestMasterGenomeDir {
 
     }
 
+    @Test
+    void testLazyDir() {
+        File indexFile = new File("data", "master.idx.ser");
+        indexFile.delete();
+        // Age the directory, so the scan does not start in the same time granule as the last change.
+        new File("data").setLastModified(System.currentTimeMillis() - 10000);
+        MasterGenomeDir testDir = new MasterGenomeDir(new File("data"), indexFile);
+        // The first pass scans and builds the index.
+        Set<String> actual = testDir.stream().map(x-> x.getName()).collect(Collectors.toSet());
+        assertThat(actual, equalTo(EXPECTED));
+        assertThat(indexFile.isFile(), equalTo(true));
+        // The second pass uses the index.
+        DirectoryScanner scanner = new DirectoryScanner(new File("data"), x -> false, indexFile);
+        assertThat(scanner.isIndexValid(), equalTo(true));
+        actual.clear();
+        for (File dir : scanner) {
+            assertThat(dir.toString(), dir.isDirectory(), equalTo(true));
+            actual.add(dir.getName());
+        }
+        assertThat(actual, equalTo(EXPECTED));
+        assertThat(testDir.size(), equalTo(EXPECTED.size()));
+        // An abandoned scan leaves neither an index nor a temporary file behind.
+        indexFile.delete();
+        try (Stream<File> stream = testDir.stream()) {
+            assertThat(stream.findFirst().isPresent(), equalTo(true));
+        }
+        assertThat(indexFile.exists(), equalTo(false));
+        String[] temps = new File("data").list((d, n) -> n.startsWith(indexFile.getName()));
+        assertThat(temps.length, equalTo(0));
+        try (DirectoryScanner.Iter iter = new DirectoryScanner(new File("data"), x -> true, indexFile).iterator()) {
+            assertThat(iter.hasNext(), equalTo(true));
+        }
+        assertThat(indexFile.exists(), equalTo(false));
+        // Without an index, every pass scans.
+        testDir = new MasterGenomeDir(new File("data"), null);
+        actual = testDir.parallelStream().map(x-> x.getName()).collect(Collectors.toSet());
+        assertThat(actual, equalTo(EXPECTED));
+    }
+
+    @Test
+    void testForEach() throws InterruptedException {
+        MasterGenomeDir testDir = new MasterGenomeDir(new File("data"));
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger reports = new AtomicInteger();
+        // One genome fails, one hangs until interrupted, and the rest succeed.
+        MasterGenomeDir.Options options = new MasterGenomeDir.Options().setThreads(2)
+                .setTimeout(Duration.ofMillis(500)).setProgressInterval(Duration.ofMillis(100))
+                .setProgressListener(x -> reports.incrementAndGet());
+        MasterGenomeDir.Results results = testDir.forEach(x -> {
+            String name = x.getName();
+            seen.add(name);
+            if (name.equals("11159.7"))
+                throw new IOException("Bad genome.");
+            else if (name.equals("11159.8"))
+                Thread.sleep(60000);
+        }, options);
+        assertThat(seen, equalTo(EXPECTED));
+        assertThat(results.isComplete(), equalTo(true));
+        assertThat(results.getTotal(), equalTo(5));
+        assertThat(results.getDone(), equalTo(5));
+        assertThat(results.getSucceeded(), equalTo(3));
+        assertThat(results.getFailed(), equalTo(1));
+        assertThat(results.getTimedOut(), equalTo(1));
+        assertThat(results.getElapsedMillis(), lessThan(30000L));
+        assertThat(reports.get(), greaterThan(0));
+        Map<File, Throwable> errors = results.getErrors();
+        assertThat(errors.size(), equalTo(2));
+        assertThat(errors.get(new File("data", "11159.7")), instanceOf(IOException.class));
+        assertThat(errors.get(new File("data", "11159.8")), instanceOf(TimeoutException.class));
+        // Try virtual threads.
+        seen.clear();
+        results = testDir.forEach(x -> seen.add(x.getName()),
+                new MasterGenomeDir.Options().setVirtualThreads(true).setThreads(100).setProgressInterval(null));
+        assertThat(seen, equalTo(EXPECTED));
+        assertThat(results.getSucceeded(), equalTo(5));
+        assertThat(results.getErrors().size(), equalTo(0));
+    }
+
+    @Test
+    void testChanges() throws IOException, InterruptedException {
+        // Build a master directory we can modify.
+        File master = Files.createTempDirectory("master").toFile();
+        try {
+            for (String genome : EXPECTED)
+                FileUtils.copyDirectory(new File("data", genome), new File(master, genome));
+            MasterGenomeDir testDir = new MasterGenomeDir(master);
+            GenomeDirManifest manifest = new GenomeDirManifest();
+            // Initially, everything is new.
+            Set<String> seen = ConcurrentHashMap.newKeySet();
+            MasterGenomeDir.Options options = new MasterGenomeDir.Options().setProgressInterval(null);
+            MasterGenomeDir.Results results = testDir.forEachChanged(x -> seen.add(x.getName()), options, manifest);
+            assertThat(seen, equalTo(EXPECTED));
+            assertThat(results.getTotal(), equalTo(5));
+            assertThat(manifest.size(), equalTo(5));
+            // Save and reload the manifest.  Now nothing has changed.
+            File manifestFile = new File(master, "manifest.tbl");
+            manifest.save(manifestFile);
+            manifest = GenomeDirManifest.load(manifestFile);
+            assertThat(manifest.getGenomeIds(), equalTo(EXPECTED));
+            assertThat(testDir.changedSince(manifest).count(), equalTo(0L));
+            // Touching a file does not count as a change.
+            File genomeFile = new File(master, "11159.6/genome.json");
+            genomeFile.setLastModified(genomeFile.lastModified() - 100000);
+            assertThat(testDir.changedSince(manifest).count(), equalTo(0L));
+            // Changing the content does, as does a new genome.
+            String text = Files.readString(genomeFile.toPath());
+            try (PrintWriter writer = new PrintWriter(genomeFile)) {
+                writer.print(text.replace('[', '{').replace(']', '}'));
+            }
+            genomeFile.setLastModified(genomeFile.lastModified() + 100000);
+            FileUtils.copyDirectory(new File("data", "11159.7"), new File(master, "11159.10"));
+            testDir = new MasterGenomeDir(master);
+            Set<String> changed = testDir.changedSince(manifest).map(x -> x.getName()).collect(Collectors.toSet());
+            assertThat(changed, equalTo(Set.of("11159.6", "11159.10")));
+            // A failed genome is not recorded.
+            seen.clear();
+            results = testDir.forEachChanged(x -> {
+                if (x.getName().equals("11159.10"))
+                    throw new IOException("Failed.");
+                seen.add(x.getName());
+            }, options, manifest);
+            assertThat(seen, equalTo(Set.of("11159.6")));
+            assertThat(results.getTotal(), equalTo(6));
+            assertThat(results.getFailed(), equalTo(1));
+            assertThat(results.getSkipped(), equalTo(4));
+            assertThat(results.getSucceeded(), equalTo(1));
+            changed = testDir.changedSince(manifest).map(x -> x.getName()).collect(Collectors.toSet());
+            assertThat(changed, equalTo(Set.of("11159.10")));
+            // A genome that times out is not recorded, even if its task swallows the interrupt.
+            results = testDir.forEachChanged(x -> {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) { }
+            }, new MasterGenomeDir.Options().setProgressInterval(null).setTimeout(Duration.ofMillis(200)), manifest);
+            assertThat(results.getTimedOut(), equalTo(1));
+            changed = testDir.changedSince(manifest).map(x -> x.getName()).collect(Collectors.toSet());
+            assertThat(changed, equalTo(Set.of("11159.10")));
+            // Renaming a key file counts as a change, even with the same time and size.
+            File renamed = new File(master, "11159.7/genome2.json");
+            File original = new File(master, "11159.7/genome.json");
+            long mtime = original.lastModified();
+            assertThat(original.renameTo(renamed), equalTo(true));
+            renamed.setLastModified(mtime);
+            changed = testDir.changedSince(manifest).map(x -> x.getName()).collect(Collectors.toSet());
+            assertThat(changed, equalTo(Set.of("11159.7", "11159.10")));
+        } finally {
+            FileUtils.deleteDirectory(master);
+        }
+    }
+
+    @Test
+    void testRecentIndex() throws IOException {
+        File master = Files.createTempDirectory("master").toFile();
+        File indexFile = File.createTempFile("master", ".idx");
+        indexFile.deleteOnExit();
+        indexFile.delete();
+        try {
+            for (String genome : EXPECTED)
+                FileUtils.copyDirectory(new File("data", genome), new File(master, genome));
+            // The directory was just changed, so the index is not trusted.
+            MasterGenomeDir testDir = new MasterGenomeDir(master, indexFile);
+            assertThat(testDir.size(), equalTo(EXPECTED.size()));
+            DirectoryScanner scanner = new DirectoryScanner(master, x -> true, indexFile);
+            assertThat(indexFile.isFile(), equalTo(true));
+            assertThat(scanner.isIndexValid(), equalTo(false));
+            // Once the directory has been quiet for a while, a new scan produces a trusted index.
+            master.setLastModified(System.currentTimeMillis() - 10000);
+            testDir = new MasterGenomeDir(master, indexFile);
+            assertThat(testDir.size(), equalTo(EXPECTED.size()));
+            assertThat(scanner.isIndexValid(), equalTo(true));
+            // A new genome invalidates it.
+            FileUtils.copyDirectory(new File("data", "11159.7"), new File(master, "11159.10"));
+            assertThat(scanner.isIndexValid(), equalTo(false));
+            testDir = new MasterGenomeDir(master, indexFile);
+            assertThat(testDir.size(), equalTo(EXPECTED.size() + 1));
+        } finally {
+            FileUtils.deleteDirectory(master);
+            indexFile.delete();
+        }
+    }
+
 }
@@ -4,17 +4,28 @@
 package org.theseed.io;
 
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.*;
 
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
+import org.theseed.json.JsonListInputStream;
+import org.theseed.json.JsonTokenizer;
 
 /**
  * @author Bruce Parrello
@@ -54,4 +65,808 @@ class TestReaders {
         }
     }
 
+    /**
+     * Read all the records in a field-input stream.
+     *
+     * @param inStream	input stream to read
+     * @param cols		indexes of the columns to read
+     *
+     * @return a list of the records, each as a list of column values
+     */
+    private static List<List<List<String>>> readAll(FieldInputStream inStream, int[] cols) {
+        List<List<List<String>>> retVal = new ArrayList<>();
+        for (var record : inStream) {
+            List<List<String>> row = new ArrayList<>(cols.length);
+            for (int col : cols)
+                row.add(record.getList(col));
+            retVal.add(row);
+        }
+        return retVal;
+    }
+
+    /**
+     * test the columnar binary format
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testColumnar() throws IOException {
+        File tabFile = new File("data", "genomes10.tbl");
+        File colFile = File.createTempFile("test", ColumnarInputStream.EXTENSION);
+        colFile.deleteOnExit();
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            int n = ColumnarInputStream.convert(inStream, colFile);
+            assertThat(n, equalTo(19));
+        }
+        List<List<List<String>>> expected;
+        String[] names = new String[] { "genome_id", "genome.genome_name", "genome_length", "genus", "contigs", "taxon_id" };
+        int[] cols = new int[names.length];
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            for (int i = 0; i < names.length; i++)
+                cols[i] = inStream.findField(names[i]);
+            expected = readAll(inStream, cols);
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(colFile)) {
+            assertThat(inStream, instanceOf(ColumnarInputStream.class));
+            assertThat(((ColumnarInputStream) inStream).size(), equalTo(19));
+            assertThat(inStream.width(), equalTo(18));
+            for (int i = 0; i < names.length; i++)
+                cols[i] = inStream.findField(names[i]);
+            assertThat(readAll(inStream, cols), equalTo(expected));
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(colFile)) {
+            int lenIdx = inStream.findField("genome_length");
+            int genusIdx = inStream.findField("genus");
+            var record = inStream.next();
+            assertThat(record.getInt(lenIdx), equalTo(4639675));
+            assertThat(record.get(genusIdx), equalTo(""));
+            record = inStream.next();
+            assertThat(record.get(genusIdx), equalTo("Streptococcus"));
+            assertThat(inStream.getLineNumber(), equalTo(2));
+        }
+        // Now try a JSON file with list values.
+        File jsonFile = new File("data", "genome_feature.json");
+        names = new String[] { "feature_id", "property", "aa_length", "product", "public" };
+        cols = new int[names.length];
+        try (FieldInputStream inStream = new JsonListInputStream(jsonFile)) {
+            ColumnarInputStream.convert(inStream, colFile, names);
+        }
+        try (FieldInputStream inStream = new JsonListInputStream(jsonFile)) {
+            for (int i = 0; i < names.length; i++)
+                cols[i] = inStream.findField(names[i]);
+            expected = readAll(inStream, cols);
+        }
+        try (ColumnarInputStream inStream = new ColumnarInputStream(colFile)) {
+            for (int i = 0; i < names.length; i++)
+                cols[i] = inStream.findField(names[i]);
+            List<List<List<String>>> actual = readAll(inStream, cols);
+            assertThat(actual, equalTo(expected));
+            assertThat(actual.get(1).get(1), contains("EC number", "Pathway"));
+        }
+        // A column with more distinct values than the string cache holds must still decode correctly.
+        File bigFile = File.createTempFile("test", ".tbl");
+        bigFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(bigFile)) {
+            writer.println("id\tgroup");
+            for (int i = 0; i < 40000; i++)
+                writer.format("id%d\tg%d%n", i, i % 7);
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(bigFile)) {
+            ColumnarInputStream.convert(inStream, colFile);
+        }
+        try (ColumnarInputStream inStream = new ColumnarInputStream(colFile)) {
+            int idIdx = inStream.findField("id");
+            int groupIdx = inStream.findField("group");
+            int i = 0;
+            for (var record : inStream) {
+                assertThat(record.get(idIdx), equalTo("id" + i));
+                assertThat(record.get(groupIdx), equalTo("g" + (i % 7)));
+                i++;
+            }
+            assertThat(i, equalTo(40000));
+        }
+        // Values that cross chunk boundaries must still decode correctly.
+        try (ColumnarInputStream inStream = new ColumnarInputStream(colFile, 10)) {
+            int idIdx = inStream.findField("id");
+            int groupIdx = inStream.findField("group");
+            int i = 0;
+            for (var record : inStream) {
+                assertThat(record.get(idIdx), equalTo("id" + i));
+                assertThat(record.get(groupIdx), equalTo("g" + (i % 7)));
+                i++;
+            }
+            assertThat(i, equalTo(40000));
+        }
+        // The temporary column files are removed after conversion.
+        File tempDir = Files.createTempDirectory("col").toFile();
+        tempDir.deleteOnExit();
+        File tempColFile = new File(tempDir, "big" + ColumnarInputStream.EXTENSION);
+        tempColFile.deleteOnExit();
+        try (FieldInputStream inStream = FieldInputStream.create(bigFile)) {
+            ColumnarInputStream.convert(inStream, tempColFile);
+        }
+        assertThat(tempDir.list().length, equalTo(1));
+    }
+
+    /**
+     * test column projection
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testProjection() throws IOException {
+        File tabFile = new File("data", "genomes10.tbl");
+        String[] names = new String[] { "genome_length", "genome_id", "taxon_id" };
+        int[] cols = new int[names.length];
+        List<List<List<String>>> expected;
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            for (int i = 0; i < names.length; i++)
+                cols[i] = inStream.findField(names[i]);
+            expected = readAll(inStream, cols);
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            for (int i = 0; i < names.length; i++)
+                cols[i] = inStream.findField(names[i]);
+            inStream.enableProjection();
+            assertThat(readAll(inStream, cols), equalTo(expected));
+        }
+        int genusIdx;
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            genusIdx = inStream.findField("genus");
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            int lenIdx = inStream.findField("genome_length");
+            inStream.enableProjection();
+            for (var record : inStream) {
+                assertThat(record.get(lenIdx), not(emptyString()));
+                assertThat(record.get(genusIdx), equalTo(""));
+            }
+        }
+        // JSON values of unrequested keys are skipped, and requested ones are unescaped.
+        File jsonFile = new File("data", "genome_feature.json");
+        try (FieldInputStream inStream = new JsonListInputStream(jsonFile)) {
+            int propIdx = inStream.findField("property");
+            int prodIdx = inStream.findField("product");
+            var record = inStream.next();
+            record = inStream.next();
+            assertThat(record.getList(propIdx), contains("EC number", "Pathway"));
+            assertThat(record.get(prodIdx), not(emptyString()));
+            assertThat(inStream.width(), equalTo(2));
+        }
+        assertThat(JsonTokenizer.unquote("\"abc\"", 1), equalTo("abc"));
+        assertThat(JsonTokenizer.unquote("\"a\\tb\\\"c\"", 1), equalTo("a\tb\"c"));
+        assertThat(JsonTokenizer.unquote("12.5", 1), equalTo("12.5"));
+    }
+
+    /**
+     * test record filtering
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testFilters() throws IOException {
+        File tabFile = new File("data", "genomes10.tbl");
+        File colFile = File.createTempFile("test", ColumnarInputStream.EXTENSION);
+        colFile.deleteOnExit();
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            ColumnarInputStream.convert(inStream, colFile);
+        }
+        for (File inFile : new File[] { tabFile, colFile }) {
+            try (FieldInputStream inStream = FieldInputStream.create(inFile)) {
+                int idIdx = inStream.findField("genome_id");
+                int lenIdx = inStream.findField("genome_length");
+                inStream.addFilter(new FieldFilter.Range(lenIdx, 2000000, 5000000));
+                List<String> ids = new ArrayList<String>();
+                for (var record : inStream) {
+                    assertThat(record.getInt(lenIdx), greaterThanOrEqualTo(2000000));
+                    assertThat(record.getInt(lenIdx), lessThanOrEqualTo(5000000));
+                    ids.add(record.get(idIdx));
+                }
+                assertThat(ids.size(), equalTo(9));
+                assertThat(inStream.getSkipCount(), equalTo(10L));
+                assertThat(ids.get(0), equalTo("511145.12"));
+            }
+            try (FieldInputStream inStream = FieldInputStream.create(inFile)) {
+                int genusIdx = inStream.findField("genus");
+                int nameIdx = inStream.findField("genome_name");
+                int idIdx = inStream.findField("genome_id");
+                inStream.addFilter(new FieldFilter.Equal(genusIdx, "Streptococcus"))
+                        .addFilter(new FieldFilter.In(idIdx, List.of("160490.10", "83332.12")));
+                assertThat(inStream.hasNext(), equalTo(true));
+                var record = inStream.next();
+                assertThat(record.get(nameIdx), equalTo("Streptococcus pyogenes M1 GAS"));
+                assertThat(inStream.getLineNumber(), equalTo(inFile == tabFile ? 3 : 2));
+                assertThat(inStream.hasNext(), equalTo(false));
+                assertThat(inStream.getSkipCount(), equalTo(18L));
+            }
+        }
+        // Test list matching in JSON.
+        File jsonFile = new File("data", "genome_feature.json");
+        try (FieldInputStream inStream = new JsonListInputStream(jsonFile)) {
+            int typeIdx = inStream.findField("feature_type");
+            int propIdx = inStream.findField("property");
+            inStream.addFilter(new FieldFilter.In(propIdx, List.of("Pathway")));
+            List<String> types = new ArrayList<String>();
+            for (var record : inStream)
+                types.add(record.get(typeIdx));
+            assertThat(types, contains("CDS"));
+            assertThat(inStream.getSkipCount(), equalTo(2L));
+        }
+        // A subclass that only implements the record methods gets filtering from the base class.
+        try (FieldInputStream inStream = new ArrayStream("a", "b", "c", "b")) {
+            inStream.addFilter(new FieldFilter.Equal(0, "b"));
+            List<String> values = new ArrayList<String>();
+            for (var record : inStream)
+                values.add(record.get(0));
+            assertThat(values, contains("b", "b"));
+            assertThat(inStream.getSkipCount(), equalTo(2L));
+        }
+    }
+
+    /**
+     * This is an input stream that returns some data and then blocks until it is closed, ignoring interrupts, like
+     * a read from a pipe that has no more input.
+     */
+    private static class StallingStream extends InputStream {
+
+        /** data to return before blocking */
+        private final byte[] data;
+        /** position of the next byte of data */
+        private int pos;
+        /** latch released when the stream is closed */
+        private final CountDownLatch closed;
+
+        protected StallingStream(String data) {
+            this.data = data.getBytes(StandardCharsets.UTF_8);
+            this.pos = 0;
+            this.closed = new CountDownLatch(1);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int n = this.read(buffer, 0, 1);
+            return (n < 0 ? -1 : buffer[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int retVal;
+            if (this.pos < this.data.length) {
+                retVal = Math.min(len, this.data.length - this.pos);
+                System.arraycopy(this.data, this.pos, b, off, retVal);
+                this.pos += retVal;
+            } else {
+                boolean done = false;
+                while (! done) {
+                    try {
+                        this.closed.await();
+                        done = true;
+                    } catch (InterruptedException e) {
+                        // Ignore the interrupt, like a blocked native read.
+                    }
+                }
+                retVal = -1;
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() {
+            this.closed.countDown();
+        }
+
+    }
+
+    /**
+     * This is a minimal field-input stream that returns one single-column record for each of a list of values.
+     */
+    private static class ArrayStream extends FieldInputStream {
+
+        /** values to return, one per record */
+        private final String[] values;
+        /** index of the next value */
+        private int pos;
+
+        protected ArrayStream(String... values) {
+            this.values = values;
+            this.pos = 0;
+        }
+
+        @Override
+        public int findField(String fieldName) {
+            return 0;
+        }
+
+        @Override
+        protected boolean hasNextRecord() {
+            return this.pos < this.values.length;
+        }
+
+        @Override
+        protected Record nextRecord() {
+            return this.new Record(new String[] { this.values[this.pos++] });
+        }
+
+    }
+
+    /**
+     * Write a small tab-delimited file for testing.
+     *
+     * @param lines		lines to write, the first being the header
+     *
+     * @return the file created
+     *
+     * @throws IOException
+     */
+    private static File writeTemp(String... lines) throws IOException {
+        File retVal = File.createTempFile("test", ".tbl");
+        retVal.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(retVal)) {
+            for (String line : lines)
+                writer.println(line);
+        }
+        return retVal;
+    }
+
+    /**
+     * test the external sort and merge-join
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testSortJoin() throws IOException {
+        File tabFile = new File("data", "genomes10.tbl");
+        File sortFile = File.createTempFile("test", ".tbl");
+        sortFile.deleteOnExit();
+        // Use a tiny chunk size and fan-in to force multiple merge passes.
+        FieldSorter sorter = new FieldSorter().setChunkSize(3).setFanIn(2);
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            assertThat(sorter.sort(inStream, "genus", sortFile), equalTo(19));
+        }
+        List<String> genera = new ArrayList<String>();
+        try (FieldInputStream inStream = FieldInputStream.create(sortFile)) {
+            assertThat(inStream.width(), equalTo(18));
+            int genusIdx = inStream.findField("genus");
+            int nameIdx = inStream.findField("genome_name");
+            for (var record : inStream) {
+                genera.add(record.get(genusIdx));
+                if (record.get(genusIdx).equals("Thermus"))
+                    assertThat(record.get(nameIdx), equalTo("Thermus thermophilus HB8"));
+            }
+        }
+        assertThat(genera.size(), equalTo(19));
+        for (int i = 1; i < genera.size(); i++)
+            assertThat(genera.get(i - 1).compareTo(genera.get(i)), lessThanOrEqualTo(0));
+        // The in-memory case should give the same result.
+        File sortFile2 = File.createTempFile("test", ".tbl");
+        sortFile2.deleteOnExit();
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            new FieldSorter().sort(inStream, "genus", sortFile2);
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(sortFile2)) {
+            int genusIdx = inStream.findField("genus");
+            List<String> genera2 = new ArrayList<String>();
+            for (var record : inStream)
+                genera2.add(record.get(genusIdx));
+            assertThat(genera2, equalTo(genera));
+        }
+        // Join the sorted genomes to a label file.
+        File labelFile = writeTemp("genus\tlabel", "Streptococcus\tA", "Streptococcus\tB", "Thermus\tC", "Zymomonas\tD");
+        try (FieldInputStream leftStream = FieldInputStream.create(sortFile);
+                FieldInputStream rightStream = FieldInputStream.create(labelFile)) {
+            int nameIdx = leftStream.findField("genome_name");
+            int labelIdx = rightStream.findField("label");
+            List<String> pairs = new ArrayList<String>();
+            for (MergeJoin.Pair pair : new MergeJoin(leftStream, "genus", rightStream, "genus"))
+                pairs.add(pair.getKey() + "/" + pair.getLeft().get(nameIdx) + "/" + pair.getRight().get(labelIdx));
+            assertThat(pairs, contains("Streptococcus/Streptococcus pyogenes M1 GAS/A",
+                    "Streptococcus/Streptococcus pyogenes M1 GAS/B", "Thermus/Thermus thermophilus HB8/C"));
+        }
+        // Test a many-to-many join.
+        File leftFile = writeTemp("key\tleft", "a\t1", "a\t2", "b\t3", "c\t4", "e\t5");
+        File rightFile = writeTemp("key\tright", "a\tx", "a\ty", "c\tz", "d\tw", "e\tv");
+        try (FieldInputStream leftStream = FieldInputStream.create(leftFile);
+                FieldInputStream rightStream = FieldInputStream.create(rightFile)) {
+            int leftIdx = leftStream.findField("left");
+            int rightIdx = rightStream.findField("right");
+            List<String> pairs = new ArrayList<String>();
+            for (MergeJoin.Pair pair : new MergeJoin(leftStream, "key", rightStream, "key"))
+                pairs.add(pair.getLeft().get(leftIdx) + pair.getRight().get(rightIdx));
+            assertThat(pairs, contains("1x", "1y", "2x", "2y", "4z", "5v"));
+        }
+        // Test an unsorted input.
+        File badFile = writeTemp("key\tright", "b\tx", "a\ty");
+        try (FieldInputStream leftStream = FieldInputStream.create(leftFile);
+                FieldInputStream rightStream = FieldInputStream.create(badFile)) {
+            MergeJoin join = new MergeJoin(leftStream, "key", rightStream, "key");
+            while (join.hasNext())
+                join.next();
+            assertThat("Unsorted join input accepted.", false, equalTo(true));
+        } catch (IllegalStateException e) {
+            assertThat(true, equalTo(true));
+        }
+    }
+
+    /**
+     * test batched reading
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testBatch() throws IOException {
+        File tabFile = new File("data", "genomes10.tbl");
+        List<String> expected = new ArrayList<String>();
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            int idIdx = inStream.findField("genome_id");
+            for (var record : inStream)
+                expected.add(record.get(idIdx));
+        }
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            int idIdx = inStream.findField("genome_id");
+            List<String> ids = new ArrayList<String>();
+            List<Integer> sizes = new ArrayList<Integer>();
+            FieldInputStream.Batch batch = inStream.nextBatch(5);
+            FieldInputStream.Batch first = batch;
+            FieldInputStream.Record firstRecord = batch.get(0);
+            List<FieldInputStream.Record> saved = batch.copy();
+            while (! batch.isEmpty()) {
+                assertThat(batch, sameInstance(first));
+                assertThat(batch.get(0), sameInstance(firstRecord));
+                sizes.add(batch.size());
+                for (var record : batch)
+                    ids.add(record.get(idIdx));
+                batch = inStream.nextBatch(5);
+            }
+            assertThat(sizes, contains(5, 5, 5, 4));
+            assertThat(ids, equalTo(expected));
+            assertThat(saved.size(), equalTo(5));
+            assertThat(saved.get(1).get(idIdx), equalTo(expected.get(1)));
+            assertThat(saved.get(0), not(sameInstance(firstRecord)));
+        }
+        // Verify the columnar stream reuses its rows the same way.
+        File colFile = File.createTempFile("test", ColumnarInputStream.EXTENSION);
+        colFile.deleteOnExit();
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile)) {
+            ColumnarInputStream.convert(inStream, colFile);
+        }
+        try (ColumnarInputStream inStream = new ColumnarInputStream(colFile)) {
+            int idIdx = inStream.findField("genome_id");
+            List<String> ids = new ArrayList<String>();
+            FieldInputStream.Batch batch = inStream.nextBatch(8);
+            FieldInputStream.Record firstRecord = batch.get(0);
+            List<FieldInputStream.Record> saved = batch.copy();
+            while (! batch.isEmpty()) {
+                assertThat(batch.get(0), sameInstance(firstRecord));
+                for (var record : batch)
+                    ids.add(record.get(idIdx));
+                batch = inStream.nextBatch(8);
+            }
+            assertThat(ids, equalTo(expected));
+            assertThat(saved.get(3).get(idIdx), equalTo(expected.get(3)));
+        }
+    }
+
+    /**
+     * Read all the lines of a byte array using a line reader.
+     *
+     * @param bytes		bytes to read
+     * @param charset	character set to use
+     *
+     * @return the list of lines read
+     *
+     * @throws IOException
+     */
+    private static List<String> readLines(byte[] bytes, Charset charset) throws IOException {
+        File tempFile = File.createTempFile("test", ".txt");
+        tempFile.deleteOnExit();
+        Files.write(tempFile.toPath(), bytes);
+        List<String> retVal = new ArrayList<String>();
+        try (LineReader reader = new LineReader(tempFile, charset)) {
+            for (String line : reader)
+                retVal.add(line);
+        }
+        return retVal;
+    }
+
+    /**
+     * test character set handling in the line reader
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testCharsets() throws IOException {
+        String text = "\uFEFFline 1\r\ncaf\u00e9\rline 3\n\nlast";
+        List<String> expected = List.of("line 1", "caf\u00e9", "line 3", "", "last");
+        assertThat(readLines(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), equalTo(expected));
+        assertThat(readLines(text.getBytes(StandardCharsets.UTF_16), StandardCharsets.UTF_16), equalTo(expected));
+        assertThat(readLines(text.substring(1).getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.ISO_8859_1),
+                equalTo(expected));
+        assertThat(readLines(new byte[0], StandardCharsets.UTF_8), empty());
+        assertThat(readLines("a\n".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), contains("a"));
+        // Test lines that cross buffer boundaries, including a CR-LF split between buffers.
+        StringBuilder buffer = new StringBuilder();
+        List<String> longLines = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            String line = StringUtils.repeat((i % 2 == 0 ? 'x' : '\u00e9'), i % 97) + i;
+            longLines.add(line);
+            buffer.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        buffer.append(StringUtils.repeat('y', 70000));
+        longLines.add(StringUtils.repeat('y', 70000));
+        assertThat(readLines(buffer.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                equalTo(longLines));
+        // Test the CR-LF split exactly at the first buffer boundary.
+        String edge = StringUtils.repeat('z', 65535) + "\r\nend\r\n";
+        assertThat(readLines(edge.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                contains(StringUtils.repeat('z', 65535), "end"));
+        // In ISO-8859-1, the UTF-8 byte-order mark bytes are ordinary characters.
+        byte[] latin = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'x' };
+        assertThat(readLines(latin, StandardCharsets.ISO_8859_1), contains("\u00ef\u00bb\u00bfx"));
+        // Opening an interactive stream does not read it, and a short first line does not wait for more input.
+        AtomicInteger reads = new AtomicInteger();
+        InputStream interactive = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Single-byte read not expected.");
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (reads.incrementAndGet() > 1)
+                    throw new IOException("Reader blocked waiting for more input.");
+                b[off] = 'a';
+                b[off + 1] = '\n';
+                return 2;
+            }
+        };
+        try (LineReader reader = new LineReader(interactive, StandardCharsets.UTF_8)) {
+            assertThat(reads.get(), equalTo(0));
+            assertThat(reader.next(), equalTo("a"));
+            assertThat(reads.get(), equalTo(1));
+        }
+    }
+
+    /**
+     * test prefetching in the line reader
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testPrefetch() throws IOException {
+        File tempFile = File.createTempFile("test", ".txt");
+        tempFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(tempFile)) {
+            for (int i = 0; i < 10000; i++)
+                writer.println("line " + i);
+        }
+        try (LineReader reader = new LineReader(tempFile).prefetch(100, 2)) {
+            int count = 0;
+            for (String line : reader) {
+                assertThat(line, equalTo("line " + count));
+                count++;
+            }
+            assertThat(count, equalTo(10000));
+            assertThat(reader.hasNext(), equalTo(false));
+        }
+        // Closing early must stop the background thread even though the queue is full.
+        try (LineReader reader = new LineReader(tempFile).prefetch(10, 1)) {
+            assertThat(reader.next(), equalTo("line 0"));
+        }
+        // Closing must also stop a background thread blocked in a read that ignores interrupts.
+        long start = System.currentTimeMillis();
+        try (LineReader reader = new LineReader(new StallingStream("first\n")).prefetch(10, 1)) {
+            assertThat(reader, not(equalTo(null)));
+        }
+        assertThat(System.currentTimeMillis() - start, lessThan(4000L));
+        // Test a field-input stream with prefetch.
+        File tabFile = new File("data", "genomes10.tbl");
+        try (FieldInputStream inStream = FieldInputStream.create(tabFile).prefetch()) {
+            int idIdx = inStream.findField("genome_id");
+            List<String> ids = new ArrayList<String>();
+            for (var record : inStream)
+                ids.add(record.get(idIdx));
+            assertThat(ids.size(), equalTo(19));
+            assertThat(ids.get(0), equalTo("511145.12"));
+        }
+    }
+
+    /**
+     * test key-indexed random access
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testTabIndex() throws IOException {
+        // Create a file sorted by genus with a duplicate key group.
+        File sortFile = File.createTempFile("test", ".tbl");
+        sortFile.deleteOnExit();
+        File sidecar = TabIndex.sidecarFile(sortFile);
+        sidecar.deleteOnExit();
+        File dupFile = writeTemp("genus\tname", "Aaa\tx1", "Bbb\tx2", "Ccc\tx3", "Ccc\tx4", "Ccc\tx5", "Ddd\tx6",
+                "Eee\tx7", "Fff\tx8");
+        try (FieldInputStream inStream = FieldInputStream.create(new File("data", "genomes10.tbl"))) {
+            new FieldSorter().sort(inStream, "genus", sortFile);
+        }
+        for (int interval : new int[] { 1, 4 }) {
+            try (TabbedInputStream inStream = new TabbedInputStream(sortFile)) {
+                inStream.useIndex("genus", interval);
+                assertThat(sidecar.isFile(), equalTo(true));
+                int nameIdx = inStream.findField("genome_name");
+                var found = inStream.seek("Thermus");
+                assertThat(found.size(), equalTo(1));
+                assertThat(found.get(0).get(nameIdx), equalTo("Thermus thermophilus HB8"));
+                assertThat(inStream.seek("Nosuchgenus"), empty());
+                assertThat(inStream.seek("Zzz"), empty());
+                List<String> names = new ArrayList<String>();
+                try (var range = inStream.rangeScan("Streptococcus", "Thermus")) {
+                    for (var record : range)
+                        names.add(record.get(nameIdx));
+                }
+                assertThat(names, contains("Streptococcus pyogenes M1 GAS", "Streptomyces coelicolor A3(2)",
+                        "Thermotoga maritima MSB8"));
+                // The main iteration is not disturbed.
+                int count = 0;
+                for (var record : inStream) {
+                    assertThat(record.get(nameIdx), not(emptyString()));
+                    count++;
+                }
+                assertThat(count, equalTo(19));
+            }
+            File dupSidecar = TabIndex.sidecarFile(dupFile);
+            dupSidecar.deleteOnExit();
+            try (TabbedInputStream inStream = new TabbedInputStream(dupFile)) {
+                inStream.useIndex(null, interval);
+                int nameIdx = inStream.findField("name");
+                List<String> names = new ArrayList<String>();
+                for (var record : inStream.seek("Ccc"))
+                    names.add(record.get(nameIdx));
+                assertThat(names, contains("x3", "x4", "x5"));
+                names.clear();
+                try (var range = inStream.rangeScan("Cc", null)) {
+                    for (var record : range)
+                        names.add(record.get(nameIdx));
+                }
+                assertThat(names, contains("x3", "x4", "x5", "x6", "x7", "x8"));
+            }
+        }
+        // Verify the sidecar is reused.
+        TabIndex index = TabIndex.load(sidecar);
+        assertThat(index.isValid(sortFile), equalTo(true));
+        assertThat(index.size(), equalTo(5));
+        // Verify the index is still returned if the sidecar cannot be written.
+        File blockedFile = writeTemp("key\tvalue", "a\t1", "b\t2", "c\t3");
+        File blockedSidecar = TabIndex.sidecarFile(blockedFile);
+        assertThat(blockedSidecar.mkdir(), equalTo(true));
+        blockedSidecar.deleteOnExit();
+        index = TabIndex.forFile(blockedFile, "key", 1);
+        assertThat(index.size(), equalTo(3));
+        assertThat(blockedSidecar.isDirectory(), equalTo(true));
+        // Verify an unsorted file is rejected.
+        File badFile = writeTemp("key\tvalue", "b\t1", "a\t2");
+        try {
+            TabIndex.build(badFile, "key", 1);
+            assertThat("Unsorted file indexed.", false, equalTo(true));
+        } catch (IOException e) {
+            assertThat(true, equalTo(true));
+        }
+    }
+
+    /**
+     * test the section index
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testSectionIndex() throws IOException {
+        File secFile = writeTemp("a1", "a2", "//", "b1", "//", "//", "c1\tc2", "c3", "c4", "//", "d1");
+        File sidecar = SectionIndex.sidecarFile(secFile);
+        sidecar.deleteOnExit();
+        SectionIndex index = SectionIndex.forFile(secFile, "//");
+        assertThat(sidecar.isFile(), equalTo(true));
+        assertThat(index.size(), equalTo(5));
+        List<List<String>> expected = List.of(List.of("a1", "a2"), List.of("b1"), List.of(), List.of("c1\tc2", "c3", "c4"),
+                List.of("d1"));
+        // Read the sections in reverse order to prove random access.
+        for (int i = 4; i >= 0; i--) {
+            try (LineReader reader = LineReader.openSection(secFile, "//", i)) {
+                List<String> lines = new ArrayList<String>();
+                for (String line : reader)
+                    lines.add(line);
+                assertThat(lines, equalTo(expected.get(i)));
+            }
+        }
+        // Compare to sequential section reading.
+        try (LineReader reader = new LineReader(secFile)) {
+            reader.skipSection("//");
+            List<String> lines = new ArrayList<String>();
+            for (String[] fields : reader.new Section("//"))
+                lines.add(fields[0]);
+            assertThat(lines, equalTo(expected.get(1)));
+        }
+        // Process the sections in parallel.
+        Map<Integer, List<String>> found = new ConcurrentHashMap<Integer, List<String>>();
+        index.forEach((n, reader) -> {
+            List<String> lines = new ArrayList<String>();
+            for (String line : reader)
+                lines.add(line);
+            found.put(n, lines);
+        }, 3);
+        assertThat(found.size(), equalTo(5));
+        for (int i = 0; i < 5; i++)
+            assertThat(found.get(i), equalTo(expected.get(i)));
+        // Verify the sidecar reloads.
+        SectionIndex loaded = SectionIndex.load(secFile, sidecar);
+        assertThat(loaded.isValid(), equalTo(true));
+        assertThat(loaded.size(), equalTo(5));
+        // Verify errors are passed back.
+        try {
+            index.forEach((n, reader) -> {
+                if (n == 3)
+                    throw new IOException("test error");
+            }, 2);
+            assertThat("Section error not reported.", false, equalTo(true));
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("test error"));
+        }
+        // A corrupt sidecar is rebuilt.
+        Files.writeString(sidecar.toPath(), "#sectionindex\t//\tx\t0\n12\n");
+        index = SectionIndex.forFile(secFile, "//");
+        assertThat(index.size(), equalTo(5));
+        assertThat(SectionIndex.load(secFile, sidecar).isValid(), equalTo(true));
+        // A marker containing a tab survives the sidecar.
+        File tabFile = writeTemp("x1", "end\there", "y1");
+        File tabSidecar = SectionIndex.sidecarFile(tabFile);
+        tabSidecar.deleteOnExit();
+        SectionIndex.forFile(tabFile, "end\there");
+        loaded = SectionIndex.forFile(tabFile, "end\there");
+        assertThat(loaded.size(), equalTo(2));
+        assertThat(SectionIndex.load(tabFile, tabSidecar).isValid(), equalTo(true));
+    }
+
+    /**
+     * test column interning
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testInterning() throws IOException {
+        File typeFile = writeTemp("id\ttype\tstrand", "f1\tCDS\t+", "f2\ttRNA\t-", "f3\tCDS\t+", "f4\trRNA\t+",
+                "f5\tCDS\t-");
+        try (FieldInputStream inStream = FieldInputStream.create(typeFile)) {
+            int typeIdx = inStream.findField("type");
+            int strandIdx = inStream.findField("strand");
+            int idIdx = inStream.findField("id");
+            inStream.enableInterning(typeIdx);
+            inStream.enableInterning(strandIdx, 1);
+            List<FieldInputStream.Record> records = new ArrayList<FieldInputStream.Record>();
+            for (var record : inStream)
+                records.add(record);
+            assertThat(records.size(), equalTo(5));
+            assertThat(records.get(2).get(typeIdx), equalTo("CDS"));
+            assertThat(records.get(2).getList(typeIdx), sameInstance(records.get(0).getList(typeIdx)));
+            assertThat(records.get(4).get(typeIdx), sameInstance(records.get(0).get(typeIdx)));
+            assertThat(records.get(1).get(typeIdx), equalTo("tRNA"));
+            assertThat(records.get(1).get(typeIdx), sameInstance("tRNA"));
+            assertThat(inStream.getDictionary(typeIdx).size(), equalTo(3));
+            assertThat(inStream.getDictionary(typeIdx).isActive(), equalTo(true));
+            // The strand column overflowed, so it falls back to normal values.
+            assertThat(inStream.getDictionary(strandIdx).isActive(), equalTo(false));
+            assertThat(records.get(4).get(strandIdx), equalTo("-"));
+            assertThat(records.get(3).get(strandIdx), equalTo("+"));
+            assertThat(inStream.getDictionary(idIdx), nullValue());
+        }
+        // Test a JSON stream.
+        File jsonFile = new File("data", "genome_feature.json");
+        try (FieldInputStream inStream = new JsonListInputStream(jsonFile)) {
+            int genomeIdx = inStream.findField("genome_id");
+            inStream.enableInterning(genomeIdx);
+            List<FieldInputStream.Record> records = new ArrayList<FieldInputStream.Record>();
+            for (var record : inStream)
+                records.add(record);
+            assertThat(records.get(0).get(genomeIdx), equalTo("83332.12"));
+            assertThat(records.get(1).getList(genomeIdx), sameInstance(records.get(0).getList(genomeIdx)));
+        }
+    }
+
 }
@@ -5,17 +5,30 @@ package org.theseed.io.template;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
+import java.util.stream.IntStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.io.FieldInputStream;
 import org.theseed.io.LineReader;
+import org.theseed.io.template.output.ChoiceSampler;
 import org.theseed.io.template.output.TemplateHashWriter;
 
 /**
@@ -54,6 +67,44 @@ class TestLineTemplate {
         assertThat(m.matches(), equalTo(false));
     }
 
+    @Test
+    void testLexer() throws IOException, ParseFailureException {
+        CompiledTemplate compiled = CompiledTemplate.of("abc{{def}}{{ghi}}jklmn{{$op:x}}{{}} {{q");
+        List<CompiledTemplate.Token> tokens = compiled.getTokens();
+        assertThat(tokens.size(), equalTo(6));
+        assertThat(tokens.get(0).getType(), equalTo(CompiledTemplate.Type.LITERAL));
+        assertThat(tokens.get(0).getText(), equalTo("abc"));
+        assertThat(tokens.get(1).getType(), equalTo(CompiledTemplate.Type.VARIABLE));
+        assertThat(tokens.get(1).getText(), equalTo("def"));
+        assertThat(tokens.get(1).getPosition(), equalTo(3));
+        assertThat(tokens.get(2).getText(), equalTo("ghi"));
+        assertThat(tokens.get(3).getType(), equalTo(CompiledTemplate.Type.LITERAL));
+        assertThat(tokens.get(3).getText(), equalTo("jklmn"));
+        assertThat(tokens.get(4).getType(), equalTo(CompiledTemplate.Type.COMMAND));
+        assertThat(tokens.get(4).getText(), equalTo("$op:x"));
+        // An empty construct needs at least one character, so the rest is literal.
+        assertThat(tokens.get(5).getType(), equalTo(CompiledTemplate.Type.LITERAL));
+        assertThat(tokens.get(5).getText(), equalTo("{{}} {{q"));
+        assertThat(CompiledTemplate.of(compiled.getTemplate()), sameInstance(compiled));
+        final String TEMPLATE = "Genome {{genome_id}} is called {{genome_name}}.{{$if:host_name}} Its hosts are {{$list:host_name:and:, }}.{{$fi}}";
+        // Templates built from the same text on different files produce the same output.
+        TemplateHashWriter globals = new TemplateHashWriter();
+        try (var inStream = FieldInputStream.create(new File("data", "genomes10.tbl"));
+                var inStream2 = FieldInputStream.create(new File("data", "genomes10.tbl"))) {
+            LineTemplate xlate = new LineTemplate(inStream, TEMPLATE, globals);
+            LineTemplate xlate2 = new LineTemplate(inStream2, TEMPLATE, globals);
+            Iterator<FieldInputStream.Record> iter2 = inStream2.iterator();
+            for (var line : inStream) {
+                String output = xlate.apply(line);
+                assertThat(output, startsWith("Genome "));
+                assertThat(xlate2.apply(iter2.next()), equalTo(output));
+            }
+        }
+        // A very large template is lexed in linear time.
+        String huge = StringUtils.repeat("The genome {{genome_id}} has the name {{genome_name}}. ", 20000);
+        assertThat(CompiledTemplate.of(huge).getTokens().size(), equalTo(80001));
+    }
+
     @Test
     void testTemplates() throws IOException, ParseFailureException {
         TemplateHashWriter globals = new TemplateHashWriter();
@@ -77,6 +128,157 @@ class TestLineTemplate {
         }
     }
 
+    @Test
+    void testProfile() throws IOException, ParseFailureException {
+        TemplateHashWriter globals = new TemplateHashWriter();
+        final String TEMPLATE = "Genome {{genome_id}} is called {{genome_name}}. " +
+                "{{$if:host_name}}Its hosts are {{$list:host_name:and:, }}. {{$else}}It has no known host. {{$fi}}" +
+                "{{$group:and}}It belongs to" +
+                    "{{$clause:superkingdom}}the domain {{superkingdom}}" +
+                    "{{$clause:genus}}the genus {{genus}}{{$end}}";
+        try (var inStream = FieldInputStream.create(new File("data", "genomes10.tbl"))) {
+            LineTemplate plain = new LineTemplate(inStream, TEMPLATE, globals);
+            LineTemplate profiled = new LineTemplate(inStream, TEMPLATE, globals);
+            assertThat(plain.isProfiling(), equalTo(false));
+            assertThat(plain.getProfile(), equalTo(""));
+            profiled.enableProfiling();
+            profiled.enableProfiling();
+            assertThat(profiled.isProfiling(), equalTo(true));
+            int n = 0;
+            long chars = 0;
+            for (var line : inStream) {
+                String output = profiled.apply(line);
+                assertThat(output, equalTo(plain.apply(line)));
+                chars += output.length();
+                n++;
+            }
+            String[] report = StringUtils.split(profiled.getProfile(), '\n');
+            log.info("Template profile:\n{}", profiled.getProfile());
+            // The root block is first, and it accounts for every call and every character.
+            assertThat(report[0], containsString("block calls=" + n + " "));
+            assertThat(report[0], containsString(" chars=" + chars + " "));
+            // Each command is one line.  The IF has two clauses and the group has a prefix and two clauses.
+            assertThat(report.length, equalTo(22));
+            assertThat(report[6], startsWith("  if "));
+            assertThat(report[7], startsWith("    if "));
+            assertThat(report[11], startsWith("    else "));
+            assertThat(report[13], startsWith("  group "));
+            assertThat(report[16], startsWith("    clause calls=18 "));
+            profiled.resetProfile();
+            assertThat(profiled.getProfile(), containsString("block calls=0 "));
+        }
+    }
+
+    @Test
+    void testEstimates() throws IOException, ParseFailureException {
+        TemplateHashWriter globals = new TemplateHashWriter();
+        final String TEMPLATE = "Genome {{genome_id}} is called {{genome_name}}. " +
+                "{{$if:host_name}}Its hosts are {{$list:host_name:and:, }}. {{$else}}It has no known host. {{$fi}}";
+        File saveFile = File.createTempFile("est", ".tbl");
+        saveFile.deleteOnExit();
+        try (var inStream = FieldInputStream.create(new File("data", "genomes10.tbl"))) {
+            LineTemplate xlate = new LineTemplate(inStream, TEMPLATE, globals);
+            LineTemplate other = new LineTemplate(inStream, "{{genome_id}}", globals);
+            final int initial = xlate.getCompiledTemplate().getEstimatedLength();
+            int n = 0;
+            long chars = 0;
+            for (var line : inStream) {
+                chars += xlate.apply(line).length();
+                n++;
+            }
+            // The root estimate should now cover a typical output.
+            int learned = xlate.getCompiledTemplate().getEstimatedLength();
+            assertThat(learned, not(equalTo(initial)));
+            assertThat(learned >= chars / n, equalTo(true));
+            // Save and restore the estimates.
+            xlate.saveEstimates(saveFile);
+            LineTemplate copy = new LineTemplate(inStream, TEMPLATE, globals);
+            assertThat(copy.getCompiledTemplate().getEstimatedLength(), equalTo(initial));
+            assertThat(copy.loadEstimates(saveFile), equalTo(true));
+            assertThat(copy.getCompiledTemplate().getEstimatedLength(), equalTo(learned));
+            // A different template does not accept them.
+            assertThat(other.loadEstimates(saveFile), equalTo(false));
+        }
+    }
+
+    @Test
+    void testTemplateFileCache() throws IOException {
+        File cacheDir = Files.createTempDirectory("tpl").toFile();
+        cacheDir.deleteOnExit();
+        final String TEMPLATE = "Feature {{patric_id}} has {{$if:product}}function {{product}}{{$else}}no function{{$fi}}.";
+        final List<String> fields = List.of("patric_id", "product");
+        final List<String> otherFields = List.of("patric_id", "product", "type");
+        try {
+            CompiledTemplate.setCacheDir(cacheDir);
+            CompiledTemplate compiled = CompiledTemplate.of(TEMPLATE, fields);
+            File cacheFile = new File(cacheDir, CompiledTemplate.hashName(TEMPLATE, fields));
+            cacheFile.deleteOnExit();
+            assertThat(cacheFile.isFile(), equalTo(true));
+            assertThat(CompiledTemplate.hashName(TEMPLATE, otherFields), not(equalTo(cacheFile.getName())));
+            CompiledTemplate loaded = CompiledTemplate.load(cacheFile, TEMPLATE, fields);
+            assertThat(loaded.getTemplate(), equalTo(TEMPLATE));
+            assertThat(loaded.getTokens().size(), equalTo(compiled.getTokens().size()));
+            for (int i = 0; i < loaded.getTokens().size(); i++) {
+                CompiledTemplate.Token token = loaded.getTokens().get(i);
+                CompiledTemplate.Token expected = compiled.getTokens().get(i);
+                assertThat(token.getText(), equalTo(expected.getText()));
+                assertThat(token.getType(), equalTo(expected.getType()));
+                assertThat(token.getPosition(), equalTo(expected.getPosition()));
+            }
+            // A different field list is a miss.
+            assertThat(CompiledTemplate.load(cacheFile, TEMPLATE, otherFields), equalTo(null));
+            // A damaged file is rejected, even if it claims a huge length.
+            byte[] data = Files.readAllBytes(cacheFile.toPath());
+            data[data.length - 5] = (byte) 0x7F;
+            Files.write(cacheFile.toPath(), data);
+            try {
+                CompiledTemplate.load(cacheFile, TEMPLATE, fields);
+                assertThat("Damaged compiled template accepted.", false, equalTo(true));
+            } catch (IOException e) {
+                assertThat(true, equalTo(true));
+            }
+            // A damaged file is rewritten when it is next needed.
+            final String TEMPLATE2 = TEMPLATE + " ";
+            File cacheFile2 = new File(cacheDir, CompiledTemplate.hashName(TEMPLATE2, fields));
+            cacheFile2.deleteOnExit();
+            Files.write(cacheFile2.toPath(), "garbage".getBytes());
+            CompiledTemplate compiled2 = CompiledTemplate.of(TEMPLATE2, fields);
+            assertThat(compiled2.getTokens().size(), equalTo(compiled.getTokens().size()));
+            assertThat(compiled2.getTokens().get(compiled2.getTokens().size() - 1).getText(), equalTo(". "));
+            assertThat(CompiledTemplate.load(cacheFile2, TEMPLATE2, fields).getTemplate(), equalTo(TEMPLATE2));
+        } finally {
+            CompiledTemplate.setCacheDir(null);
+        }
+    }
+
+    @Test
+    void testNestedConditions() throws IOException, ParseFailureException {
+        TemplateHashWriter globals = new TemplateHashWriter();
+        final String TEMPLATE = "Genome {{genome_id}}" +
+                "{{$if:host_name:eq(superkingdom,Bacteria)}} is a bacterium with hosts" +
+                "{{$if:disease}} and causes disease{{$fi}}" +
+                "{{$else}}{{$if:disease}} causes disease{{$else}} is not interesting{{$fi}}{{$fi}}.";
+        try (var inStream = FieldInputStream.create(new File("data", "genomes10.tbl"))) {
+            LineTemplate xlate = new LineTemplate(inStream, TEMPLATE, globals);
+            int idCol = inStream.findField("genome_id");
+            int hostCol = inStream.findField("host_name");
+            int diseaseCol = inStream.findField("disease");
+            int kingdomCol = inStream.findField("superkingdom");
+            int i = 0;
+            for (var line : inStream) {
+                boolean bacterium = ! line.get(hostCol).isEmpty() && line.get(kingdomCol).equals("Bacteria");
+                boolean disease = ! line.get(diseaseCol).isEmpty();
+                String expected = "Genome " + line.get(idCol);
+                if (bacterium)
+                    expected += " is a bacterium with hosts" + (disease ? " and causes disease" : "");
+                else
+                    expected += (disease ? " causes disease" : " is not interesting");
+                assertThat(String.format("Line %d", i), xlate.apply(line), equalTo(expected + "."));
+                i++;
+            }
+        }
+    }
+
     @Test
     void testProducts() throws IOException, ParseFailureException {
         TemplateHashWriter globals = new TemplateHashWriter();
@@ -95,6 +297,49 @@ class TestLineTemplate {
         }
     }
 
+    @Test
+    void testProductCache() throws IOException, ParseFailureException {
+        try (var inStream = FieldInputStream.create(new File("data", "products.tbl"))) {
+            GeneProductCommand command = new GeneProductCommand(null, inStream, "product:type");
+            int typeIdx = inStream.findField("type");
+            List<FieldInputStream.Record> records = new ArrayList<FieldInputStream.Record>();
+            List<String> outputs = new ArrayList<String>();
+            for (var line : inStream) {
+                if (! line.get(typeIdx).isEmpty()) {
+                    records.add(line);
+                    outputs.add(command.translate(line));
+                }
+            }
+            final int n = records.size();
+            long misses = command.getCacheMisses();
+            assertThat(misses + command.getCacheHits(), equalTo((long) n));
+            assertThat(command.getCacheSize(), equalTo((int) misses));
+            // A second pass should come entirely from the cache.
+            for (int i = 0; i < n; i++)
+                assertThat(String.format("Line %d", i), command.translate(records.get(i)), equalTo(outputs.get(i)));
+            assertThat(command.getCacheMisses(), equalTo(misses));
+            assertThat(command.getCacheHits(), equalTo(2L * n - misses));
+            // With a tiny cache, we get evictions but the same answers.
+            command.setCacheLimit(2);
+            for (int i = 0; i < n; i++)
+                assertThat(String.format("Line %d", i), command.translate(records.get(i)), equalTo(outputs.get(i)));
+            assertThat(command.getCacheSize(), equalTo(2));
+            assertThat(command.getCacheEvictions(), equalTo(misses - 2));
+            // With no cache, the answers are still the same.
+            command.setCacheLimit(0);
+            for (int i = 0; i < n; i++)
+                assertThat(String.format("Line %d", i), command.translate(records.get(i)), equalTo(outputs.get(i)));
+            assertThat(command.getCacheSize(), equalTo(0));
+            // Many threads can share the cache.
+            command.setCacheLimit(1000);
+            final long calls = command.getCacheHits() + command.getCacheMisses();
+            IntStream.range(0, 20 * n).parallel().forEach(i ->
+                    assertThat(String.format("Call %d", i), command.translate(records.get(i % n)), equalTo(outputs.get(i % n))));
+            assertThat(command.getCacheHits() + command.getCacheMisses(), equalTo(calls + 20L * n));
+            assertThat(command.getCacheSize(), lessThanOrEqualTo(1000));
+        }
+    }
+
     @Test
     void testLocations() throws IOException, ParseFailureException {
         TemplateHashWriter globals = new TemplateHashWriter();
@@ -214,6 +459,95 @@ class TestLineTemplate {
         }
     }
 
+    @Test
+    void testChoiceSampling() throws IOException, ParseFailureException {
+        // Build a list of distinct values with very different frequencies.
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            String value = "v" + i;
+            for (int j = (i < 10 ? 50 : 1); j > 0; j--)
+                values.add(value);
+        }
+        ChoiceSampler whole = new ChoiceSampler(100, 42L);
+        values.forEach(x -> whole.add(x));
+        Set<String> sample = whole.getChoices();
+        assertThat(sample.size(), equalTo(100));
+        assertThat(whole.getOffered(), equalTo((long) values.size()));
+        // Order does not matter, and split samplers merge to the same result.
+        ChoiceSampler part1 = new ChoiceSampler(100, 42L);
+        ChoiceSampler part2 = new ChoiceSampler(100, 42L);
+        for (int i = values.size() - 1; i >= 0; i--) {
+            if (i % 3 == 0)
+                part1.add(values.get(i));
+            else
+                part2.add(values.get(i));
+        }
+        part1.merge(part2);
+        assertThat(part1.getChoices(), equalTo(sample));
+        // Frequent values should be chosen no more often than rare ones.  Each value has a 10% chance.
+        int frequentHits = 0;
+        int rareHits = 0;
+        for (long seed = 0; seed < 200; seed++) {
+            ChoiceSampler sampler = new ChoiceSampler(100, seed);
+            values.forEach(x -> sampler.add(x));
+            Set<String> choices = sampler.getChoices();
+            for (int i = 0; i < 10; i++) {
+                if (choices.contains("v" + i)) frequentHits++;
+                if (choices.contains("v" + (500 + i))) rareHits++;
+            }
+        }
+        assertThat(frequentHits > 120 && frequentHits < 280, equalTo(true));
+        assertThat(rareHits > 120 && rareHits < 280, equalTo(true));
+        // Exact mode keeps everything, sorted.
+        ChoiceSampler exact = new ChoiceSampler(0, 42L);
+        values.forEach(x -> exact.add(x));
+        assertThat(exact.getChoices().size(), equalTo(1000));
+        assertThat(exact.getChoices().iterator().next(), equalTo("v0"));
+        // Read choice lists from multiple files with a capacity.
+        File simpleFile = new File("data", "simple.tbl");
+        File otherFile = writeTemp("genome\tgenus\tspecies", "789\tg9\ts9", "790\tg1\ts10");
+        TemplateHashWriter globals = new TemplateHashWriter();
+        globals.readChoiceLists(List.of(simpleFile, otherFile), "genus", "species");
+        Set<String> allGenera = globals.getChoices("genus");
+        assertThat(allGenera.contains("g9"), equalTo(true));
+        assertThat(allGenera.contains("g1"), equalTo(true));
+        TemplateHashWriter sampled = new TemplateHashWriter();
+        sampled.setChoiceCapacity(3);
+        sampled.readChoiceLists(List.of(simpleFile, otherFile), "genus", "species");
+        Set<String> genera = sampled.getChoices("genus");
+        assertThat(genera.size(), equalTo(3));
+        assertThat(allGenera.containsAll(genera), equalTo(true));
+        assertThat(sampled.getChoices("species").size(), equalTo(3));
+        // A sampled list smaller than the number of choices requested must still include the answer.
+        String missing = allGenera.stream().filter(x -> ! genera.contains(x)).findFirst().orElseThrow();
+        try (FieldInputStream inStream = FieldInputStream.create(simpleFile)) {
+            LineTemplate xlate = new LineTemplate(inStream, "{{genus}}", sampled);
+            for (long seed = 0; seed < 20; seed++) {
+                xlate.setSeed(seed);
+                List<String> choices = xlate.getChoices("genus", missing, 5);
+                assertThat(choices.size(), equalTo(3));
+                assertThat(choices.contains(missing), equalTo(true));
+                assertThat(new HashSet<String>(choices).size(), equalTo(3));
+                choices = xlate.getChoices("genus", genera.iterator().next(), 5);
+                assertThat(new HashSet<String>(choices), equalTo(genera));
+            }
+        }
+    }
+
+    /**
+     * @return a temporary file containing the specified lines
+     *
+     * @param lines		lines to write
+     *
+     * @throws IOException
+     */
+    private static File writeTemp(String... lines) throws IOException {
+        File retVal = File.createTempFile("choice", ".tbl");
+        retVal.deleteOnExit();
+        Files.write(retVal.toPath(), List.of(lines));
+        return retVal;
+    }
+
     @Test
     void testSamples() throws IOException, ParseFailureException {
         TemplateHashWriter globals = new TemplateHashWriter();
@@ -74,6 +74,26 @@ class TestJsonFileDir {
         }
     }
 
+    @Test
+    void testLazyJsonFileDir() {
+        File mainDir = new File("data", "11159.6");
+        File indexFile = new File("data", "json.idx.ser");
+        indexFile.delete();
+        for (int pass = 0; pass < 2; pass++) {
+            JsonFileDir looper = new JsonFileDir(mainDir, indexFile);
+            int count = 0;
+            for (File filer : looper) {
+                String name = filer.getName();
+                assertThat(name, filer.getParentFile(), equalTo(mainDir));
+                assertThat(name, in(FILES));
+                count++;
+            }
+            assertThat(count, equalTo(FILES.size()));
+            assertThat(indexFile.isFile(), equalTo(true));
+            assertThat(looper.size(), equalTo(FILES.size()));
+        }
+    }
+
     @Test
     void testJsonRead() throws IOException, JsonException {
         File mainJson = new File("data/11168.4", "genome_feature.json");
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package org.theseed.magic;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.theseed.io.FieldInputStream;
+import org.theseed.io.LineReader;
+import org.theseed.proteins.Function;
+import org.theseed.proteins.FunctionMap;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class TestMagicMap {
+
+    /**
+     * @return a list of function names for testing, including duplicates and names that condense to the same prefix
+     *
+     * @throws IOException
+     */
+    private static List<String> getTestNames() throws IOException {
+        List<String> retVal = new ArrayList<String>(200);
+        try (FieldInputStream inStream = FieldInputStream.create(new File("data", "products.tbl"))) {
+            int prodIdx = inStream.findField("product");
+            for (var record : inStream) {
+                String product = record.get(prodIdx);
+                if (! product.isBlank())
+                    retVal.add(product);
+            }
+        }
+        // Add some names that differ only in the suffix, and some repeats.
+        final int n = retVal.size();
+        for (int i = 0; i < 50; i++) {
+            retVal.add("Phage protein " + i);
+            retVal.add("Phage protein, variant " + i);
+            retVal.add(retVal.get(i % n).toUpperCase());
+        }
+        retVal.add("hypothetical protein");
+        retVal.add("Hypothetical protein");
+        return retVal;
+    }
+
+    @Test
+    void testBulkLoad() throws IOException {
+        List<String> names = getTestNames();
+        FunctionMap seqMap = new FunctionMap();
+        List<Function> expected = new ArrayList<Function>(names.size());
+        for (String name : names)
+            expected.add(seqMap.findOrInsert(name));
+        FunctionMap bulkMap = new FunctionMap();
+        // Pre-load a few names so that some are already present.
+        for (int i = 0; i < 5; i++)
+            bulkMap.findOrInsert(names.get(i));
+        List<Function> actual = bulkMap.findOrInsertAll(names);
+        assertThat(actual.size(), equalTo(expected.size()));
+        assertThat(bulkMap.size(), equalTo(seqMap.size()));
+        for (int i = 0; i < actual.size(); i++) {
+            String name = names.get(i);
+            assertThat(name, actual.get(i).getId(), equalTo(expected.get(i).getId()));
+            assertThat(name, bulkMap.getByName(name), sameInstance(actual.get(i)));
+        }
+        // A second bulk load should find everything.
+        List<Function> again = bulkMap.findOrInsertAll(names);
+        for (int i = 0; i < again.size(); i++)
+            assertThat(names.get(i), again.get(i), sameInstance(actual.get(i)));
+        assertThat(bulkMap.size(), equalTo(seqMap.size()));
+    }
+
+    /** fragments used to build random names for condensing */
+    private static final String[] FRAGMENTS = new String[] { "and", "of", "The", "a", "ON", "protein", "(EC 1.2.3.4)",
+            "(", ")", " ", " ", "  ", ",", "-", "/", "_", "@", "#", "\n", "\r", "\t", "7", "23S", "rRNA", "Ab", "x",
+            "hypothetical", "subunit", "\u00E9", "\u0130", "\u212A", "\u00DF", "()", "((a)", "b)", ".", "Kinase", "IIA" };
+
+    @Test
+    void testCondense() throws IOException {
+        assertThat(MagicMap.condense("Mycobacterium tuberculosis H37Rv"), equalTo("MycoTubeH37r"));
+        assertThat(MagicMap.condense("(Phosphoglycerate kinase (EC 2.7.2.3))"), equalTo("PhosKina"));
+        assertThat(MagicMap.condense(""), equalTo(""));
+        assertThat(MagicMap.condense("()"), equalTo(""));
+        assertThat(MagicMap.condense("("), equalTo(""));
+        // Compare the fast method to the general method on real names.
+        List<String> names = getTestNames();
+        try (LineReader reader = new LineReader(new File("data", "genomes10.tbl"))) {
+            for (String line : reader)
+                names.add(line);
+        }
+        for (String name : names)
+            assertThat(name, MagicMap.condense(name), equalTo(MagicMap.condenseGeneral(name)));
+        // Now try a lot of random names.
+        Random rand = new Random(1842724469L);
+        StringBuilder buffer = new StringBuilder(100);
+        for (int i = 0; i < 100000; i++) {
+            buffer.setLength(0);
+            final int n = rand.nextInt(20);
+            for (int j = 0; j < n; j++)
+                buffer.append(FRAGMENTS[rand.nextInt(FRAGMENTS.length)]);
+            String name = buffer.toString();
+            assertThat(name, MagicMap.condense(name), equalTo(MagicMap.condenseGeneral(name)));
+        }
+    }
+
+}